@@ -0,0 +1,101 @@
+// Contention benchmark for the native connection tables. The first section drives the real HTTP/2 table:
+// every thread opens, feeds, looks up and frees its own connections the way the SSL hooks do, so threads only
+// meet on the table itself. The second runs the same table operations on a one-stripe StripedMap, which is
+// the single mutex over one unordered_map the tables used before, next to the striped one, so a single run
+// gives before and after. Run on a device with
+//   adb push h2_conn_bench /data/local/tmp && adb shell /data/local/tmp/h2_conn_bench [max_threads] [iterations]
+
+#include "http2_parser.h"
+#include "striped_map.h"
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <thread>
+#include <vector>
+
+#define BENCH_CONNS_PER_THREAD 64
+#define BENCH_LOOKUPS_PER_FEED 8
+
+static std::vector<uint8_t> build_first_write() {
+    std::vector<uint8_t> data;
+    data.reserve(H2_CLIENT_PREFACE_LEN + H2_FRAME_HEADER_SIZE);
+    data.insert(data.end(), H2_CLIENT_PREFACE, H2_CLIENT_PREFACE + H2_CLIENT_PREFACE_LEN);
+    const uint8_t settings[H2_FRAME_HEADER_SIZE] = {0, 0, 0, H2_FRAME_SETTINGS, 0, 0, 0, 0, 0};
+    data.insert(data.end(), settings, settings + H2_FRAME_HEADER_SIZE);
+    return data;
+}
+
+static double run(int threads, int iterations, const std::vector<uint8_t>& first_write) {
+    auto start = std::chrono::steady_clock::now();
+    std::vector<std::thread> pool;
+    for (int t = 0; t < threads; t++) {
+        pool.emplace_back([t, iterations, &first_write] {
+            for (int i = 0; i < iterations; i++) {
+                // SSL* values: heap pointers that share their low bits.
+                uintptr_t id = ((uintptr_t)(t + 1) << 24) + (uintptr_t)(i % BENCH_CONNS_PER_THREAD) * 0x40;
+                std::shared_ptr<Http2Connection> conn = h2_get_or_create(id);
+                if (conn) h2_feed(conn, first_write.data(), first_write.size(), true, false);
+                for (int k = 0; k < BENCH_LOOKUPS_PER_FEED; k++) h2_is_http2(id);
+                if (i % 4 == 3) h2_free(id);
+            }
+            for (int i = 0; i < BENCH_CONNS_PER_THREAD; i++) {
+                h2_free(((uintptr_t)(t + 1) << 24) + (uintptr_t)i * 0x40);
+            }
+        });
+    }
+    for (auto& thread : pool) thread.join();
+    return std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start).count();
+}
+
+template <size_t STRIPES>
+static double run_map(int threads, int iterations) {
+    static StripedMap<uintptr_t, std::shared_ptr<int>, STRIPES> table;
+    auto start = std::chrono::steady_clock::now();
+    std::vector<std::thread> pool;
+    for (int t = 0; t < threads; t++) {
+        pool.emplace_back([t, iterations] {
+            std::shared_ptr<int> value = std::make_shared<int>(t);
+            std::shared_ptr<int> out;
+            for (int i = 0; i < iterations; i++) {
+                uintptr_t id = ((uintptr_t)(t + 1) << 24) + (uintptr_t)(i % BENCH_CONNS_PER_THREAD) * 0x40;
+                if (!table.get(id, out)) table.put(id, value);
+                for (int k = 0; k < BENCH_LOOKUPS_PER_FEED; k++) table.get(id, out);
+                if (i % 4 == 3) table.erase(id);
+            }
+            for (int i = 0; i < BENCH_CONNS_PER_THREAD; i++) {
+                table.erase(((uintptr_t)(t + 1) << 24) + (uintptr_t)i * 0x40);
+            }
+        });
+    }
+    for (auto& thread : pool) thread.join();
+    return std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start).count();
+}
+
+int main(int argc, char** argv) {
+    int max_threads = argc > 1 ? atoi(argv[1]) : (int)std::thread::hardware_concurrency();
+    int iterations = argc > 2 ? atoi(argv[2]) : 50000;
+    if (max_threads < 1) max_threads = 1;
+    if (iterations < 1) iterations = 1;
+
+    std::vector<uint8_t> first_write = build_first_write();
+    run(1, iterations / 10 + 1, first_write);
+
+    printf("cpus=%u iterations/thread=%d\n", std::thread::hardware_concurrency(), iterations);
+    printf("h2 connection table\n");
+    for (int threads = 1; threads <= max_threads; threads *= 2) {
+        double ms = run(threads, iterations, first_write);
+        double total = (double)threads * iterations;
+        printf("threads=%-3d ms=%9.1f  iterations/s=%12.0f\n", threads, ms, total / ms * 1000.0);
+    }
+
+    printf("table operations, iterations/s: one lock vs 64 stripes\n");
+    run_map<1>(1, iterations / 10 + 1);
+    run_map<64>(1, iterations / 10 + 1);
+    for (int threads = 1; threads <= max_threads; threads *= 2) {
+        double total = (double)threads * iterations * 1000.0;
+        double single = total / run_map<1>(threads, iterations);
+        double striped = total / run_map<64>(threads, iterations);
+        printf("threads=%-3d  one lock=%12.0f  striped=%12.0f  x%.2f\n", threads, single, striped, striped / single);
+    }
+    return 0;
+}
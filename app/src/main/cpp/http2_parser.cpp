@@ -1,4 +1,5 @@
 #include "http2_parser.h"
+#include "striped_map.h"
 #include <android/log.h>
 #include <cstring>
 #include <time.h>
@@ -13,8 +14,10 @@
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 
-static std::mutex g_h2_map_mutex;
-static std::unordered_map<uintptr_t, std::shared_ptr<Http2Connection>> g_h2_conns;
+// A connection lives as long as anyone holds its shared_ptr: h2_free only unlinks it, and a hook still
+// feeding it finishes on its own reference.
+static StripedMap<uintptr_t, std::shared_ptr<Http2Connection>> g_h2_conns;
+#define H2_MAX_CONNS_PER_STRIPE (2048 / decltype(g_h2_conns)::STRIPE_COUNT)
 
 uint64_t get_current_ms() {
     struct timespec ts;
@@ -53,54 +56,48 @@ void Http2Connection::evict_completed_streams() {
 }
 
 std::shared_ptr<Http2Connection> h2_get_or_create(uintptr_t conn_id) {
-    std::lock_guard<std::mutex> lk(g_h2_map_mutex);
-    auto it = g_h2_conns.find(conn_id);
-    if (it != g_h2_conns.end()) return it->second;
-
-    if (g_h2_conns.size() >= 2048) {
-        uintptr_t oldest_id = 0;
-        uint64_t  oldest_ts = UINT64_MAX;
-        for (const auto& kv : g_h2_conns) {
-            if (kv.second->last_evict_time_ms < oldest_ts) {
-                oldest_ts = kv.second->last_evict_time_ms;
-                oldest_id = kv.first;
+    std::shared_ptr<Http2Connection> conn;
+    if (g_h2_conns.get(conn_id, conn)) return conn;
+
+    // The inflaters are allocated outside the stripe lock; a racing creator's connection wins.
+    auto created = std::make_shared<Http2Connection>();
+    created->conn_id = conn_id;
+    if (!created->init()) return nullptr;
+
+    std::shared_ptr<Http2Connection> evicted;
+    g_h2_conns.with(conn_id, [&](std::unordered_map<uintptr_t, std::shared_ptr<Http2Connection>>& conns) {
+        auto it = conns.find(conn_id);
+        if (it != conns.end()) {
+            conn = it->second;
+            return;
+        }
+        if (conns.size() >= H2_MAX_CONNS_PER_STRIPE) {
+            auto oldest = conns.begin();
+            for (auto candidate = conns.begin(); candidate != conns.end(); ++candidate) {
+                if (candidate->second->last_evict_time_ms < oldest->second->last_evict_time_ms) oldest = candidate;
             }
+            evicted = std::move(oldest->second);
+            conns.erase(oldest);
         }
-        if (oldest_id != 0) g_h2_conns.erase(oldest_id);
-    }
-
-    auto conn = std::make_shared<Http2Connection>();
-    conn->conn_id = conn_id;
-    if (!conn->init()) return nullptr;
-    
-    g_h2_conns[conn_id] = conn;
+        conns[conn_id] = created;
+        conn = created;
+    });
     return conn;
 }
 
 void h2_free(uintptr_t conn_id) {
-    std::lock_guard<std::mutex> lk(g_h2_map_mutex);
     g_h2_conns.erase(conn_id);
 }
 
 bool h2_is_http2(uintptr_t conn_id) {
     std::shared_ptr<Http2Connection> conn;
-    {
-        std::lock_guard<std::mutex> lk(g_h2_map_mutex);
-        auto it = g_h2_conns.find(conn_id);
-        if (it == g_h2_conns.end()) return false;
-        conn = it->second;
-    }
+    if (!g_h2_conns.get(conn_id, conn)) return false;
     return conn->is_h2;
 }
 
 std::vector<std::vector<uint8_t>> h2_take_rst_frames(uintptr_t conn_id) {
     std::shared_ptr<Http2Connection> conn;
-    {
-        std::lock_guard<std::mutex> lk(g_h2_map_mutex);
-        auto it = g_h2_conns.find(conn_id);
-        if (it == g_h2_conns.end()) return {};
-        conn = it->second;
-    }
+    if (!g_h2_conns.get(conn_id, conn)) return {};
     std::lock_guard<std::mutex> st_lk(conn->streams_mutex);
     auto frames = std::move(conn->pending_rst_frames);
     conn->pending_rst_frames.clear();
@@ -109,12 +106,7 @@ std::vector<std::vector<uint8_t>> h2_take_rst_frames(uintptr_t conn_id) {
 
 void h2_enqueue_rst_stream(uintptr_t conn_id, int stream_id, uint32_t error_code) {
     std::shared_ptr<Http2Connection> conn;
-    {
-        std::lock_guard<std::mutex> lk(g_h2_map_mutex);
-        auto it = g_h2_conns.find(conn_id);
-        if (it == g_h2_conns.end()) return;
-        conn = it->second;
-    }
+    if (!g_h2_conns.get(conn_id, conn)) return;
     std::lock_guard<std::mutex> st_lk(conn->streams_mutex);
 
     std::vector<uint8_t> frame(H2_FRAME_HEADER_SIZE + 4);
@@ -130,12 +122,7 @@ void h2_enqueue_rst_stream(uintptr_t conn_id, int stream_id, uint32_t error_code
 
 void h2_block_stream(uintptr_t conn_id, int stream_id) {
     std::shared_ptr<Http2Connection> conn;
-    {
-        std::lock_guard<std::mutex> lk(g_h2_map_mutex);
-        auto it = g_h2_conns.find(conn_id);
-        if (it == g_h2_conns.end()) return;
-        conn = it->second;
-    }
+    if (!g_h2_conns.get(conn_id, conn)) return;
     std::lock_guard<std::mutex> st_lk(conn->streams_mutex);
     if (conn->streams.find(stream_id) != conn->streams.end()) {
         conn->streams[stream_id].is_blocked = true;
@@ -150,9 +137,19 @@ static int read_stream_id(const uint8_t* p) {
     return (int)(((uint32_t)(p[5] & 0x7f) << 24) | ((uint32_t)p[6] << 16) | ((uint32_t)p[7] << 8) | (uint32_t)p[8]);
 }
 
+static bool name_is(const nghttp2_nv& nv, const char* name, size_t len) {
+    return nv.namelen == len && memcmp(nv.name, name, len) == 0;
+}
+
+static std::string nv_value(const nghttp2_nv& nv) {
+    return std::string(reinterpret_cast<const char*>(nv.value), nv.valuelen);
+}
+
+// Lean mode leaves wants at -1 until the first regular header of a request asks for a verdict; pseudo-headers
+// come first, so by then the stream's key is known.
 static bool decode_headers(nghttp2_hd_inflater* inflater, const uint8_t* data, size_t len,
-                           std::vector<std::pair<std::string, std::string>>& out_vec, std::string& out_method, std::string& out_path,
-                           std::string& out_authority, std::string& out_scheme, int& out_status) {
+                           Http2Stream& st, bool is_request, const H2LeanMode* lean, int& wants) {
+    auto& out_vec = is_request ? st.req_headers : st.resp_headers;
     const uint8_t* pos = data;
     size_t remaining = len;
 
@@ -168,17 +165,22 @@ static bool decode_headers(nghttp2_hd_inflater* inflater, const uint8_t* data, s
         }
 
         if (inflate_flags & NGHTTP2_HD_INFLATE_EMIT) {
-            std::string name (reinterpret_cast<const char*>(nv.name),  nv.namelen);
-            std::string value(reinterpret_cast<const char*>(nv.value), nv.valuelen);
-
-            if (name == ":method") out_method = value;
-            else if (name == ":path") out_path = value;
-            else if (name == ":authority") out_authority = value;
-            else if (name == ":scheme") out_scheme = value;
-            else if (name == ":status") {
-                out_status = 0;
-                for (char c : value) if (c >= '0' && c <= '9') out_status = out_status * 10 + (c - '0');
-            } else out_vec.push_back({name, value});
+            if (name_is(nv, ":method", 7)) { if (is_request) st.method = nv_value(nv); }
+            else if (name_is(nv, ":path", 5)) { if (is_request) st.path = nv_value(nv); }
+            else if (name_is(nv, ":authority", 10)) { if (is_request) st.authority = nv_value(nv); }
+            else if (name_is(nv, ":scheme", 7)) { if (is_request) st.scheme = nv_value(nv); }
+            else if (name_is(nv, ":status", 7)) {
+                st.status_code = 0;
+                for (size_t i = 0; i < nv.valuelen; i++) {
+                    uint8_t c = nv.value[i];
+                    if (c >= '0' && c <= '9') st.status_code = st.status_code * 10 + (c - '0');
+                }
+            } else {
+                if (wants < 0 && is_request) wants = lean->wants_headers(st, lean->ctx) ? 1 : 0;
+                if (wants > 0) {
+                    out_vec.push_back({std::string(reinterpret_cast<const char*>(nv.name), nv.namelen), nv_value(nv)});
+                }
+            }
         }
 
         pos += consumed; remaining -= (size_t)consumed;
@@ -201,13 +203,27 @@ static void snapshot_stream(Http2Connection* conn, Http2Stream& st, bool complet
     req.req_headers  = st.req_headers;
     req.resp_headers = st.resp_headers;
     req.status_code  = st.status_code;
+    if (complete) {
+        req.req_body  = std::move(st.req_body);
+        req.resp_body = std::move(st.resp_body);
+    }
 
     conn->completed.push_back(std::move(req));
 }
 
+static void append_body(std::vector<uint8_t>& body, bool& overflow, const uint8_t* data, uint32_t len) {
+    if (overflow) return;
+    if (body.size() + len > H2_MAX_BODY_SIZE) {
+        std::vector<uint8_t>().swap(body);
+        overflow = true;
+        return;
+    }
+    body.insert(body.end(), data, data + len);
+}
+
 static void process_frame(Http2Connection* conn, const uint8_t* data, uint32_t frame_len,
                           uint8_t frame_type, uint8_t flags, int stream_id,
-                          bool is_local, bool collect_resp_body) {
+                          bool is_local, bool collect_resp_body, const H2LeanMode* lean) {
     const uint8_t* payload = data + H2_FRAME_HEADER_SIZE;
 
     if (stream_id == 0) return;
@@ -259,30 +275,45 @@ static void process_frame(Http2Connection* conn, const uint8_t* data, uint32_t f
             std::lock_guard<std::mutex> inf_lk(is_local ? conn->local_inflater_mutex : conn->remote_inflater_mutex);
             
             if (is_local) {
-                decode_headers(inflater, block.data(), block.size(), st.req_headers, st.method, st.path, st.authority, st.scheme, st.status_code);
+                // In lean mode trailers are only inflated; the stream was judged on its first block.
+                int wants = lean == nullptr ? 1 : st.req_headers_done ? 0 : -1;
+                decode_headers(inflater, block.data(), block.size(), st, true, lean, wants);
                 st.req_headers_done = true;
-                
-                Http2EarlyCheck check;
-                check.stream_id = st.stream_id;
-                check.method = st.method;
-                check.path = st.path;
-                check.authority = st.authority;
-                check.scheme = st.scheme;
-                check.req_headers = st.req_headers;
-                conn->early_checks.push_back(std::move(check));
+                if (wants < 0) wants = lean->wants_headers(st, lean->ctx) ? 1 : 0;
+
+                if (lean == nullptr) {
+                    Http2EarlyCheck check;
+                    check.stream_id = st.stream_id;
+                    check.method = st.method;
+                    check.path = st.path;
+                    check.authority = st.authority;
+                    check.scheme = st.scheme;
+                    check.req_headers = st.req_headers;
+                    conn->early_checks.push_back(std::move(check));
+                } else if (wants > 0) {
+                    // Nothing reads the stream's copy again in lean mode.
+                    Http2EarlyCheck check;
+                    check.stream_id = st.stream_id;
+                    check.method = std::move(st.method);
+                    check.path = std::move(st.path);
+                    check.authority = std::move(st.authority);
+                    check.scheme = std::move(st.scheme);
+                    check.req_headers = std::move(st.req_headers);
+                    conn->early_checks.push_back(std::move(check));
+                }
 
                 if (flags & H2_FLAG_END_STREAM) st.req_end_stream = true;
                 if (st.is_complete()) {
-                    snapshot_stream(conn, st, true);
+                    if (lean == nullptr) snapshot_stream(conn, st, true);
                     conn->streams.erase(stream_id);
                 }
             } else {
-                std::string dm, dp, da, ds;
-                decode_headers(inflater, block.data(), block.size(), st.resp_headers, dm, dp, da, ds, st.status_code);
+                int wants = lean == nullptr ? 1 : 0;
+                decode_headers(inflater, block.data(), block.size(), st, false, lean, wants);
                 st.resp_headers_done = true;
                 if (flags & H2_FLAG_END_STREAM) {
                     st.resp_end_stream = true;
-                    snapshot_stream(conn, st, st.is_complete());
+                    if (lean == nullptr) snapshot_stream(conn, st, st.is_complete());
                     if (st.is_complete()) conn->streams.erase(stream_id);
                 }
             }
@@ -297,11 +328,11 @@ static void process_frame(Http2Connection* conn, const uint8_t* data, uint32_t f
             body_len = (frame_len > 1u + pad_len) ? frame_len - 1 - pad_len : 0;
         }
 
-        if (body_len > 0) {
+        if (body_len > 0 && lean == nullptr) {
             if (is_local) {
-                conn->data_chunks.push_back({stream_id, true, std::vector<uint8_t>(body, body + body_len)});
+                append_body(st.req_body, st.req_body_overflow, body, body_len);
             } else if (collect_resp_body) {
-                conn->data_chunks.push_back({stream_id, false, std::vector<uint8_t>(body, body + body_len)});
+                append_body(st.resp_body, st.resp_body_overflow, body, body_len);
             }
         }
 
@@ -310,14 +341,15 @@ static void process_frame(Http2Connection* conn, const uint8_t* data, uint32_t f
             else st.resp_end_stream = true;
             
             if (st.is_complete()) {
-                snapshot_stream(conn, st, true);
+                if (lean == nullptr) snapshot_stream(conn, st, true);
                 conn->streams.erase(stream_id);
             }
         }
     }
 }
 
-H2FeedResult h2_feed(std::shared_ptr<Http2Connection> conn, const uint8_t* data, size_t len, bool is_local, bool collect_resp_body) {
+H2FeedResult h2_feed(std::shared_ptr<Http2Connection> conn, const uint8_t* data, size_t len, bool is_local, bool collect_resp_body,
+                     const H2LeanMode* lean) {
     if (!conn) return {};
     
     std::mutex& io_mutex = is_local ? conn->tx_mutex : conn->rx_mutex;
@@ -358,7 +390,7 @@ H2FeedResult h2_feed(std::shared_ptr<Http2Connection> conn, const uint8_t* data,
         size_t total = H2_FRAME_HEADER_SIZE + (size_t)frame_len;
         if (buf.size() - offset < total) break;
 
-        process_frame(conn.get(), frame_ptr, frame_len, frame_type, flags, stream_id, is_local, collect_resp_body);
+        process_frame(conn.get(), frame_ptr, frame_len, frame_type, flags, stream_id, is_local, collect_resp_body, lean);
         offset += total;
     }
 
@@ -371,10 +403,8 @@ H2FeedResult h2_feed(std::shared_ptr<Http2Connection> conn, const uint8_t* data,
     {
         std::lock_guard<std::mutex> st_lk(conn->streams_mutex);
         result.early_checks = std::move(conn->early_checks);
-        result.data_chunks  = std::move(conn->data_chunks);
         result.completed    = std::move(conn->completed);
         conn->early_checks.clear();
-        conn->data_chunks.clear();
         conn->completed.clear();
     }
     
@@ -30,6 +30,9 @@ extern "C" {
 
 #define H2_MAX_PAYLOAD_SIZE (5 * 1024 * 1024)
 
+// Same ceiling as BufferPool.MAX_CAPTURE_SIZE; a body that outgrows it is dropped, not truncated.
+#define H2_MAX_BODY_SIZE (4 * 1024 * 1024)
+
 static const uint8_t H2_CLIENT_PREFACE[] = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n";
 static const size_t H2_CLIENT_PREFACE_LEN = 24;
 
@@ -54,6 +57,11 @@ struct Http2Stream {
 
     std::vector<uint8_t> pending_header_block;
 
+    std::vector<uint8_t> req_body;
+    std::vector<uint8_t> resp_body;
+    bool req_body_overflow  = false;
+    bool resp_body_overflow = false;
+
     bool is_complete() const {
         return req_headers_done && req_end_stream &&
                resp_headers_done && resp_end_stream;
@@ -69,12 +77,6 @@ struct Http2EarlyCheck {
     std::vector<std::pair<std::string, std::string>> req_headers;
 };
 
-struct Http2DataChunk {
-    int stream_id = 0;
-    bool is_request = false;
-    std::vector<uint8_t> data;
-};
-
 struct Http2Request {
     int  stream_id   = 0;
     bool is_complete = false;
@@ -87,12 +89,24 @@ struct Http2Request {
     std::vector<std::pair<std::string, std::string>> resp_headers;
     int status_code = -1;
 
+    // Only filled in once the stream is complete.
+    std::vector<uint8_t> req_body;
+    std::vector<uint8_t> resp_body;
+
     bool should_block = false;
 };
 
+// Lean decoding, used while nothing logs passing requests. Header blocks still go through the inflater so the
+// HPACK dynamic table stays in step with the peer, but only the request pseudo-headers are kept; a request's
+// regular headers are copied out only when wants_headers says Kotlin will see it, and response headers, bodies
+// and completions are not kept at all.
+struct H2LeanMode {
+    bool (*wants_headers)(const Http2Stream& st, const void* ctx);
+    const void* ctx;
+};
+
 struct H2FeedResult {
     std::vector<Http2EarlyCheck> early_checks;
-    std::vector<Http2DataChunk>  data_chunks;
     std::vector<Http2Request>    completed;
 };
 
@@ -110,7 +124,6 @@ struct Http2Connection {
     std::unordered_map<int, Http2Stream> streams;
     
     std::vector<Http2EarlyCheck> early_checks;
-    std::vector<Http2DataChunk>  data_chunks;
     std::vector<Http2Request>    completed;
     
     std::vector<std::vector<uint8_t>> pending_rst_frames;
@@ -136,7 +149,8 @@ void h2_free(uintptr_t conn_id);
 
 H2FeedResult h2_feed(std::shared_ptr<Http2Connection> conn,
                      const uint8_t* data, size_t len,
-                     bool is_local, bool collect_resp_body);
+                     bool is_local, bool collect_resp_body,
+                     const H2LeanMode* lean = nullptr);
 
 bool h2_is_http2(uintptr_t conn_id);
 std::vector<std::vector<uint8_t>> h2_take_rst_frames(uintptr_t conn_id);
@@ -0,0 +1,85 @@
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+#include <memory>
+
+// Read-only view of a rule blob as written by RuleBlob.kt (format 3). The blob stays where Kotlin put it,
+// usually the module's mapped rule file, so the pages are shared rather than copied; every offset is checked
+// once when the view is built, which lets the matcher index without bounds checks.
+
+struct IntView {
+    const int32_t* data = nullptr;
+    uint32_t count = 0;
+    int32_t operator[](uint32_t i) const { return data[i]; }
+};
+
+struct CharView {
+    const uint16_t* data = nullptr;
+    uint32_t count = 0;
+    uint16_t operator[](uint32_t i) const { return data[i]; }
+};
+
+struct StringTableView {
+    IntView offsets;
+    CharView chars;
+    uint32_t size() const { return offsets.count - 1; }
+};
+
+struct TrieView {
+    StringTableView values;
+    IntView edge_start;
+    CharView edge_chars;
+    IntView edge_targets;
+    IntView terminal;
+};
+
+struct DomainTableView {
+    IntView slots;
+    IntView hashes;
+    StringTableView domains;
+};
+
+struct KeywordView {
+    StringTableView keywords;
+    IntView edge_start;
+    CharView edge_chars;
+    IntView edge_targets;
+    IntView fail;
+    IntView output;
+};
+
+struct PatternView {
+    StringTableView patterns;
+    IntView types;
+    IntView class_starts;
+    IntView kind;
+    IntView out1;
+    IntView out2;
+    IntView class_range_start;
+    IntView class_ranges;
+    IntView start_states;
+};
+
+struct NativeRules {
+    TrieView url_prefixes;
+    DomainTableView domains;
+    TrieView domain_suffixes;
+    KeywordView keywords;
+    PatternView patterns;
+    int64_t version = 0;
+
+    // Keeps the blob alive; called once when the last user lets go of the view.
+    void* owner = nullptr;
+    void (*release)(void* owner) = nullptr;
+
+    ~NativeRules() { if (release) release(owner); }
+};
+
+// Returns null when data is not a complete, well-formed blob; release is then not called.
+std::shared_ptr<const NativeRules> native_rules_parse(const uint8_t* data, size_t size,
+                                                      void* owner, void (*release)(void*));
+
+// Same verdict as RuleSnapshot.match for a key that is already ASCII and lowercase, without saying which
+// rule hit. key[host_start, host_end) is the host.
+bool native_rules_match(const NativeRules& rules, const char* key, size_t len, size_t host_start, size_t host_end);
@@ -0,0 +1,73 @@
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+#include <mutex>
+#include <unordered_map>
+#include <utility>
+
+// Hash map cut into independently locked stripes, so hooks running on different connections rarely meet
+// on a lock. Keys are fds and SSL* / connection pointers; pointers share their low bits, hence the
+// multiplicative hash before picking a stripe. Values are copied out under the lock, which keeps
+// shared_ptr values alive for as long as a caller holds them no matter who erases the entry meanwhile.
+template <typename K, typename V, size_t STRIPES = 64>
+class StripedMap {
+    static_assert((STRIPES & (STRIPES - 1)) == 0, "stripe count must be a power of two");
+
+public:
+    using Map = std::unordered_map<K, V>;
+
+    static constexpr size_t STRIPE_COUNT = STRIPES;
+
+    // Runs fn on the stripe that holds key, with that stripe locked. fn must not reach for other keys.
+    template <typename F>
+    auto with(K key, F&& fn) -> decltype(fn(std::declval<Map&>())) {
+        Stripe& stripe = stripe_for(key);
+        std::lock_guard<std::mutex> lock(stripe.mutex);
+        return fn(stripe.map);
+    }
+
+    bool get(K key, V& out) {
+        Stripe& stripe = stripe_for(key);
+        std::lock_guard<std::mutex> lock(stripe.mutex);
+        auto it = stripe.map.find(key);
+        if (it == stripe.map.end()) return false;
+        out = it->second;
+        return true;
+    }
+
+    void put(K key, V value) {
+        Stripe& stripe = stripe_for(key);
+        std::lock_guard<std::mutex> lock(stripe.mutex);
+        stripe.map[key] = std::move(value);
+    }
+
+    // Moves the entry out so that destroying it happens after the stripe is unlocked.
+    bool take(K key, V& out) {
+        Stripe& stripe = stripe_for(key);
+        std::lock_guard<std::mutex> lock(stripe.mutex);
+        auto it = stripe.map.find(key);
+        if (it == stripe.map.end()) return false;
+        out = std::move(it->second);
+        stripe.map.erase(it);
+        return true;
+    }
+
+    void erase(K key) {
+        V doomed;
+        take(key, doomed);
+    }
+
+private:
+    struct alignas(64) Stripe {
+        std::mutex mutex;
+        Map map;
+    };
+
+    Stripe& stripe_for(K key) {
+        uint64_t hash = (uint64_t)key * 0x9E3779B97F4A7C15ULL;
+        return stripes_[(hash >> 32) & (STRIPES - 1)];
+    }
+
+    Stripe stripes_[STRIPES];
+};
@@ -17,8 +17,12 @@
 #include <atomic>
 #include <vector>
 #include <cstdlib>
+#include <algorithm>
+#include <cstring>
 #include "shadowhook.h"
 #include "http2_parser.h"
+#include "native_rules.h"
+#include "striped_map.h"
 
 #if DEBUG
     #define LOG_TAG "AdClose-Native"
@@ -31,22 +35,49 @@
 
 #define MAX_STACK_DEPTH 12
 #define JNI_MAX_BUFFER_MAPPING (2 * 1024 * 1024)
+#define RULES_CHECK_INTERVAL_MS 5000
+#define MAX_NATIVE_HEAD_SIZE (16 * 1024)
+#define MAX_NATIVE_BODY_SIZE (1LL << 40)
 
 static JavaVM *gJvm = nullptr;
 static jclass gNativeRequestHookClass = nullptr;
 static jmethodID gOnNativeDataMethod    = nullptr;
 static jmethodID gOnH2RequestMethod     = nullptr;
-static jmethodID gOnH2DataChunkMethod   = nullptr;
 static jmethodID gCollectRespBodyMethod = nullptr;
 static jmethodID gOnConnClosedMethod    = nullptr;
+static jmethodID gOnRulesCheckMethod    = nullptr;
 
 static pthread_key_t g_thread_key;
 thread_local bool g_is_in_hook = false;
 thread_local JNIEnv* tls_env = nullptr;
-static std::atomic<uint8_t> g_fd_cache[65536];
-static std::mutex g_cache_mutex;
-static std::unordered_map<jlong, std::string> g_stack_cache;
-static std::unordered_map<int, std::string> g_socket_info_cache;
+
+// What an fd is, as far as the hooks care. Every class but FD_UNKNOWN and FD_TCP is final until the fd
+// number is closed or replaced, so I/O on such fds costs one atomic load.
+#define FD_UNKNOWN      0
+#define FD_NOT_SOCKET   1 // files, pipes, eventfds
+#define FD_OTHER_SOCKET 2 // unix, netlink and datagram sockets: no HTTP/1 there
+#define FD_TCP          3 // watched
+#define FD_TLS          4 // TLS records, whose plaintext the SSL hooks see
+#define FD_PASSTHROUGH  5 // both directions given up after a verdict
+static std::atomic<uint8_t> g_fd_class[65536];
+static StripedMap<jlong, std::string> g_stack_cache;
+static StripedMap<int, std::string> g_socket_info_cache;
+#define STACK_CACHE_PER_STRIPE (2048 / decltype(g_stack_cache)::STRIPE_COUNT)
+
+// Bytes per connection direction that Kotlin has already accounted for without seeing them (the rest of a
+// body it is not collecting), or SKIP_ALL once it has nothing more to look for. Such bytes bypass the callback.
+#define SKIP_ALL INT64_MAX
+
+// Who parses a connection. Native takes one on its first write while it holds rules and passed requests are
+// not recorded, and hands it to Kotlin for good at the first request it cannot settle alone.
+#define OWNER_UNKNOWN 0
+#define OWNER_KOTLIN  1
+#define OWNER_NATIVE  2
+
+struct SkipState { int64_t bytes[2] = {0, 0}; uint8_t owner = OWNER_UNKNOWN; };
+static std::atomic<int64_t> g_fd_skip[65536][2];
+static std::atomic<uint8_t> g_fd_owner[65536];
+static StripedMap<jlong, SkipState> g_ssl_skip;
 
 typedef ssize_t (*type_send)(int, const void *, size_t, int);
 typedef ssize_t (*type_recv)(int, void *, size_t, int);
@@ -55,6 +86,10 @@ typedef ssize_t (*type_recvfrom)(int, void *, size_t, int, struct sockaddr *, so
 typedef ssize_t (*type_write)(int, const void *, size_t);
 typedef ssize_t (*type_read)(int, void *, size_t);
 typedef int (*type_close)(int);
+typedef int (*type_fdsan_close)(int, uint64_t);
+typedef int (*type_socket)(int, int, int);
+typedef int (*type_dup2)(int, int);
+typedef int (*type_dup3)(int, int, int);
 typedef int (*type_SSL_write)(void *ssl, const void *buf, int num);
 typedef int (*type_SSL_read)(void *ssl, void *buf, int num);
 typedef void (*type_SSL_free)(void *ssl);
@@ -66,6 +101,10 @@ static type_recvfrom orig_recvfrom;
 static type_write orig_write;
 static type_read orig_read;
 static type_close orig_close;
+static type_fdsan_close orig_fdsan_close;
+static type_socket orig_socket;
+static type_dup2 orig_dup2;
+static type_dup3 orig_dup3;
 
 struct SslHookEntry {
     const char* lib_name;
@@ -158,22 +197,20 @@ std::string get_native_stack_internal() {
 }
 
 std::string get_cached_stack(jlong id) {
-    std::lock_guard<std::mutex> lock(g_cache_mutex);
-    auto it = g_stack_cache.find(id);
-    if (it != g_stack_cache.end()) return it->second;
-    std::string stack = get_native_stack_internal();
-    if (g_stack_cache.size() >= 2048) g_stack_cache.clear();
-    g_stack_cache[id] = stack;
+    std::string stack;
+    if (g_stack_cache.get(id, stack)) return stack;
+    stack = get_native_stack_internal();
+    g_stack_cache.with(id, [&](std::unordered_map<jlong, std::string>& cache) {
+        if (cache.size() >= STACK_CACHE_PER_STRIPE) cache.clear();
+        cache[id] = stack;
+    });
     return stack;
 }
 
 std::string get_cached_socket_info(int fd) {
     if (fd <= 0) return "";
-    {
-        std::lock_guard<std::mutex> lock(g_cache_mutex);
-        auto it = g_socket_info_cache.find(fd);
-        if (it != g_socket_info_cache.end()) return it->second;
-    }
+    std::string cached;
+    if (g_socket_info_cache.get(fd, cached)) return cached;
     struct sockaddr_storage addr; socklen_t len = sizeof(addr);
     if (getpeername(fd, (struct sockaddr*)&addr, &len) != 0) return "";
     char ip_str[INET6_ADDRSTRLEN] = {0}; int port = 0;
@@ -185,24 +222,335 @@ std::string get_cached_socket_info(int fd) {
         port = ntohs(s->sin6_port); inet_ntop(AF_INET6, &s->sin6_addr, ip_str, sizeof(ip_str));
     } else return "unknown";
     std::string info = std::string(ip_str) + ":" + std::to_string(port);
-    std::lock_guard<std::mutex> lock(g_cache_mutex);
-    g_socket_info_cache[fd] = info;
+    g_socket_info_cache.put(fd, info);
     return info;
 }
 
+static inline bool fd_passes_through(int fd) {
+    if (fd < 0 || fd >= 65536) return true;
+    uint8_t cls = g_fd_class[fd].load(std::memory_order_relaxed);
+    return cls != FD_UNKNOWN && cls != FD_TCP;
+}
+
+// FD_UNKNOWN when the fd could not be looked at (it may not be open yet), so nothing is cached.
+static uint8_t classify_fd(int fd) {
+    struct stat statbuf;
+    if (fstat(fd, &statbuf) != 0) return FD_UNKNOWN;
+    if (!S_ISSOCK(statbuf.st_mode)) return FD_NOT_SOCKET;
+    int type = 0; socklen_t type_len = sizeof(type);
+    if (getsockopt(fd, SOL_SOCKET, SO_TYPE, &type, &type_len) != 0 || type != SOCK_STREAM) return FD_OTHER_SOCKET;
+    struct sockaddr_storage addr; socklen_t len = sizeof(addr);
+    if (getsockname(fd, (struct sockaddr*)&addr, &len) != 0) return FD_UNKNOWN;
+    return (addr.ss_family == AF_INET || addr.ss_family == AF_INET6) ? FD_TCP : FD_OTHER_SOCKET;
+}
+
 bool is_network_fd(int fd) {
     if (fd < 0 || fd >= 65536) return false;
-    uint8_t state = g_fd_cache[fd].load(std::memory_order_relaxed);
-    if (state != 0) return state == 2;
-    struct stat statbuf;
-    if (fstat(fd, &statbuf) != 0 || !S_ISSOCK(statbuf.st_mode)) {
-        g_fd_cache[fd].store(1, std::memory_order_relaxed); return false;
+    uint8_t cls = g_fd_class[fd].load(std::memory_order_relaxed);
+    if (cls == FD_UNKNOWN) {
+        uint8_t classified = classify_fd(fd);
+        if (classified == FD_UNKNOWN) return false;
+        // A close or a verdict that got in first wins.
+        if (g_fd_class[fd].compare_exchange_strong(cls, classified, std::memory_order_relaxed)) cls = classified;
     }
-    struct sockaddr_storage addr; socklen_t len = sizeof(addr);
-    if (getsockname(fd, (struct sockaddr*)&addr, &len) == 0 && (addr.ss_family == AF_INET || addr.ss_family == AF_INET6)) {
-        g_fd_cache[fd].store(2, std::memory_order_relaxed); return true;
+    return cls == FD_TCP;
+}
+
+static void settle_fd(int fd, uint8_t cls) {
+    if (fd < 0 || fd >= 65536) return;
+    uint8_t expected = FD_TCP;
+    g_fd_class[fd].compare_exchange_strong(expected, cls, std::memory_order_relaxed);
+}
+
+static bool looks_like_tls(const void *buf, size_t len) {
+    const uint8_t* p = static_cast<const uint8_t*>(buf);
+    return len >= 3 && p[0] == 0x16 && p[1] == 0x03 && p[2] <= 0x04;
+}
+
+static size_t take_skip(jlong id, bool is_ssl, bool is_write, size_t len) {
+    if (!is_ssl) {
+        if (id < 0 || id >= 65536) return 0;
+        std::atomic<int64_t>& skip = g_fd_skip[id][is_write];
+        int64_t pending = skip.load(std::memory_order_relaxed);
+        if (pending == 0) return 0;
+        if (pending == SKIP_ALL) return len;
+        size_t taken = (size_t)std::min<int64_t>(pending, (int64_t)len);
+        skip.fetch_sub((int64_t)taken, std::memory_order_relaxed);
+        return taken;
+    }
+    return g_ssl_skip.with(id, [&](std::unordered_map<jlong, SkipState>& states) -> size_t {
+        auto it = states.find(id);
+        if (it == states.end()) return 0;
+        int64_t& pending = it->second.bytes[is_write];
+        if (pending == SKIP_ALL) return len;
+        size_t taken = (size_t)std::min<int64_t>(pending, (int64_t)len);
+        pending -= (int64_t)taken;
+        if (it->second.bytes[0] == 0 && it->second.bytes[1] == 0 && it->second.owner == OWNER_UNKNOWN) states.erase(it);
+        return taken;
+    });
+}
+
+static void set_skip(jlong id, bool is_ssl, bool is_write, int64_t count) {
+    if (!is_ssl) {
+        if (id < 0 || id >= 65536) return;
+        g_fd_skip[id][is_write].store(count, std::memory_order_relaxed);
+        if (count == SKIP_ALL && g_fd_skip[id][!is_write].load(std::memory_order_relaxed) == SKIP_ALL) {
+            settle_fd((int)id, FD_PASSTHROUGH);
+        }
+        return;
+    }
+    g_ssl_skip.with(id, [&](std::unordered_map<jlong, SkipState>& states) { states[id].bytes[is_write] = count; });
+}
+
+static void clear_skip(jlong id, bool is_ssl) {
+    if (!is_ssl) {
+        if (id >= 0 && id < 65536) {
+            g_fd_skip[id][0].store(0, std::memory_order_relaxed);
+            g_fd_skip[id][1].store(0, std::memory_order_relaxed);
+            g_fd_owner[id].store(OWNER_UNKNOWN, std::memory_order_relaxed);
+        }
+        return;
+    }
+    g_ssl_skip.erase(id);
+}
+
+static uint8_t get_owner(jlong id, bool is_ssl) {
+    if (!is_ssl) {
+        return (id >= 0 && id < 65536) ? g_fd_owner[id].load(std::memory_order_relaxed) : OWNER_KOTLIN;
+    }
+    SkipState state;
+    return g_ssl_skip.get(id, state) ? state.owner : OWNER_UNKNOWN;
+}
+
+static void set_owner(jlong id, bool is_ssl, uint8_t owner) {
+    if (!is_ssl) {
+        if (id >= 0 && id < 65536) g_fd_owner[id].store(owner, std::memory_order_relaxed);
+        return;
+    }
+    g_ssl_skip.with(id, [&](std::unordered_map<jlong, SkipState>& states) { states[id].owner = owner; });
+}
+
+// Rules pushed by Kotlin through loadRules; swapped whole, so a lookup keeps the set it started with.
+static std::shared_ptr<const NativeRules> g_rules;
+static std::atomic<bool> g_record_passed{true};
+static std::atomic<uint64_t> g_next_rules_check_ms{0};
+
+// Null while requests have to go through Kotlin. Kotlin is asked every few seconds whether passed requests
+// are recorded; the same call lets it notice rule updates, which come back through loadRules.
+static std::shared_ptr<const NativeRules> fast_path_rules() {
+    uint64_t now = get_current_ms();
+    uint64_t due = g_next_rules_check_ms.load(std::memory_order_relaxed);
+    if (gNativeRequestHookClass == nullptr) return nullptr;
+    if (now >= due && gOnRulesCheckMethod != nullptr &&
+        g_next_rules_check_ms.compare_exchange_strong(due, now + RULES_CHECK_INTERVAL_MS)) {
+        JNIEnv *env = get_jni_env();
+        if (env) {
+            jboolean record = env->CallStaticBooleanMethod(gNativeRequestHookClass, gOnRulesCheckMethod);
+            if (!check_exception(env)) g_record_passed.store(record, std::memory_order_relaxed);
+        }
+    }
+    if (g_record_passed.load(std::memory_order_relaxed)) return nullptr;
+    return std::atomic_load(&g_rules);
+}
+
+static bool is_token_char(uint8_t c) {
+    return (c >= 'A' && c <= 'Z') || c == '-' || c == '_';
+}
+
+static bool is_native_method(const uint8_t* p, size_t len) {
+    static const char* const methods[] = { "GET", "POST", "PUT", "HEAD", "DELETE", "OPTIONS", "PATCH", "TRACE" };
+    for (const char* method : methods) {
+        if (strlen(method) == len && memcmp(p, method, len) == 0) return true;
     }
-    g_fd_cache[fd].store(1, std::memory_order_relaxed); return false;
+    return false;
+}
+
+enum FirstWrite { FIRST_WRITE_HTTP, FIRST_WRITE_OPAQUE, FIRST_WRITE_UNSURE };
+
+// Anything that does not open with an upper-case token and a space is not HTTP/1 and never will be on this
+// connection (TLS records, HTTP/2 is handled apart, game protocols).
+static FirstWrite classify_first_write(const uint8_t* buf, size_t len) {
+    if (!is_token_char(buf[0])) return (buf[0] == '\r' || buf[0] == '\n') ? FIRST_WRITE_UNSURE : FIRST_WRITE_OPAQUE;
+    size_t i = 1;
+    while (i < len && i < 16 && is_token_char(buf[i])) i++;
+    if (i == len) return FIRST_WRITE_UNSURE;
+    if (buf[i] != ' ') return FIRST_WRITE_OPAQUE;
+    return is_native_method(buf, i) ? FIRST_WRITE_HTTP : FIRST_WRITE_UNSURE;
+}
+
+static bool header_is(const uint8_t* line, size_t len, const char* name) {
+    size_t n = strlen(name);
+    if (len < n) return false;
+    for (size_t i = 0; i < n; i++) {
+        uint8_t c = line[i];
+        if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+        if (c != (uint8_t)name[i]) return false;
+    }
+    return true;
+}
+
+static char lower_ascii(uint8_t c) {
+    return (char)((c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c);
+}
+
+struct Http1Head {
+    size_t length = 0;
+    int64_t content_length = 0;
+    size_t host_start = 0;
+    size_t host_end = 0;
+};
+
+// Parses one complete request head at buf and builds its key, lowercased, the way Kotlin would
+// (scheme://host[:port]path). False means Kotlin has to see it: the head is cut short, the body is chunked,
+// or the URL is one whose key Kotlin derives by decoding or normalising it.
+static bool parse_request_head(const uint8_t* buf, size_t len, bool is_ssl, Http1Head& head, std::string& key) {
+    size_t limit = std::min(len, (size_t)MAX_NATIVE_HEAD_SIZE);
+
+    size_t method_end = 0;
+    while (method_end < limit && buf[method_end] != ' ') method_end++;
+    if (method_end == limit || !is_native_method(buf, method_end)) return false;
+
+    size_t target = method_end + 1;
+    size_t target_end = target;
+    while (target_end < limit && buf[target_end] > ' ') target_end++;
+    if (target_end == target || target_end == limit || buf[target_end] != ' ' || buf[target] != '/') return false;
+    if (limit - target_end - 1 < 7 || memcmp(buf + target_end + 1, "HTTP/1.", 7) != 0) return false;
+
+    const uint8_t* host = nullptr;
+    size_t host_len = 0;
+    bool has_length = false;
+    size_t pos = target_end + 1;
+    bool request_line = true;
+    while (true) {
+        const uint8_t* lf = static_cast<const uint8_t*>(memchr(buf + pos, '\n', limit - pos));
+        if (lf == nullptr) return false;
+        size_t end = lf - buf;
+        if (end == pos || buf[end - 1] != '\r') return false;
+        const uint8_t* line = buf + pos;
+        size_t line_len = end - 1 - pos;
+        pos = end + 1;
+        if (request_line) { request_line = false; continue; }
+        if (line_len == 0) break;
+        if (line[0] == ' ' || line[0] == '\t') return false;
+
+        if (header_is(line, line_len, "host:")) {
+            if (host != nullptr) return false;
+            size_t start = 5;
+            size_t stop = line_len;
+            while (start < stop && (line[start] == ' ' || line[start] == '\t')) start++;
+            while (stop > start && (line[stop - 1] == ' ' || line[stop - 1] == '\t')) stop--;
+            host = line + start;
+            host_len = stop - start;
+        } else if (header_is(line, line_len, "content-length:")) {
+            if (has_length) return false;
+            has_length = true;
+            size_t start = 15;
+            size_t stop = line_len;
+            while (start < stop && (line[start] == ' ' || line[start] == '\t')) start++;
+            while (stop > start && (line[stop - 1] == ' ' || line[stop - 1] == '\t')) stop--;
+            if (start == stop || stop - start > 13) return false;
+            int64_t value = 0;
+            for (size_t i = start; i < stop; i++) {
+                if (line[i] < '0' || line[i] > '9') return false;
+                value = value * 10 + (line[i] - '0');
+            }
+            head.content_length = value;
+        } else if (header_is(line, line_len, "transfer-encoding:") || header_is(line, line_len, "upgrade:")) {
+            return false;
+        }
+    }
+    if (host == nullptr || host_len == 0) return false;
+    head.length = pos;
+
+    key.clear();
+    key.append(is_ssl ? "https://" : "http://");
+    head.host_start = key.size();
+    size_t i = 0;
+    for (; i < host_len && host[i] != ':'; i++) {
+        uint8_t c = host[i];
+        bool ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                  c == '-' || c == '.' || c == '_';
+        if (!ok) return false;
+        key.push_back(lower_ascii(c));
+    }
+    head.host_end = key.size();
+    if (head.host_end == head.host_start) return false;
+    if (i < host_len) {
+        // Kotlin re-renders the port from its number.
+        size_t digits = host_len - i - 1;
+        if (digits == 0 || digits > 5 || (digits > 1 && host[i + 1] == '0')) return false;
+        int port = 0;
+        for (size_t d = i + 1; d < host_len; d++) {
+            if (host[d] < '0' || host[d] > '9') return false;
+            port = port * 10 + (host[d] - '0');
+        }
+        if (port > 65535) return false;
+        key.append(reinterpret_cast<const char*>(host + i), host_len - i);
+    }
+
+    // The path goes through Uri.getPath and URLDecoder on the Kotlin side.
+    for (size_t p = target; p < target_end; p++) {
+        uint8_t c = buf[p];
+        if (c == '?' || c == '#') break;
+        if (c >= 0x7f || c == '%' || c == '+') return false;
+        key.push_back(lower_ascii(c));
+    }
+    return true;
+}
+
+// Settles the requests that start at buf: those that match no rule pass without Kotlin and their bodies
+// are skipped. Returns how many bytes were settled; the rest, from the first request Kotlin has to see, is
+// Kotlin's.
+static size_t scan_requests(const NativeRules& rules, jlong id, bool is_ssl, const uint8_t* buf, size_t len) {
+    thread_local std::string key;
+    size_t offset = 0;
+    while (offset < len) {
+        Http1Head head;
+        if (!parse_request_head(buf + offset, len - offset, is_ssl, head, key)) return offset;
+        if (head.content_length > MAX_NATIVE_BODY_SIZE) return offset;
+        if (native_rules_match(rules, key.data(), key.size(), head.host_start, head.host_end)) return offset;
+
+        offset += head.length;
+        int64_t available = (int64_t)(len - offset);
+        if (head.content_length > available) {
+            set_skip(id, is_ssl, true, head.content_length - available);
+            return len;
+        }
+        offset += (size_t)head.content_length;
+    }
+    return len;
+}
+
+// How many bytes at buf native settled without calling Kotlin. Whatever is left is passed up, and the
+// connection is Kotlin's from then on.
+static size_t settle_natively(jlong id, bool is_write, const uint8_t* buf, size_t len, bool is_ssl) {
+    std::shared_ptr<const NativeRules> rules = is_write ? fast_path_rules() : nullptr;
+    if (rules == nullptr) {
+        set_owner(id, is_ssl, OWNER_KOTLIN);
+        return 0;
+    }
+
+    if (get_owner(id, is_ssl) == OWNER_UNKNOWN) {
+        switch (classify_first_write(buf, len)) {
+            case FIRST_WRITE_OPAQUE:
+                set_owner(id, is_ssl, OWNER_NATIVE);
+                set_skip(id, is_ssl, true, SKIP_ALL);
+                set_skip(id, is_ssl, false, SKIP_ALL);
+                return len;
+            case FIRST_WRITE_UNSURE:
+                set_owner(id, is_ssl, OWNER_KOTLIN);
+                return 0;
+            case FIRST_WRITE_HTTP:
+                // Responses only matter for recording, so native never reads them.
+                set_owner(id, is_ssl, OWNER_NATIVE);
+                set_skip(id, is_ssl, false, SKIP_ALL);
+                break;
+        }
+    }
+
+    size_t settled = scan_requests(*rules, id, is_ssl, buf, len);
+    if (settled < len) set_owner(id, is_ssl, OWNER_KOTLIN);
+    return settled;
 }
 
 void notify_kotlin_close(jlong id, bool is_ssl) {
@@ -215,9 +563,25 @@ void notify_kotlin_close(jlong id, bool is_ssl) {
 
 bool callback_kotlin(jlong id, bool is_write, const void *buf, size_t len, bool is_ssl) {
     if (gNativeRequestHookClass == nullptr || buf == nullptr || len == 0) return false;
-    if (len > JNI_MAX_BUFFER_MAPPING) return false;
     if (!is_ssl && !is_network_fd((int)id)) return false;
 
+    size_t skipped = take_skip(id, is_ssl, is_write, len);
+    if (skipped == len) return false;
+    if (!is_ssl && skipped == 0 && is_write && get_owner(id, false) == OWNER_UNKNOWN && looks_like_tls(buf, len)) {
+        settle_fd((int)id, FD_TLS);
+        return false;
+    }
+    buf = static_cast<const uint8_t*>(buf) + skipped;
+    len -= skipped;
+
+    if (get_owner(id, is_ssl) != OWNER_KOTLIN) {
+        size_t settled = settle_natively(id, is_write, static_cast<const uint8_t*>(buf), len, is_ssl);
+        if (settled == len) return false;
+        buf = static_cast<const uint8_t*>(buf) + settled;
+        len -= settled;
+    }
+    if (len > JNI_MAX_BUFFER_MAPPING) return false;
+
     JNIEnv *env = get_jni_env();
     if (!env) return false;
 
@@ -246,16 +610,69 @@ bool callback_kotlin(jlong id, bool is_write, const void *buf, size_t len, bool
         }
     }
 
-    jboolean shouldBlock = env->CallStaticBooleanMethod(
+    jlong verdict = env->CallStaticLongMethod(
         gNativeRequestHookClass, gOnNativeDataMethod, id, is_write, jBuffer, jInfo, jStack, is_ssl
     );
 
     if (check_exception(env)) return false;
-    return (bool)shouldBlock;
+    if (verdict < 0) return true;
+    if (verdict > 0) set_skip(id, is_ssl, is_write, verdict);
+    return false;
+}
+
+// True when the stream's key is one native can build as Kotlin does (RequestKey.of over scheme, authority
+// and the path up to '?') and it matches no rule.
+static bool h2_passes_natively(const NativeRules& rules, const std::string& scheme,
+                               const std::string& authority, const std::string& path) {
+    static const std::string DEFAULT_SCHEME = "https";
+    thread_local std::string key;
+    key.clear();
+    for (char c : scheme.empty() ? DEFAULT_SCHEME : scheme) {
+        if ((uint8_t)c >= 0x7f) return false;
+        key.push_back(lower_ascii((uint8_t)c));
+    }
+    key.append("://");
+    size_t host_start = key.size();
+    size_t host_end = std::string::npos;
+    for (char c : authority) {
+        uint8_t b = (uint8_t)c;
+        if (b <= ' ' || b >= 0x7f || b == '@' || b == '[') return false;
+        if (b == ':' && host_end == std::string::npos) host_end = key.size();
+        key.push_back(lower_ascii(b));
+    }
+    if (host_end == std::string::npos) host_end = key.size();
+    if (host_end == host_start) return false;
+    for (char c : path) {
+        uint8_t b = (uint8_t)c;
+        if (b == '?') break;
+        if (b >= 0x7f) return false;
+        key.push_back(lower_ascii(b));
+    }
+    return !native_rules_match(rules, key.data(), key.size(), host_start, host_end);
+}
+
+static bool h2_passes_natively(const NativeRules& rules, const Http2EarlyCheck& check) {
+    return h2_passes_natively(rules, check.scheme, check.authority, check.path);
+}
+
+static bool h2_stream_needs_kotlin(const Http2Stream& st, const void* rules) {
+    return !h2_passes_natively(*static_cast<const NativeRules*>(rules), st.scheme, st.authority, st.path);
 }
 
 bool callback_kotlin_h2(uintptr_t conn_id, const H2FeedResult& feed_result) {
-    if (gNativeRequestHookClass == nullptr || gOnH2RequestMethod == nullptr || gOnH2DataChunkMethod == nullptr) return false;
+    if (gNativeRequestHookClass == nullptr || gOnH2RequestMethod == nullptr) return false;
+
+    // Without recording, Kotlin only needs the streams that may be blocked; bodies and completions are for
+    // the log.
+    std::shared_ptr<const NativeRules> rules = fast_path_rules();
+    if (rules != nullptr) {
+        bool any = false;
+        for (const auto& check : feed_result.early_checks) {
+            if (!h2_passes_natively(*rules, check)) { any = true; break; }
+        }
+        if (!any) return false;
+    }
+
     JNIEnv *env = get_jni_env();
     if (!env) return false;
     
@@ -263,6 +680,7 @@ bool callback_kotlin_h2(uintptr_t conn_id, const H2FeedResult& feed_result) {
     std::unordered_set<int> newly_blocked_streams;
     
     for (const auto& check : feed_result.early_checks) {
+        if (rules != nullptr && h2_passes_natively(*rules, check)) continue;
         JniLocalRefGuard refGuard(env);
 
         std::string req_hdr_str;
@@ -278,7 +696,7 @@ bool callback_kotlin_h2(uintptr_t conn_id, const H2FeedResult& feed_result) {
 
         jboolean blocked = env->CallStaticBooleanMethod(
             gNativeRequestHookClass, gOnH2RequestMethod, (jlong)conn_id, (jint)check.stream_id, 
-            jMethod, jPath, jAuthority, jScheme, jReqHdr, nullptr, (jint)-1, (jboolean)false
+            jMethod, jPath, jAuthority, jScheme, jReqHdr, nullptr, (jint)-1, (jboolean)false, nullptr, nullptr
         );
 
         if (check_exception(env)) blocked = false;
@@ -291,18 +709,7 @@ bool callback_kotlin_h2(uintptr_t conn_id, const H2FeedResult& feed_result) {
         }
     }
 
-    for (const auto& chunk : feed_result.data_chunks) {
-        if (newly_blocked_streams.count(chunk.stream_id)) continue;
-        if (chunk.data.size() > JNI_MAX_BUFFER_MAPPING) continue;
-        
-        JniLocalRefGuard refGuard(env);
-        jobject jBuffer = refGuard.add(env->NewDirectByteBuffer((void*)chunk.data.data(), chunk.data.size()));
-        if (jBuffer == nullptr) continue;
-
-        env->CallStaticVoidMethod(gNativeRequestHookClass, gOnH2DataChunkMethod,
-                                  (jlong)conn_id, (jint)chunk.stream_id, (jboolean)chunk.is_request, jBuffer);
-        check_exception(env);
-    }
+    if (rules != nullptr) return should_block;
 
     for (const auto& req : feed_result.completed) {
         if (newly_blocked_streams.count(req.stream_id)) continue;
@@ -318,12 +725,18 @@ bool callback_kotlin_h2(uintptr_t conn_id, const H2FeedResult& feed_result) {
         jstring jScheme = refGuard.add(env->NewStringUTF(req.scheme.c_str()));
         jstring jReqHdr = refGuard.add(env->NewStringUTF(req_hdr_str.c_str()));
         jstring jRespHdr = refGuard.add(env->NewStringUTF(resp_hdr_str.c_str()));
+        // Views over the stream's own buffers, valid for the duration of the call only.
+        jobject jReqBody = req.req_body.empty() ? nullptr
+            : refGuard.add(env->NewDirectByteBuffer((void*)req.req_body.data(), (jlong)req.req_body.size()));
+        jobject jRespBody = req.resp_body.empty() ? nullptr
+            : refGuard.add(env->NewDirectByteBuffer((void*)req.resp_body.data(), (jlong)req.resp_body.size()));
         
         if (check_exception(env)) continue;
 
         jboolean blocked = env->CallStaticBooleanMethod(
             gNativeRequestHookClass, gOnH2RequestMethod, (jlong)conn_id, (jint)req.stream_id, 
-            jMethod, jPath, jAuthority, jScheme, jReqHdr, jRespHdr, (jint)req.status_code, (jboolean)true
+            jMethod, jPath, jAuthority, jScheme, jReqHdr, jRespHdr, (jint)req.status_code, (jboolean)true,
+            jReqBody, jRespBody
         );
 
         if (check_exception(env)) blocked = false;
@@ -347,55 +760,123 @@ bool callback_collect_resp_body() {
 }
 
 ssize_t hook_send(int s, const void *buf, size_t len, int flags) {
-    if (g_is_in_hook) return orig_send(s, buf, len, flags);
+    if (fd_passes_through(s) || g_is_in_hook) return orig_send(s, buf, len, flags);
     ScopedHookGuard guard;
     if (callback_kotlin((jlong)s, true, buf, len, false)) { errno = ECONNRESET; return -1; }
     return orig_send(s, buf, len, flags);
 }
 ssize_t hook_recv(int s, void *buf, size_t len, int flags) {
-    if (g_is_in_hook) return orig_recv(s, buf, len, flags);
+    if (fd_passes_through(s) || g_is_in_hook) return orig_recv(s, buf, len, flags);
     ScopedHookGuard guard;
     ssize_t ret = orig_recv(s, buf, len, flags);
     if (ret > 0) callback_kotlin((jlong)s, false, buf, ret, false);
     return ret;
 }
 ssize_t hook_sendto(int s, const void *buf, size_t len, int flags, const struct sockaddr *to, socklen_t tolen) {
-    if (g_is_in_hook) return orig_sendto(s, buf, len, flags, to, tolen);
+    if (fd_passes_through(s) || g_is_in_hook) return orig_sendto(s, buf, len, flags, to, tolen);
     ScopedHookGuard guard;
     if (callback_kotlin((jlong)s, true, buf, len, false)) { errno = ECONNRESET; return -1; }
     return orig_sendto(s, buf, len, flags, to, tolen);
 }
 ssize_t hook_recvfrom(int s, void *buf, size_t len, int flags, struct sockaddr *from, socklen_t *fromlen) {
-    if (g_is_in_hook) return orig_recvfrom(s, buf, len, flags, from, fromlen);
+    if (fd_passes_through(s) || g_is_in_hook) return orig_recvfrom(s, buf, len, flags, from, fromlen);
     ScopedHookGuard guard;
     ssize_t ret = orig_recvfrom(s, buf, len, flags, from, fromlen);
     if (ret > 0) callback_kotlin((jlong)s, false, buf, ret, false);
     return ret;
 }
 ssize_t hook_write(int fd, const void *buf, size_t count) {
-    if (g_is_in_hook || fd <= 2) return orig_write(fd, buf, count);
+    if (fd_passes_through(fd) || g_is_in_hook) return orig_write(fd, buf, count);
     ScopedHookGuard guard;
-    if (fd < 65536 && g_fd_cache[fd].load(std::memory_order_relaxed) == 1) return orig_write(fd, buf, count);
     if (callback_kotlin((jlong)fd, true, buf, count, false)) { errno = ECONNRESET; return -1; }
     return orig_write(fd, buf, count);
 }
 ssize_t hook_read(int fd, void *buf, size_t count) {
-    if (g_is_in_hook || fd <= 2) return orig_read(fd, buf, count);
+    if (fd_passes_through(fd) || g_is_in_hook) return orig_read(fd, buf, count);
     ScopedHookGuard guard;
-    if (fd < 65536 && g_fd_cache[fd].load(std::memory_order_relaxed) == 1) return orig_read(fd, buf, count);
     ssize_t ret = orig_read(fd, buf, count);
     if (ret > 0) callback_kotlin((jlong)fd, false, buf, ret, false);
     return ret;
 }
+// The fd number is being closed or now names something else. Only sockets the hooks looked at carry state
+// beyond their class; Kotlin is told only if it saw the connection and is not already on this thread's stack.
+static void forget_fd(int fd, bool notify) {
+    if (fd < 0 || fd >= 65536) return;
+    uint8_t cls = g_fd_class[fd].exchange(FD_UNKNOWN, std::memory_order_relaxed);
+    if (cls == FD_UNKNOWN || cls == FD_NOT_SOCKET || cls == FD_OTHER_SOCKET) return;
+    g_stack_cache.erase((jlong)fd);
+    g_socket_info_cache.erase(fd);
+    bool seen_by_kotlin = get_owner((jlong)fd, false) == OWNER_KOTLIN;
+    clear_skip((jlong)fd, false);
+    if (notify && seen_by_kotlin) notify_kotlin_close((jlong)fd, false);
+}
+
 int hook_close(int fd) {
-    if (g_is_in_hook) return orig_close(fd);
+    if (g_is_in_hook) {
+        forget_fd(fd, false);
+        return orig_close(fd);
+    }
     ScopedHookGuard guard;
-    if (fd >= 0 && fd < 65536) g_fd_cache[fd].store(0, std::memory_order_relaxed);
-    { std::lock_guard<std::mutex> lock(g_cache_mutex); g_stack_cache.erase((jlong)fd); g_socket_info_cache.erase(fd); }
-    notify_kotlin_close((jlong)fd, false);
+    forget_fd(fd, true);
     return orig_close(fd);
 }
 
+// libcore closes Java sockets and streams through fdsan, which goes straight to the syscall without close().
+int hook_fdsan_close(int fd, uint64_t tag) {
+    if (g_is_in_hook) {
+        forget_fd(fd, false);
+        return orig_fdsan_close(fd, tag);
+    }
+    ScopedHookGuard guard;
+    forget_fd(fd, true);
+    return orig_fdsan_close(fd, tag);
+}
+
+// Backstop for closes no hook saw (close_range, raw syscalls): whatever the number held before is gone.
+int hook_socket(int domain, int type, int protocol) {
+    int fd = orig_socket(domain, type, protocol);
+    if (fd < 0) return fd;
+    if (g_is_in_hook) {
+        forget_fd(fd, false);
+        return fd;
+    }
+    ScopedHookGuard guard;
+    forget_fd(fd, true);
+    return fd;
+}
+
+// dup2 and dup3 close newfd silently when it is open.
+int hook_dup2(int oldfd, int newfd) {
+    int ret = orig_dup2(oldfd, newfd);
+    if (ret < 0 || oldfd == newfd) return ret;
+    if (g_is_in_hook) {
+        forget_fd(newfd, false);
+        return ret;
+    }
+    ScopedHookGuard guard;
+    forget_fd(newfd, true);
+    return ret;
+}
+
+int hook_dup3(int oldfd, int newfd, int flags) {
+    int ret = orig_dup3(oldfd, newfd, flags);
+    if (ret < 0) return ret;
+    if (g_is_in_hook) {
+        forget_fd(newfd, false);
+        return ret;
+    }
+    ScopedHookGuard guard;
+    forget_fd(newfd, true);
+    return ret;
+}
+
+// A forked child has no JVM to call into, so interception ends there; its fd table is a copy it may
+// reshuffle before exec.
+static void on_fork_child() {
+    gNativeRequestHookClass = nullptr;
+    for (auto& cls : g_fd_class) cls.store(FD_UNKNOWN, std::memory_order_relaxed);
+}
+
 template<int IDX>
 int hook_SSL_write_t(void *ssl, const void *buf, int num) {
     if (g_is_in_hook) return g_ssl_hooks[IDX].orig_ssl_write(ssl, buf, num);
@@ -406,9 +887,12 @@ int hook_SSL_write_t(void *ssl, const void *buf, int num) {
     std::vector<std::vector<uint8_t>> local_rst_queue;
 
     if (h2conn != nullptr && buf != nullptr && num > 0) {
-        bool collect = h2conn->h2_checked && h2conn->is_h2 && callback_collect_resp_body();
-        auto feed_res = h2_feed(h2conn, static_cast<const uint8_t*>(buf), (size_t)num, true, collect);
-        if (!feed_res.early_checks.empty() || !feed_res.data_chunks.empty() || !feed_res.completed.empty()) {
+        std::shared_ptr<const NativeRules> rules = fast_path_rules();
+        H2LeanMode lean{h2_stream_needs_kotlin, rules.get()};
+        bool collect = h2conn->h2_checked && h2conn->is_h2 && rules == nullptr && callback_collect_resp_body();
+        auto feed_res = h2_feed(h2conn, static_cast<const uint8_t*>(buf), (size_t)num, true, collect,
+                                rules != nullptr ? &lean : nullptr);
+        if (!feed_res.early_checks.empty() || !feed_res.completed.empty()) {
             callback_kotlin_h2(conn_id, feed_res);
         }
         
@@ -447,9 +931,12 @@ int hook_SSL_read_t(void *ssl, void *buf, int num) {
         if (h2_is_http2(conn_id)) {
             std::shared_ptr<Http2Connection> h2conn = h2_get_or_create(conn_id);
             if (h2conn != nullptr) {
-                bool collect = callback_collect_resp_body();
-                auto feed_res = h2_feed(h2conn, static_cast<const uint8_t*>(buf), (size_t)ret, false, collect);
-                if (!feed_res.early_checks.empty() || !feed_res.data_chunks.empty() || !feed_res.completed.empty()) {
+                std::shared_ptr<const NativeRules> rules = fast_path_rules();
+                H2LeanMode lean{h2_stream_needs_kotlin, rules.get()};
+                bool collect = rules == nullptr && callback_collect_resp_body();
+                auto feed_res = h2_feed(h2conn, static_cast<const uint8_t*>(buf), (size_t)ret, false, collect,
+                                        rules != nullptr ? &lean : nullptr);
+                if (!feed_res.early_checks.empty() || !feed_res.completed.empty()) {
                     callback_kotlin_h2(conn_id, feed_res);
                 }
             }
@@ -462,8 +949,9 @@ template<int IDX>
 void hook_SSL_free_t(void *ssl) {
     if (g_is_in_hook) { g_ssl_hooks[IDX].orig_ssl_free(ssl); return; }
     ScopedHookGuard guard;
-    { std::lock_guard<std::mutex> lock(g_cache_mutex); g_stack_cache.erase(reinterpret_cast<jlong>(ssl)); }
+    g_stack_cache.erase(reinterpret_cast<jlong>(ssl));
     h2_free(reinterpret_cast<uintptr_t>(ssl));
+    clear_skip(reinterpret_cast<jlong>(ssl), true);
     notify_kotlin_close(reinterpret_cast<jlong>(ssl), true);
     g_ssl_hooks[IDX].orig_ssl_free(ssl);
 }
@@ -486,8 +974,11 @@ Java_com_close_hook_ads_hook_network_NativeRequestHook_feedH2Data(
     std::shared_ptr<Http2Connection> conn = h2_get_or_create((uintptr_t)connId);
     bool should_block = false;
     if (conn != nullptr) {
-        auto feed_res = h2_feed(conn, (const uint8_t*)(buf + offset), (size_t)length, (bool)isLocal, (bool)collectRespBody);
-        if (!feed_res.early_checks.empty() || !feed_res.data_chunks.empty() || !feed_res.completed.empty()) {
+        std::shared_ptr<const NativeRules> rules = fast_path_rules();
+        H2LeanMode lean{h2_stream_needs_kotlin, rules.get()};
+        auto feed_res = h2_feed(conn, (const uint8_t*)(buf + offset), (size_t)length, (bool)isLocal, (bool)collectRespBody,
+                                rules != nullptr ? &lean : nullptr);
+        if (!feed_res.early_checks.empty() || !feed_res.completed.empty()) {
             should_block = callback_kotlin_h2((uintptr_t)connId, feed_res);
         }
     }
@@ -501,6 +992,27 @@ Java_com_close_hook_ads_hook_network_NativeRequestHook_freeH2Conn(JNIEnv *env, j
     h2_free((uintptr_t)connId);
 }
 
+static void release_rules_blob(void* blob) {
+    JNIEnv *env = get_jni_env();
+    if (env) env->DeleteGlobalRef(static_cast<jobject>(blob));
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_close_hook_ads_hook_network_NativeRequestHook_loadRules(JNIEnv *env, jobject thiz, jobject blob) {
+    std::shared_ptr<const NativeRules> rules;
+    if (blob != nullptr) {
+        auto* data = static_cast<const uint8_t*>(env->GetDirectBufferAddress(blob));
+        jlong capacity = env->GetDirectBufferCapacity(blob);
+        jobject ref = data != nullptr && capacity > 0 ? env->NewGlobalRef(blob) : nullptr;
+        if (ref != nullptr) {
+            rules = native_rules_parse(data, (size_t)capacity, ref, release_rules_blob);
+            if (rules == nullptr) env->DeleteGlobalRef(ref);
+        }
+    }
+    std::atomic_store(&g_rules, rules);
+    return blob == nullptr || rules != nullptr;
+}
+
 extern "C" JNIEXPORT void JNICALL
 Java_com_close_hook_ads_hook_network_NativeRequestHook_initNativeHook(JNIEnv *env, jobject thiz, jboolean enableNativeHook) {
     env->GetJavaVM(&gJvm);
@@ -509,11 +1021,11 @@ Java_com_close_hook_ads_hook_network_NativeRequestHook_initNativeHook(JNIEnv *en
     if (!clazz) return;
     gNativeRequestHookClass = (jclass) env->NewGlobalRef(clazz);
     
-    gOnNativeDataMethod = env->GetStaticMethodID(clazz, "onNativeData", "(JZLjava/nio/ByteBuffer;Ljava/lang/String;Ljava/lang/String;Z)Z");
-    gOnH2RequestMethod = env->GetStaticMethodID(clazz, "onH2Request", "(JILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;IZ)Z");
-    gOnH2DataChunkMethod = env->GetStaticMethodID(clazz, "onH2DataChunk", "(JIZLjava/nio/ByteBuffer;)V");
+    gOnNativeDataMethod = env->GetStaticMethodID(clazz, "onNativeData", "(JZLjava/nio/ByteBuffer;Ljava/lang/String;Ljava/lang/String;Z)J");
+    gOnH2RequestMethod = env->GetStaticMethodID(clazz, "onH2Request", "(JILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;IZLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;)Z");
     gCollectRespBodyMethod = env->GetStaticMethodID(clazz, "getCollectResponseBody", "()Z");
     gOnConnClosedMethod = env->GetStaticMethodID(clazz, "onConnectionClosed", "(JZ)V");
+    gOnRulesCheckMethod = env->GetStaticMethodID(clazz, "onRulesCheck", "()Z");
 
     if (enableNativeHook) {
         shadowhook_init(SHADOWHOOK_MODE_UNIQUE, true);
@@ -524,6 +1036,11 @@ Java_com_close_hook_ads_hook_network_NativeRequestHook_initNativeHook(JNIEnv *en
         hook_func("libc.so", "write", (void*)hook_write, (void**)&orig_write);
         hook_func("libc.so", "read", (void*)hook_read, (void**)&orig_read);
         hook_func("libc.so", "close", (void*)hook_close, (void**)&orig_close);
+        hook_func("libc.so", "android_fdsan_close_with_tag", (void*)hook_fdsan_close, (void**)&orig_fdsan_close);
+        hook_func("libc.so", "socket", (void*)hook_socket, (void**)&orig_socket);
+        hook_func("libc.so", "dup2", (void*)hook_dup2, (void**)&orig_dup2);
+        hook_func("libc.so", "dup3", (void*)hook_dup3, (void**)&orig_dup3);
+        pthread_atfork(nullptr, nullptr, on_fork_child);
         for (int i = 0; i < SSL_HOOK_COUNT; i++) {
             const char* lib = g_ssl_hooks[i].lib_name;
             hook_func(lib, "SSL_write", (void*)ssl_write_hooks[i], (void**)&g_ssl_hooks[i].orig_ssl_write);
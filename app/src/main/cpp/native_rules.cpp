@@ -0,0 +1,376 @@
+#include "native_rules.h"
+#include <algorithm>
+#include <cstring>
+#include <vector>
+
+namespace {
+
+constexpr int32_t BLOB_MAGIC = 0x42524441; // "ADRB"
+constexpr int32_t BLOB_FORMAT_VERSION = 3;
+constexpr size_t BLOB_HEADER_SIZE = 24;
+
+constexpr int32_t NO_STATE = -1;
+constexpr int32_t NO_VALUE = -1;
+constexpr int32_t EMPTY_SLOT = -1;
+constexpr int32_t NO_OUTPUT = INT32_MAX;
+
+constexpr int32_t KIND_CHARS = 0;
+constexpr int32_t KIND_SPLIT = 1;
+constexpr int32_t KIND_MATCH = 2;
+constexpr int32_t KIND_MATCH_END = 3;
+
+// Sections start on four-byte boundaries of the blob, so the arrays are read in place.
+class BlobReader {
+public:
+    BlobReader(const uint8_t* data, size_t size) : data_(data), size_(size) {}
+
+    bool ok = true;
+
+    int32_t int_value() {
+        if (!ok || size_ - pos_ < 4) { ok = false; return 0; }
+        int32_t value;
+        memcpy(&value, data_ + pos_, 4);
+        pos_ += 4;
+        return value;
+    }
+
+    int64_t long_value() {
+        uint32_t low = (uint32_t)int_value();
+        uint32_t high = (uint32_t)int_value();
+        return (int64_t)(((uint64_t)high << 32) | low);
+    }
+
+    IntView ints() {
+        int32_t count = int_value();
+        if (!ok || count < 0 || (size_ - pos_) / 4 < (size_t)count) { ok = false; return {}; }
+        IntView view { reinterpret_cast<const int32_t*>(data_ + pos_), (uint32_t)count };
+        pos_ += (size_t)count * 4;
+        return view;
+    }
+
+    CharView chars() {
+        int32_t count = int_value();
+        if (!ok || count < 0) { ok = false; return {}; }
+        size_t bytes = (size_t)count * 2 + (count % 2 != 0 ? 2 : 0);
+        if (size_ - pos_ < bytes) { ok = false; return {}; }
+        CharView view { reinterpret_cast<const uint16_t*>(data_ + pos_), (uint32_t)count };
+        pos_ += bytes;
+        return view;
+    }
+
+    bool at_end() const { return ok && pos_ == size_; }
+
+private:
+    const uint8_t* data_;
+    size_t size_;
+    size_t pos_ = 0;
+};
+
+bool in_range(int32_t value, uint32_t count) {
+    return value >= 0 && (uint32_t)value < count;
+}
+
+bool read_strings(BlobReader& reader, StringTableView& out) {
+    out.offsets = reader.ints();
+    out.chars = reader.chars();
+    if (!reader.ok || out.offsets.count == 0 || out.offsets[0] != 0) return false;
+    for (uint32_t i = 1; i < out.offsets.count; i++) {
+        if (out.offsets[i] < out.offsets[i - 1]) return false;
+    }
+    return (uint32_t)out.offsets[out.offsets.count - 1] <= out.chars.count;
+}
+
+// edge_start has one entry per node plus the end; edges of a node are sorted by char and point at nodes.
+bool check_edges(const IntView& edge_start, const CharView& edge_chars, const IntView& edge_targets) {
+    if (edge_start.count == 0 || edge_chars.count != edge_targets.count) return false;
+    uint32_t nodes = edge_start.count - 1;
+    if (edge_start[0] != 0 || (uint32_t)edge_start[nodes] != edge_targets.count) return false;
+    for (uint32_t i = 1; i <= nodes; i++) {
+        if (edge_start[i] < edge_start[i - 1]) return false;
+    }
+    for (uint32_t i = 0; i < edge_targets.count; i++) {
+        if (!in_range(edge_targets[i], nodes)) return false;
+    }
+    return true;
+}
+
+bool read_trie(BlobReader& reader, TrieView& out) {
+    if (!read_strings(reader, out.values)) return false;
+    out.edge_start = reader.ints();
+    out.edge_chars = reader.chars();
+    out.edge_targets = reader.ints();
+    out.terminal = reader.ints();
+    if (!reader.ok || !check_edges(out.edge_start, out.edge_chars, out.edge_targets)) return false;
+    if (out.terminal.count != out.edge_start.count - 1) return false;
+    for (uint32_t i = 0; i < out.terminal.count; i++) {
+        if (out.terminal[i] != NO_VALUE && !in_range(out.terminal[i], out.values.size())) return false;
+    }
+    return true;
+}
+
+bool read_domains(BlobReader& reader, DomainTableView& out) {
+    out.slots = reader.ints();
+    out.hashes = reader.ints();
+    if (!read_strings(reader, out.domains)) return false;
+    uint32_t capacity = out.slots.count;
+    if (capacity == 0 || (capacity & (capacity - 1)) != 0) return false;
+    if (out.hashes.count != out.domains.size()) return false;
+    bool has_empty = false;
+    for (uint32_t i = 0; i < capacity; i++) {
+        if (out.slots[i] == EMPTY_SLOT) has_empty = true;
+        else if (!in_range(out.slots[i], out.domains.size())) return false;
+    }
+    return has_empty;
+}
+
+bool read_keywords(BlobReader& reader, KeywordView& out) {
+    if (!read_strings(reader, out.keywords)) return false;
+    out.edge_start = reader.ints();
+    out.edge_chars = reader.chars();
+    out.edge_targets = reader.ints();
+    out.fail = reader.ints();
+    out.output = reader.ints();
+    if (!reader.ok || !check_edges(out.edge_start, out.edge_chars, out.edge_targets)) return false;
+    uint32_t nodes = out.edge_start.count - 1;
+    if (nodes == 0 || out.fail.count != nodes || out.output.count != nodes) return false;
+    for (uint32_t i = 0; i < nodes; i++) {
+        if (!in_range(out.fail[i], nodes)) return false;
+    }
+    return true;
+}
+
+bool read_patterns(BlobReader& reader, PatternView& out) {
+    if (!read_strings(reader, out.patterns)) return false;
+    out.types = reader.ints();
+    out.class_starts = reader.ints();
+    out.kind = reader.ints();
+    out.out1 = reader.ints();
+    out.out2 = reader.ints();
+    out.class_range_start = reader.ints();
+    out.class_ranges = reader.ints();
+    out.start_states = reader.ints();
+    if (!reader.ok) return false;
+
+    uint32_t states = out.kind.count;
+    if (out.class_starts.count == 0 || out.out1.count != states || out.out2.count != states) return false;
+    if (out.class_range_start.count != states + 1 || out.class_range_start[0] != 0) return false;
+    if ((uint32_t)out.class_range_start[states] != out.class_ranges.count) return false;
+    for (uint32_t i = 1; i < out.class_starts.count; i++) {
+        if (out.class_starts[i] <= out.class_starts[i - 1]) return false;
+    }
+    for (uint32_t n = 0; n < states; n++) {
+        if (out.class_range_start[n + 1] < out.class_range_start[n]) return false;
+        if ((out.class_range_start[n + 1] - out.class_range_start[n]) % 2 != 0) return false;
+        switch (out.kind[n]) {
+            case KIND_CHARS:
+                if (out.out1[n] != NO_STATE && !in_range(out.out1[n], states)) return false;
+                break;
+            case KIND_SPLIT:
+                if (out.out1[n] != NO_STATE && !in_range(out.out1[n], states)) return false;
+                if (out.out2[n] != NO_STATE && !in_range(out.out2[n], states)) return false;
+                break;
+            case KIND_MATCH:
+            case KIND_MATCH_END:
+                break;
+            default:
+                return false;
+        }
+    }
+    for (uint32_t i = 0; i < out.start_states.count; i++) {
+        if (!in_range(out.start_states[i], states)) return false;
+    }
+    return true;
+}
+
+int32_t child(const IntView& edge_start, const CharView& edge_chars, const IntView& edge_targets,
+              int32_t state, uint16_t ch) {
+    int32_t low = edge_start[state];
+    int32_t high = edge_start[state + 1] - 1;
+    while (low <= high) {
+        int32_t mid = (int32_t)((uint32_t)(low + high) >> 1);
+        uint16_t c = edge_chars[mid];
+        if (c < ch) low = mid + 1;
+        else if (c > ch) high = mid - 1;
+        else return edge_targets[mid];
+    }
+    return NO_STATE;
+}
+
+bool has_prefix(const TrieView& trie, const char* text, size_t len) {
+    if (trie.values.size() == 0) return false;
+    int32_t state = 0;
+    if (trie.terminal[0] != NO_VALUE) return true;
+    for (size_t i = 0; i < len; i++) {
+        state = child(trie.edge_start, trie.edge_chars, trie.edge_targets, state, (uint8_t)text[i]);
+        if (state == NO_STATE) return false;
+        if (trie.terminal[state] != NO_VALUE) return true;
+    }
+    return false;
+}
+
+bool has_suffix(const TrieView& trie, const char* text, size_t start, size_t end) {
+    if (trie.values.size() == 0) return false;
+    int32_t state = 0;
+    for (size_t i = end; i > start; i--) {
+        state = child(trie.edge_start, trie.edge_chars, trie.edge_targets, state, (uint8_t)text[i - 1]);
+        if (state == NO_STATE) return false;
+        if (trie.terminal[state] != NO_VALUE && (i - 1 == start || text[i - 2] == '.')) return true;
+    }
+    return false;
+}
+
+bool string_equals(const StringTableView& table, int32_t index, const char* text, size_t len) {
+    int32_t offset = table.offsets[index];
+    if ((size_t)(table.offsets[index + 1] - offset) != len) return false;
+    for (size_t i = 0; i < len; i++) {
+        if (table.chars[offset + i] != (uint8_t)text[i]) return false;
+    }
+    return true;
+}
+
+// DomainTable probes with String.hashCode, which on ASCII is this over the bytes.
+bool has_domain(const DomainTableView& table, const char* text, size_t start, size_t end) {
+    if (table.domains.size() == 0) return false;
+    uint32_t hash = 0;
+    for (size_t i = start; i < end; i++) hash = 31 * hash + (uint8_t)text[i];
+    uint32_t mask = table.slots.count - 1;
+    uint32_t slot = (hash ^ (hash >> 16)) & mask;
+    for (uint32_t probes = 0; probes < table.slots.count; probes++) {
+        int32_t index = table.slots[slot];
+        if (index == EMPTY_SLOT) return false;
+        if ((uint32_t)table.hashes[index] == hash && string_equals(table.domains, index, text + start, end - start)) {
+            return true;
+        }
+        slot = (slot + 1) & mask;
+    }
+    return false;
+}
+
+bool has_keyword(const KeywordView& automaton, const char* text, size_t len) {
+    if (automaton.keywords.size() == 0) return false;
+    int32_t state = 0;
+    for (size_t i = 0; i < len; i++) {
+        uint16_t ch = (uint8_t)text[i];
+        while (true) {
+            int32_t next = child(automaton.edge_start, automaton.edge_chars, automaton.edge_targets, state, ch);
+            if (next != NO_STATE) { state = next; break; }
+            if (state == 0) break;
+            state = automaton.fail[state];
+        }
+        if (automaton.output[state] != NO_OUTPUT) return true;
+    }
+    return false;
+}
+
+struct NfaScratch {
+    std::vector<int32_t> current;
+    std::vector<int32_t> next;
+    std::vector<int32_t> stack;
+    std::vector<uint32_t> visited;
+    uint32_t stamp = 0;
+};
+
+int32_t class_of(const PatternView& program, int32_t ch) {
+    int32_t low = 0;
+    int32_t high = (int32_t)program.class_starts.count - 1;
+    while (low < high) {
+        int32_t mid = (low + high + 1) >> 1;
+        if (program.class_starts[mid] <= ch) low = mid; else high = mid - 1;
+    }
+    return low;
+}
+
+// Plain Thompson simulation; the lazily built DFA of PatternMatcher only pays off on the Kotlin side, where
+// it is shared by every lookup of the process.
+bool has_pattern(const PatternView& program, const char* text, size_t len) {
+    if (program.patterns.size() == 0) return false;
+    uint32_t states = program.kind.count;
+
+    thread_local NfaScratch scratch;
+    if (scratch.visited.size() < states) scratch.visited.assign(states, 0);
+    if (++scratch.stamp == 0) {
+        std::fill(scratch.visited.begin(), scratch.visited.end(), 0);
+        scratch.stamp = 1;
+    }
+
+    scratch.current.assign(program.start_states.data, program.start_states.data + program.start_states.count);
+    for (int32_t n : scratch.current) {
+        if (program.kind[n] == KIND_MATCH) return true;
+    }
+
+    for (size_t i = 0; i < len && !scratch.current.empty(); i++) {
+        int32_t cls = class_of(program, (uint8_t)text[i]);
+        if (++scratch.stamp == 0) {
+            std::fill(scratch.visited.begin(), scratch.visited.end(), 0);
+            scratch.stamp = 1;
+        }
+        scratch.next.clear();
+        scratch.stack.clear();
+        for (int32_t n : scratch.current) {
+            if (program.kind[n] != KIND_CHARS) continue;
+            for (int32_t r = program.class_range_start[n]; r < program.class_range_start[n + 1]; r += 2) {
+                if (cls >= program.class_ranges[r] && cls <= program.class_ranges[r + 1]) {
+                    scratch.stack.push_back(program.out1[n]);
+                    break;
+                }
+            }
+        }
+        while (!scratch.stack.empty()) {
+            int32_t n = scratch.stack.back();
+            scratch.stack.pop_back();
+            if (n < 0 || scratch.visited[n] == scratch.stamp) continue;
+            scratch.visited[n] = scratch.stamp;
+            if (program.kind[n] == KIND_SPLIT) {
+                scratch.stack.push_back(program.out1[n]);
+                scratch.stack.push_back(program.out2[n]);
+            } else {
+                if (program.kind[n] == KIND_MATCH) return true;
+                scratch.next.push_back(n);
+            }
+        }
+        scratch.current.swap(scratch.next);
+    }
+
+    for (int32_t n : scratch.current) {
+        if (program.kind[n] == KIND_MATCH_END) return true;
+    }
+    return false;
+}
+
+} // namespace
+
+std::shared_ptr<const NativeRules> native_rules_parse(const uint8_t* data, size_t size,
+                                                      void* owner, void (*release)(void*)) {
+    if (data == nullptr || size < BLOB_HEADER_SIZE || (reinterpret_cast<uintptr_t>(data) & 3) != 0) return nullptr;
+
+    BlobReader reader(data, size);
+    if (reader.int_value() != BLOB_MAGIC || reader.int_value() != BLOB_FORMAT_VERSION) return nullptr;
+    int64_t version = reader.long_value();
+    if ((size_t)reader.int_value() != size) return nullptr;
+    reader.int_value();
+
+    NativeRules parsed;
+    parsed.version = version;
+    bool ok = read_trie(reader, parsed.url_prefixes) &&
+              read_domains(reader, parsed.domains) &&
+              read_trie(reader, parsed.domain_suffixes) &&
+              read_keywords(reader, parsed.keywords) &&
+              read_patterns(reader, parsed.patterns);
+    reader.ints(); // host filter: only used for bare hosts, which never reach the native matcher
+    if (!ok || !reader.at_end()) return nullptr;
+
+    auto rules = std::make_shared<NativeRules>(parsed);
+    rules->owner = owner;
+    rules->release = release;
+    return rules;
+}
+
+bool native_rules_match(const NativeRules& rules, const char* key, size_t len, size_t host_start, size_t host_end) {
+    if (len == 0) return false;
+    if (has_prefix(rules.url_prefixes, key, len)) return true;
+    if (host_end > host_start) {
+        if (has_domain(rules.domains, key, host_start, host_end)) return true;
+        if (has_suffix(rules.domain_suffixes, key, host_start, host_end)) return true;
+    }
+    return has_keyword(rules.keywords, key, len) || has_pattern(rules.patterns, key, len);
+}
@@ -0,0 +1,165 @@
+package com.close.hook.ads.data
+
+import java.nio.CharBuffer
+import java.nio.IntBuffer
+
+/**
+ * Immutable character trie frozen into flat buffers, either heap arrays or a mapped rule blob. Lookups walk
+ * the input in place and only allocate the matched value.
+ */
+class CharTrie private constructor(
+    private val values: StringTable,
+    private val edgeStart: IntBuffer,
+    private val edgeChars: CharBuffer,
+    private val edgeTargets: IntBuffer,
+    private val terminal: IntBuffer
+) {
+
+    val size: Int get() = values.size
+
+    /**
+     * Returns the longest key that is a prefix of [text], or null when none is.
+     */
+    fun longestPrefix(text: String): String? {
+        if (values.size == 0) return null
+
+        var state = ROOT
+        var best = terminal.get(ROOT)
+        for (index in text.indices) {
+            state = child(state, text[index])
+            if (state == NO_STATE) break
+
+            val hit = terminal.get(state)
+            if (hit != NO_VALUE) best = hit
+        }
+        return if (best == NO_VALUE) null else values[best]
+    }
+
+    /**
+     * Walks `text[start, end)` from its last character backwards against keys that were added reversed, and
+     * returns the first key that ends on a [boundary] (or at [start]). Used for domain suffixes where a key
+     * `example.com` covers `example.com` and `x.example.com` but not `badexample.com`.
+     */
+    fun matchSuffix(text: String, boundary: Char, start: Int = 0, end: Int = text.length): String? {
+        if (values.size == 0) return null
+
+        var state = ROOT
+        var index = end - 1
+        while (index >= start) {
+            state = child(state, text[index])
+            if (state == NO_STATE) return null
+
+            val hit = terminal.get(state)
+            if (hit != NO_VALUE && (index == start || text[index - 1] == boundary)) {
+                return values[hit]
+            }
+            index--
+        }
+        return null
+    }
+
+    private fun child(state: Int, ch: Char): Int {
+        var low = edgeStart.get(state)
+        var high = edgeStart.get(state + 1) - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val c = edgeChars.get(mid)
+            when {
+                c < ch -> low = mid + 1
+                c > ch -> high = mid - 1
+                else -> return edgeTargets.get(mid)
+            }
+        }
+        return NO_STATE
+    }
+
+    internal fun writeTo(writer: RuleBlob.Writer) {
+        values.writeTo(writer)
+        writer.putInts(edgeStart)
+        writer.putChars(edgeChars)
+        writer.putInts(edgeTargets)
+        writer.putInts(terminal)
+    }
+
+    class Builder(private val reversed: Boolean = false) {
+        private val children = arrayListOf(HashMap<Char, Int>())
+        private val terminal = arrayListOf(NO_VALUE)
+        private val values = ArrayList<String>()
+
+        fun add(key: String, value: String = key): Builder {
+            if (key.isEmpty()) return this
+
+            var state = ROOT
+            for (offset in key.indices) {
+                val ch = if (reversed) key[key.length - 1 - offset] else key[offset]
+                state = children[state].getOrPut(ch) {
+                    children += HashMap()
+                    terminal += NO_VALUE
+                    children.size - 1
+                }
+            }
+            if (terminal[state] == NO_VALUE) {
+                terminal[state] = values.size
+                values += value
+            }
+            return this
+        }
+
+        fun build(): CharTrie {
+            if (values.isEmpty()) return EMPTY
+
+            val nodeCount = children.size
+            val edgeStart = IntArray(nodeCount + 1)
+            var edgeCount = 0
+            for (state in 0 until nodeCount) {
+                edgeStart[state] = edgeCount
+                edgeCount += children[state].size
+            }
+            edgeStart[nodeCount] = edgeCount
+
+            val edgeChars = CharArray(edgeCount)
+            val edgeTargets = IntArray(edgeCount)
+            for (state in 0 until nodeCount) {
+                var cursor = edgeStart[state]
+                children[state].entries
+                    .sortedBy { it.key }
+                    .forEach { (ch, next) ->
+                        edgeChars[cursor] = ch
+                        edgeTargets[cursor] = next
+                        cursor++
+                    }
+            }
+
+            return CharTrie(
+                values = StringTable.of(values),
+                edgeStart = IntBuffer.wrap(edgeStart),
+                edgeChars = CharBuffer.wrap(edgeChars),
+                edgeTargets = IntBuffer.wrap(edgeTargets),
+                terminal = IntBuffer.wrap(terminal.toIntArray())
+            )
+        }
+    }
+
+    companion object {
+        private const val ROOT = 0
+        private const val NO_STATE = -1
+        private const val NO_VALUE = -1
+
+        val EMPTY = CharTrie(
+            values = StringTable.EMPTY,
+            edgeStart = IntBuffer.wrap(intArrayOf(0, 0)),
+            edgeChars = CharBuffer.allocate(0),
+            edgeTargets = IntBuffer.allocate(0),
+            terminal = IntBuffer.wrap(intArrayOf(NO_VALUE))
+        )
+
+        internal fun readFrom(reader: RuleBlob.Reader): CharTrie =
+            CharTrie(
+                values = StringTable.readFrom(reader),
+                edgeStart = reader.ints(),
+                edgeChars = reader.chars(),
+                edgeTargets = reader.ints(),
+                terminal = reader.ints()
+            )
+    }
+}
@@ -11,6 +11,7 @@ import kotlinx.coroutines.withContext
 
 class DataSource(context: Context) {
 
+    private val appContext = context.applicationContext
     private val urlDao = UrlDatabase.getDatabase(context).urlDao
 
     fun searchUrls(searchText: String): Flow<List<Url>> =
@@ -18,49 +19,61 @@ class DataSource(context: Context) {
 
     suspend fun addUrl(url: Url) {
         urlDao.insertOrIgnore(url)
+        notifyRulesChanged()
     }
 
     suspend fun removeList(list: List<Url>) {
         if (list.isNotEmpty()) {
             urlDao.deleteList(list)
+            notifyRulesChanged()
         }
     }
 
     suspend fun removeUrl(url: Url) {
         urlDao.deleteUrl(url)
+        notifyRulesChanged()
     }
 
     suspend fun removeAll() {
         urlDao.deleteAll()
+        notifyRulesChanged()
     }
 
     suspend fun addListUrl(list: List<Url>) {
         if (list.isNotEmpty()) {
             urlDao.insertAll(list)
+            notifyRulesChanged()
         }
     }
 
     suspend fun updateUrl(url: Url) {
         urlDao.update(url)
+        notifyRulesChanged()
     }
 
     suspend fun removeUrlString(type: String, url: String) {
         urlDao.deleteUrlString(type, url)
+        notifyRulesChanged()
     }
 
     suspend fun isExist(type: String, url: String): Boolean =
         withContext(Dispatchers.IO) { urlDao.isExist(type, url) }
 
     suspend fun insertAll(urls: List<Url>): List<Long> =
-        withContext(Dispatchers.IO) { urlDao.insertAll(urls) }
+        withContext(Dispatchers.IO) { urlDao.insertAll(urls).also { notifyRulesChanged() } }
 
     suspend fun deleteAll(): Int =
-        withContext(Dispatchers.IO) { urlDao.deleteAll() }
+        withContext(Dispatchers.IO) { urlDao.deleteAll().also { notifyRulesChanged() } }
 
     fun getAllUrls(): List<Url> {
         return urlDao.findAllList()
     }
 
+    // Room writes bypass UrlContentProvider, so hooked processes would not hear about them otherwise.
+    private fun notifyRulesChanged() {
+        RuleBlobStore.publish(appContext)
+    }
+
     companion object {
         @Volatile
         private var INSTANCE: DataSource? = null
@@ -0,0 +1,77 @@
+package com.close.hook.ads.data
+
+import java.nio.IntBuffer
+
+/**
+ * Open-addressing hash set of lowercased Domain rules. Uses [String.hashCode], which is specified, so a
+ * table written by the module app probes identically in every hooked process.
+ */
+class DomainTable private constructor(
+    private val slots: IntBuffer,
+    private val hashes: IntBuffer,
+    private val domains: StringTable
+) {
+
+    val size: Int get() = domains.size
+
+    operator fun contains(lowerHost: String): Boolean = contains(lowerHost, 0, lowerHost.length)
+
+    /**
+     * Looks up `text[start, end)` without copying it out.
+     */
+    fun contains(text: String, start: Int, end: Int): Boolean {
+        if (domains.size == 0) return false
+
+        var hash = 0
+        for (i in start until end) {
+            hash = 31 * hash + text[i].code
+        }
+        val mask = slots.limit() - 1
+        var slot = mix(hash) and mask
+        while (true) {
+            val index = slots.get(slot)
+            if (index == EMPTY_SLOT) return false
+            if (hashes.get(index) == hash && domains.contentEquals(index, text, start, end)) return true
+            slot = (slot + 1) and mask
+        }
+    }
+
+    internal fun writeTo(writer: RuleBlob.Writer) {
+        writer.putInts(slots)
+        writer.putInts(hashes)
+        domains.writeTo(writer)
+    }
+
+    companion object {
+        private const val EMPTY_SLOT = -1
+
+        val EMPTY = DomainTable(IntBuffer.wrap(intArrayOf(EMPTY_SLOT)), IntBuffer.allocate(0), StringTable.EMPTY)
+
+        fun build(lowerDomains: Collection<String>): DomainTable {
+            if (lowerDomains.isEmpty()) return EMPTY
+
+            val unique = lowerDomains.distinct()
+            val capacity = Integer.highestOneBit(unique.size * 2 - 1) shl 1
+            val slots = IntArray(capacity) { EMPTY_SLOT }
+            val hashes = IntArray(unique.size)
+            val mask = capacity - 1
+
+            unique.forEachIndexed { index, domain ->
+                val hash = domain.hashCode()
+                hashes[index] = hash
+                var slot = mix(hash) and mask
+                while (slots[slot] != EMPTY_SLOT) {
+                    slot = (slot + 1) and mask
+                }
+                slots[slot] = index
+            }
+
+            return DomainTable(IntBuffer.wrap(slots), IntBuffer.wrap(hashes), StringTable.of(unique))
+        }
+
+        internal fun readFrom(reader: RuleBlob.Reader): DomainTable =
+            DomainTable(reader.ints(), reader.ints(), StringTable.readFrom(reader))
+
+        private fun mix(hash: Int): Int = hash xor (hash ushr 16)
+    }
+}
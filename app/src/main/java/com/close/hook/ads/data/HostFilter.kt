@@ -0,0 +1,87 @@
+package com.close.hook.ads.data
+
+import java.nio.IntBuffer
+
+/**
+ * Bloom filter over the lowercased Domain and DomainSuffix rules, about ten bits per rule. A host is tested
+ * at every label boundary (`a.b.c`, `b.c`, `c`), so `false` means neither rule kind can match it.
+ *
+ * Hashes run from the end of the string backwards, which lets one pass over a host produce the hash of
+ * each of its suffixes.
+ */
+class HostFilter private constructor(
+    private val bits: IntBuffer
+) {
+
+    val isEmpty: Boolean get() = bits.limit() == 0
+
+    fun mightMatch(text: String, start: Int = 0, end: Int = text.length): Boolean {
+        if (isEmpty || end <= start) return false
+
+        val mask = bits.limit() * Int.SIZE_BITS - 1
+        var h1 = 0
+        var h2 = SEED
+        var index = end - 1
+        while (index >= start) {
+            val ch = text[index].code
+            h1 = 31 * h1 + ch
+            h2 = (h2 xor ch) * PRIME
+            if ((index == start || text[index - 1] == '.') && probe(h1, h2, mask)) return true
+            index--
+        }
+        return false
+    }
+
+    private fun probe(h1: Int, h2: Int, mask: Int): Boolean {
+        val step = h2 or 1
+        var hash = h1
+        repeat(HASH_COUNT) {
+            val bit = hash and mask
+            if ((bits.get(bit ushr 5) and (1 shl (bit and 31))) == 0) return false
+            hash += step
+        }
+        return true
+    }
+
+    internal fun writeTo(writer: RuleBlob.Writer) {
+        writer.putInts(bits)
+    }
+
+    companion object {
+        private const val HASH_COUNT = 4
+        private const val BITS_PER_ENTRY = 10
+        private const val SEED = -0x7ee3623b // FNV-1a offset basis
+        private const val PRIME = 0x01000193
+
+        val EMPTY = HostFilter(IntBuffer.allocate(0))
+
+        fun build(lowerHosts: Collection<String>): HostFilter {
+            if (lowerHosts.isEmpty()) return EMPTY
+
+            val bitCount = Integer.highestOneBit(maxOf(lowerHosts.size * BITS_PER_ENTRY, Int.SIZE_BITS) - 1) shl 1
+            val words = IntArray(bitCount / Int.SIZE_BITS)
+            val mask = bitCount - 1
+
+            lowerHosts.forEach { host ->
+                var h1 = 0
+                var h2 = SEED
+                for (index in host.indices.reversed()) {
+                    val ch = host[index].code
+                    h1 = 31 * h1 + ch
+                    h2 = (h2 xor ch) * PRIME
+                }
+
+                val step = h2 or 1
+                var hash = h1
+                repeat(HASH_COUNT) {
+                    val bit = hash and mask
+                    words[bit ushr 5] = words[bit ushr 5] or (1 shl (bit and 31))
+                    hash += step
+                }
+            }
+            return HostFilter(IntBuffer.wrap(words))
+        }
+
+        internal fun readFrom(reader: RuleBlob.Reader): HostFilter = HostFilter(reader.ints())
+    }
+}
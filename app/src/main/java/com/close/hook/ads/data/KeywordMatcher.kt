@@ -0,0 +1,180 @@
+package com.close.hook.ads.data
+
+import java.nio.CharBuffer
+import java.nio.IntBuffer
+import java.util.Locale
+
+/**
+ * Aho-Corasick automaton over KeyWord rules. A lookup is one pass over the lowercased request; when
+ * several keywords occur, the one listed first in the rules wins.
+ */
+class KeywordMatcher private constructor(
+    private val keywords: StringTable,
+    private val edgeStart: IntBuffer,
+    private val edgeChars: CharBuffer,
+    private val edgeTargets: IntBuffer,
+    private val fail: IntBuffer,
+    private val output: IntBuffer
+) {
+
+    val size: Int get() = keywords.size
+
+    fun firstMatch(lowerText: String): String? {
+        if (keywords.size == 0 || lowerText.isEmpty()) return null
+
+        var state = ROOT
+        var best = NO_OUTPUT
+
+        for (index in lowerText.indices) {
+            val ch = lowerText[index]
+            while (true) {
+                val next = child(state, ch)
+                if (next != NO_STATE) {
+                    state = next
+                    break
+                }
+                if (state == ROOT) break
+                state = fail.get(state)
+            }
+
+            val hit = output.get(state)
+            if (hit < best) {
+                best = hit
+                if (best == 0) break
+            }
+        }
+
+        return if (best == NO_OUTPUT) null else keywords[best]
+    }
+
+    private fun child(state: Int, ch: Char): Int {
+        var low = edgeStart.get(state)
+        var high = edgeStart.get(state + 1) - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val c = edgeChars.get(mid)
+            when {
+                c < ch -> low = mid + 1
+                c > ch -> high = mid - 1
+                else -> return edgeTargets.get(mid)
+            }
+        }
+        return NO_STATE
+    }
+
+    internal fun writeTo(writer: RuleBlob.Writer) {
+        keywords.writeTo(writer)
+        writer.putInts(edgeStart)
+        writer.putChars(edgeChars)
+        writer.putInts(edgeTargets)
+        writer.putInts(fail)
+        writer.putInts(output)
+    }
+
+    companion object {
+        private const val ROOT = 0
+        private const val NO_STATE = -1
+        private const val NO_OUTPUT = Int.MAX_VALUE
+
+        val EMPTY = KeywordMatcher(
+            keywords = StringTable.EMPTY,
+            edgeStart = IntBuffer.wrap(intArrayOf(0, 0)),
+            edgeChars = CharBuffer.allocate(0),
+            edgeTargets = IntBuffer.allocate(0),
+            fail = IntBuffer.wrap(intArrayOf(ROOT)),
+            output = IntBuffer.wrap(intArrayOf(NO_OUTPUT))
+        )
+
+        internal fun readFrom(reader: RuleBlob.Reader): KeywordMatcher =
+            KeywordMatcher(
+                keywords = StringTable.readFrom(reader),
+                edgeStart = reader.ints(),
+                edgeChars = reader.chars(),
+                edgeTargets = reader.ints(),
+                fail = reader.ints(),
+                output = reader.ints()
+            )
+
+        fun build(rawKeywords: List<String>): KeywordMatcher {
+            val keywords = ArrayList<String>(rawKeywords.size)
+            val children = arrayListOf(HashMap<Char, Int>())
+            val terminal = arrayListOf(NO_OUTPUT)
+
+            rawKeywords.forEach { keyword ->
+                if (keyword.isBlank()) return@forEach
+                val lower = keyword.lowercase(Locale.ROOT)
+
+                var state = ROOT
+                for (ch in lower) {
+                    state = children[state].getOrPut(ch) {
+                        children += HashMap()
+                        terminal += NO_OUTPUT
+                        children.size - 1
+                    }
+                }
+                if (terminal[state] == NO_OUTPUT) {
+                    terminal[state] = keywords.size
+                    keywords += keyword
+                }
+            }
+
+            if (keywords.isEmpty()) return EMPTY
+
+            val nodeCount = children.size
+            val fail = IntArray(nodeCount)
+            val output = IntArray(nodeCount)
+            output[ROOT] = terminal[ROOT]
+
+            val queue = ArrayDeque<Int>()
+            children[ROOT].values.forEach { next ->
+                fail[next] = ROOT
+                output[next] = terminal[next]
+                queue.addLast(next)
+            }
+
+            while (queue.isNotEmpty()) {
+                val state = queue.removeFirst()
+                children[state].forEach { (ch, next) ->
+                    var fallback = fail[state]
+                    while (fallback != ROOT && ch !in children[fallback]) {
+                        fallback = fail[fallback]
+                    }
+                    val target = children[fallback][ch]
+                    fail[next] = if (target != null && target != next) target else ROOT
+                    output[next] = minOf(terminal[next], output[fail[next]])
+                    queue.addLast(next)
+                }
+            }
+
+            val edgeStart = IntArray(nodeCount + 1)
+            var edgeCount = 0
+            for (state in 0 until nodeCount) {
+                edgeStart[state] = edgeCount
+                edgeCount += children[state].size
+            }
+            edgeStart[nodeCount] = edgeCount
+
+            val edgeChars = CharArray(edgeCount)
+            val edgeTargets = IntArray(edgeCount)
+            for (state in 0 until nodeCount) {
+                var cursor = edgeStart[state]
+                children[state].entries
+                    .sortedBy { it.key }
+                    .forEach { (ch, next) ->
+                        edgeChars[cursor] = ch
+                        edgeTargets[cursor] = next
+                        cursor++
+                    }
+            }
+
+            return KeywordMatcher(
+                keywords = StringTable.of(keywords),
+                edgeStart = IntBuffer.wrap(edgeStart),
+                edgeChars = CharBuffer.wrap(edgeChars),
+                edgeTargets = IntBuffer.wrap(edgeTargets),
+                fail = IntBuffer.wrap(fail),
+                output = IntBuffer.wrap(output)
+            )
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package com.close.hook.ads.data
+
+/**
+ * Turns Wildcard and Regex rules into one combined Thompson NFA over character classes. [PatternMatcher]
+ * determinises it lazily while matching, so a lookup stays linear in the request however many patterns
+ * there are, without paying for DFA states that real traffic never reaches.
+ *
+ * Only the regular subset of java.util.regex is accepted: literals, `.`, classes, `\d \w \s` (and negations),
+ * groups, `|`, `* + ?` and bounded `{m,n}`. `^` and `$` are allowed at the very start and end of the pattern.
+ * Backreferences, lookaround and other non-regular constructs are rejected.
+ */
+internal object PatternCompiler {
+
+    const val NO_RULE = Int.MAX_VALUE
+
+    const val KIND_CHARS = 0
+    const val KIND_SPLIT = 1
+    const val KIND_MATCH = 2
+    const val KIND_MATCH_END = 3
+
+    private const val MAX_NFA_STATES = 200_000
+    private const val MAX_PATTERN_STATES = 2_000
+    private const val MAX_REPEAT = 100
+    private const val MAX_CHAR = 0xFFFF
+
+    private val ANY = intArrayOf(0, MAX_CHAR)
+    private val DIGIT = intArrayOf('0'.code, '9'.code)
+    private val WORD = intArrayOf('0'.code, '9'.code, 'A'.code, 'Z'.code, '_'.code, '_'.code, 'a'.code, 'z'.code)
+    private val SPACE = intArrayOf('\t'.code, '\r'.code, ' '.code, ' '.code)
+
+    class PatternException(message: String) : IllegalArgumentException(message)
+
+    class Parsed(val root: Node, val anchoredStart: Boolean, val anchoredEnd: Boolean)
+
+    sealed class Node
+    class CharsNode(val ranges: IntArray) : Node()
+    class ConcatNode(val items: List<Node>) : Node()
+    class AltNode(val options: List<Node>) : Node()
+    class RepeatNode(val node: Node, val min: Int, val max: Int) : Node()
+    object EmptyNode : Node()
+
+    /**
+     * The combined NFA. For [KIND_CHARS] states `out1` is the next state and `classRanges[classRangeStart[n]
+     * until classRangeStart[n + 1]]` holds inclusive pairs of the character classes it accepts; for match
+     * states `out1` is the rule id. [startStates] is the epsilon closure of all pattern entries.
+     */
+    class Program(
+        val classStarts: IntArray,
+        val kind: IntArray,
+        val out1: IntArray,
+        val out2: IntArray,
+        val classRangeStart: IntArray,
+        val classRanges: IntArray,
+        val startStates: IntArray
+    )
+
+    /**
+     * `*` matches any run of characters and `?` any single one; the whole request value has to match.
+     */
+    fun parseWildcard(pattern: String): Parsed {
+        val items = ArrayList<Node>(pattern.length)
+        pattern.forEach { ch ->
+            items += when (ch) {
+                '*' -> RepeatNode(CharsNode(ANY), 0, -1)
+                '?' -> CharsNode(ANY)
+                else -> literal(ch)
+            }
+        }
+        return Parsed(ConcatNode(items), anchoredStart = true, anchoredEnd = true)
+    }
+
+    fun parseRegex(pattern: String): Parsed = RegexParser(pattern).parse()
+
+    /**
+     * Compiles a single pattern on its own, throwing [PatternException] when it is not supported or too large.
+     */
+    fun check(parsed: Parsed) {
+        val nfa = Nfa(MAX_PATTERN_STATES)
+        addPattern(nfa, parsed, 0)
+    }
+
+    /**
+     * Combines [patterns] into one program; pattern `i` reports rule id `i`.
+     */
+    fun compile(patterns: List<Parsed>): Program {
+        val nfa = Nfa(MAX_NFA_STATES)
+        val entries = IntArray(patterns.size)
+        patterns.forEachIndexed { index, parsed ->
+            entries[index] = addPattern(nfa, parsed, index)
+        }
+
+        val classStarts = buildClassStarts(nfa)
+        val classRangeStart = IntArray(nfa.size + 1)
+        val classRanges = IntList()
+        for (n in 0 until nfa.size) {
+            classRangeStart[n] = classRanges.size
+            val ranges = nfa.ranges[n] ?: continue
+            for (i in ranges.indices step 2) {
+                classRanges += classIndex(classStarts, ranges[i])
+                classRanges += classIndex(classStarts, ranges[i + 1])
+            }
+        }
+        classRangeStart[nfa.size] = classRanges.size
+
+        return Program(
+            classStarts = classStarts,
+            kind = nfa.kind.toIntArray(),
+            out1 = nfa.out1.toIntArray(),
+            out2 = nfa.out2.toIntArray(),
+            classRangeStart = classRangeStart,
+            classRanges = classRanges.toIntArray(),
+            startStates = startClosure(nfa, entries)
+        )
+    }
+
+    private fun addPattern(nfa: Nfa, parsed: Parsed, ruleId: Int): Int {
+        val accept = nfa.addMatch(ruleId, parsed.anchoredEnd)
+        var entry = nfa.compile(parsed.root, accept)
+        if (!parsed.anchoredStart) {
+            val loop = nfa.addSplit(-1, entry)
+            nfa.out1[loop] = nfa.addChars(ANY, loop)
+            entry = loop
+        }
+        return entry
+    }
+
+    private fun startClosure(nfa: Nfa, entries: IntArray): IntArray {
+        val seen = BooleanArray(nfa.size)
+        val stack = IntList()
+        val result = IntList()
+        entries.forEach { stack += it }
+        while (stack.size > 0) {
+            val n = stack.removeLast()
+            if (n < 0 || seen[n]) continue
+            seen[n] = true
+            if (nfa.kind[n] == KIND_SPLIT) {
+                stack += nfa.out1[n]
+                stack += nfa.out2[n]
+            } else {
+                result += n
+            }
+        }
+        return result.toIntArray().also { it.sort() }
+    }
+
+    private fun buildClassStarts(nfa: Nfa): IntArray {
+        val points = sortedSetOf(0)
+        nfa.ranges.forEach { set ->
+            set ?: return@forEach
+            for (i in set.indices step 2) {
+                points += set[i]
+                if (set[i + 1] < MAX_CHAR) points += set[i + 1] + 1
+            }
+        }
+        return points.toIntArray()
+    }
+
+    private fun classIndex(classStarts: IntArray, ch: Int): Int {
+        var low = 0
+        var high = classStarts.size - 1
+        while (low < high) {
+            val mid = (low + high + 1) ushr 1
+            if (classStarts[mid] <= ch) low = mid else high = mid - 1
+        }
+        return low
+    }
+
+    private fun literal(ch: Char): CharsNode {
+        val lower = Character.toLowerCase(ch).code
+        return CharsNode(intArrayOf(lower, lower))
+    }
+
+    // Requests are matched in lowercase, so upper-case ranges are folded onto their lower-case letters.
+    private fun foldCase(ranges: IntArray): IntArray {
+        val folded = ArrayList<Int>(ranges.size + 4)
+        ranges.forEach { folded += it }
+        for (i in ranges.indices step 2) {
+            val lo = maxOf(ranges[i], 'A'.code)
+            val hi = minOf(ranges[i + 1], 'Z'.code)
+            if (lo <= hi) {
+                folded += lo + 32
+                folded += hi + 32
+            }
+        }
+        return normalize(folded.toIntArray())
+    }
+
+    private fun normalize(ranges: IntArray): IntArray {
+        if (ranges.isEmpty()) return ranges
+        val pairs = (ranges.indices step 2).map { ranges[it] to ranges[it + 1] }.sortedBy { it.first }
+        val merged = ArrayList<Int>(ranges.size)
+        var lo = pairs[0].first
+        var hi = pairs[0].second
+        for (k in 1 until pairs.size) {
+            val (nextLo, nextHi) = pairs[k]
+            if (nextLo <= hi + 1) {
+                hi = maxOf(hi, nextHi)
+            } else {
+                merged += lo
+                merged += hi
+                lo = nextLo
+                hi = nextHi
+            }
+        }
+        merged += lo
+        merged += hi
+        return merged.toIntArray()
+    }
+
+    private fun negate(ranges: IntArray): IntArray {
+        val result = ArrayList<Int>(ranges.size + 2)
+        var next = 0
+        for (i in ranges.indices step 2) {
+            if (ranges[i] > next) {
+                result += next
+                result += ranges[i] - 1
+            }
+            next = ranges[i + 1] + 1
+        }
+        if (next <= MAX_CHAR) {
+            result += next
+            result += MAX_CHAR
+        }
+        return result.toIntArray()
+    }
+
+    private class RegexParser(private val pattern: String) {
+        private var pos = 0
+        private var end = pattern.length
+
+        fun parse(): Parsed {
+            val anchoredStart = pattern.startsWith("^")
+            if (anchoredStart) pos = 1
+
+            val anchoredEnd = end > pos && pattern[end - 1] == '$' && !isEscaped(end - 1)
+            if (anchoredEnd) end--
+
+            val root = alternation()
+            if (pos < end) throw PatternException("Unmatched ')' at index $pos")
+            return Parsed(root, anchoredStart, anchoredEnd)
+        }
+
+        private fun isEscaped(index: Int): Boolean {
+            var backslashes = 0
+            var i = index - 1
+            while (i >= 0 && pattern[i] == '\\') {
+                backslashes++
+                i--
+            }
+            return backslashes % 2 == 1
+        }
+
+        private fun alternation(): Node {
+            val options = arrayListOf(concat())
+            while (pos < end && pattern[pos] == '|') {
+                pos++
+                options += concat()
+            }
+            return if (options.size == 1) options[0] else AltNode(options)
+        }
+
+        private fun concat(): Node {
+            val items = ArrayList<Node>()
+            while (pos < end && pattern[pos] != '|' && pattern[pos] != ')') {
+                items += repeat()
+            }
+            return when (items.size) {
+                0 -> EmptyNode
+                1 -> items[0]
+                else -> ConcatNode(items)
+            }
+        }
+
+        private fun repeat(): Node {
+            val atom = atom()
+            if (pos >= end) return atom
+
+            val (min, max) = when (pattern[pos]) {
+                '*' -> { pos++; 0 to -1 }
+                '+' -> { pos++; 1 to -1 }
+                '?' -> { pos++; 0 to 1 }
+                '{' -> bounds()
+                else -> return atom
+            }
+
+            if (pos < end) {
+                when (pattern[pos]) {
+                    '?' -> pos++
+                    '+' -> throw PatternException("Possessive quantifiers are not supported")
+                }
+            }
+            if (pos < end && pattern[pos] in "*+?{") {
+                throw PatternException("Dangling quantifier at index $pos")
+            }
+            return RepeatNode(atom, min, max)
+        }
+
+        private fun bounds(): Pair<Int, Int> {
+            val close = pattern.indexOf('}', pos)
+            if (close == -1 || close >= end) throw PatternException("Unclosed repetition at index $pos")
+
+            val body = pattern.substring(pos + 1, close)
+            val comma = body.indexOf(',')
+            val min = (if (comma == -1) body else body.substring(0, comma)).toIntOrNull()
+            val max = when {
+                comma == -1 -> min
+                comma == body.length - 1 -> -1
+                else -> body.substring(comma + 1).toIntOrNull()
+            }
+            if (min == null || max == null || (max != -1 && max < min)) {
+                throw PatternException("Invalid repetition {$body}")
+            }
+            if (min > MAX_REPEAT || max > MAX_REPEAT) {
+                throw PatternException("Repetition above $MAX_REPEAT is not supported")
+            }
+            pos = close + 1
+            return min to max
+        }
+
+        private fun atom(): Node {
+            val ch = pattern[pos]
+            return when (ch) {
+                '(' -> group()
+                '[' -> charClass()
+                '.' -> { pos++; CharsNode(ANY) }
+                '\\' -> CharsNode(escape(inClass = false))
+                '^', '$' -> throw PatternException("'$ch' is only supported at the start or end of the pattern")
+                '*', '+', '?', '{' -> throw PatternException("Dangling quantifier at index $pos")
+                else -> { pos++; literal(ch) }
+            }
+        }
+
+        private fun group(): Node {
+            pos++
+            if (pattern.startsWith("?:", pos)) {
+                pos += 2
+            } else if (pos < end && pattern[pos] == '?') {
+                throw PatternException("Lookaround and inline flags are not supported")
+            }
+            val inner = alternation()
+            if (pos >= end || pattern[pos] != ')') throw PatternException("Unclosed group")
+            pos++
+            return inner
+        }
+
+        private fun charClass(): Node {
+            pos++
+            val negated = pos < end && pattern[pos] == '^'
+            if (negated) pos++
+
+            val ranges = ArrayList<Int>()
+            var first = true
+            while (true) {
+                if (pos >= end) throw PatternException("Unclosed character class")
+                val ch = pattern[pos]
+                if (ch == ']' && !first) break
+                if (ch == '[' || pattern.startsWith("&&", pos)) {
+                    throw PatternException("Nested classes and intersections are not supported")
+                }
+                first = false
+
+                val lo = classAtom()
+                val isRange = isSingle(lo) && pos + 1 < end && pattern[pos] == '-' && pattern[pos + 1] != ']'
+                if (isRange) {
+                    pos++
+                    val hi = classAtom()
+                    if (!isSingle(hi) || hi[0] < lo[0]) throw PatternException("Invalid class range")
+                    ranges += lo[0]
+                    ranges += hi[0]
+                } else {
+                    lo.forEach { ranges += it }
+                }
+            }
+            pos++
+
+            val folded = foldCase(normalize(ranges.toIntArray()))
+            return CharsNode(if (negated) negate(folded) else folded)
+        }
+
+        private fun classAtom(): IntArray {
+            if (pattern[pos] == '\\') return escape(inClass = true)
+            val code = pattern[pos++].code
+            return intArrayOf(code, code)
+        }
+
+        private fun isSingle(set: IntArray): Boolean = set.size == 2 && set[0] == set[1]
+
+        private fun escape(inClass: Boolean): IntArray {
+            if (pos + 1 >= end) throw PatternException("Trailing backslash")
+            val ch = pattern[pos + 1]
+            pos += 2
+            return when (ch) {
+                'd' -> DIGIT
+                'D' -> negate(DIGIT)
+                'w' -> WORD
+                'W' -> negate(WORD)
+                's' -> SPACE
+                'S' -> negate(SPACE)
+                't' -> single('\t'.code)
+                'n' -> single('\n'.code)
+                'r' -> single('\r'.code)
+                'f' -> single(0x0C)
+                'x' -> single(hex(2))
+                'u' -> single(hex(4))
+                else -> when {
+                    ch.isLetterOrDigit() -> throw PatternException("Unsupported escape \\$ch")
+                    else -> single(Character.toLowerCase(ch).code)
+                }
+            }.let { if (inClass) it else foldCase(it) }
+        }
+
+        private fun hex(digits: Int): Int {
+            if (pos + digits > end) throw PatternException("Truncated hex escape")
+            val value = pattern.substring(pos, pos + digits).toIntOrNull(16)
+                ?: throw PatternException("Invalid hex escape")
+            pos += digits
+            return value
+        }
+
+        private fun single(code: Int): IntArray = intArrayOf(code, code)
+    }
+
+    private class Nfa(private val maxStates: Int) {
+        val kind = IntList()
+        val out1 = IntList()
+        val out2 = IntList()
+        val ranges = ArrayList<IntArray?>()
+
+        val size: Int get() = kind.size
+
+        fun addChars(set: IntArray, next: Int): Int = add(KIND_CHARS, next, -1, set)
+
+        fun addSplit(first: Int, second: Int): Int = add(KIND_SPLIT, first, second, null)
+
+        fun addMatch(ruleId: Int, atEnd: Boolean): Int =
+            add(if (atEnd) KIND_MATCH_END else KIND_MATCH, ruleId, -1, null)
+
+        fun compile(node: Node, next: Int): Int = when (node) {
+            is CharsNode -> addChars(node.ranges, next)
+            is ConcatNode -> node.items.foldRight(next) { item, acc -> compile(item, acc) }
+            is AltNode -> node.options.map { compile(it, next) }.reduceRight { option, acc -> addSplit(option, acc) }
+            is RepeatNode -> compileRepeat(node, next)
+            EmptyNode -> next
+        }
+
+        private fun compileRepeat(node: RepeatNode, next: Int): Int {
+            var entry = if (node.max == -1) {
+                val loop = addSplit(-1, next)
+                out1[loop] = compile(node.node, loop)
+                loop
+            } else {
+                var optional = next
+                repeat(node.max - node.min) {
+                    optional = addSplit(compile(node.node, optional), next)
+                }
+                optional
+            }
+            repeat(node.min) {
+                entry = compile(node.node, entry)
+            }
+            return entry
+        }
+
+        private fun add(kind: Int, first: Int, second: Int, set: IntArray?): Int {
+            if (this.kind.size >= maxStates) throw PatternException("Pattern is too large")
+            this.kind += kind
+            out1 += first
+            out2 += second
+            ranges += set
+            return this.kind.size - 1
+        }
+    }
+
+    internal class IntList {
+        var data = IntArray(8)
+            private set
+        var size = 0
+            private set
+
+        operator fun get(index: Int): Int = data[index]
+
+        operator fun set(index: Int, value: Int) {
+            data[index] = value
+        }
+
+        operator fun plusAssign(value: Int) {
+            if (size == data.size) data = data.copyOf(size * 2)
+            data[size++] = value
+        }
+
+        fun removeLast(): Int = data[--size]
+
+        fun clear() {
+            size = 0
+        }
+
+        fun toIntArray(): IntArray = data.copyOf(size)
+    }
+}
@@ -0,0 +1,305 @@
+package com.close.hook.ads.data
+
+import android.util.Log
+import com.close.hook.ads.data.model.RuleMatch
+import com.close.hook.ads.data.model.Url
+import java.nio.IntBuffer
+import java.util.Arrays
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+ * Wildcard and Regex rules as one automaton. The NFA from [PatternCompiler] is the shareable part (it goes
+ * into the rule blob); DFA states are built on first use and kept in a bounded per-process cache, like RE2.
+ * Cached transitions are read without locking; only a miss takes the cache lock. When several patterns
+ * match, the one listed first wins.
+ */
+class PatternMatcher private constructor(
+    private val patterns: StringTable,
+    private val types: IntBuffer,
+    private val classStarts: IntBuffer,
+    private val kind: IntBuffer,
+    private val out1: IntBuffer,
+    private val out2: IntBuffer,
+    private val classRangeStart: IntBuffer,
+    private val classRanges: IntBuffer,
+    private val startStates: IntBuffer
+) {
+
+    val size: Int get() = patterns.size
+
+    private val classCount = classStarts.limit()
+    private val asciiClasses = IntArray(ASCII_LIMIT) { classOf(it) }
+    private val maxCachedStates = (MAX_CACHE_ENTRIES / maxOf(classCount, 1)).coerceIn(MIN_CACHED_STATES, MAX_CACHED_STATES)
+
+    @Volatile private var cache: StateCache? = null
+
+    fun firstMatch(lowerText: String): RuleMatch? {
+        if (patterns.size == 0) return null
+
+        var current = cache ?: resetCache(null)
+        var state = START_STATE
+        var best = current.acceptAny[state]
+
+        for (index in lowerText.indices) {
+            val ch = lowerText[index].code
+            val cls = if (ch < ASCII_LIMIT) asciiClasses[ch] else classOf(ch)
+
+            var next = current.table.get(state * classCount + cls) - 1
+            if (next < 0) {
+                next = current.step(state, cls)
+                if (next < 0) {
+                    // Cache is full: start a fresh one and carry the current subset over. The cache handed
+                    // back may be one another thread has filled up meanwhile, in which case replace that too.
+                    val subset = current.subsetOf(state)
+                    do {
+                        current = resetCache(current)
+                        state = current.intern(subset)
+                        next = if (state < 0) -1 else current.step(state, cls)
+                    } while (next < 0)
+                }
+            }
+
+            state = next
+            if (state == DEAD_STATE) break
+
+            val hit = current.acceptAny[state]
+            if (hit < best) best = hit
+        }
+        if (state != DEAD_STATE) best = minOf(best, current.acceptEnd[state])
+
+        if (best == PatternCompiler.NO_RULE) return null
+        val ruleType = if (types.get(best) == TYPE_REGEX) "Regex" else "Wildcard"
+        return RuleMatch(matched = true, ruleType = ruleType, ruleUrl = patterns[best])
+    }
+
+    internal fun writeTo(writer: RuleBlob.Writer) {
+        patterns.writeTo(writer)
+        writer.putInts(types)
+        writer.putInts(classStarts)
+        writer.putInts(kind)
+        writer.putInts(out1)
+        writer.putInts(out2)
+        writer.putInts(classRangeStart)
+        writer.putInts(classRanges)
+        writer.putInts(startStates)
+    }
+
+    private fun resetCache(expected: StateCache?): StateCache = synchronized(this) {
+        val existing = cache
+        if (existing != null && existing !== expected) return existing
+        StateCache().also { cache = it }
+    }
+
+    private fun classOf(ch: Int): Int {
+        var low = 0
+        var high = classCount - 1
+        while (low < high) {
+            val mid = (low + high + 1) ushr 1
+            if (classStarts.get(mid) <= ch) low = mid else high = mid - 1
+        }
+        return low
+    }
+
+    /**
+     * One generation of lazily built DFA states. Table entries are `state + 1`, with 0 meaning not built
+     * yet; a state's subset and accept values are written before the entry that points at it.
+     */
+    private inner class StateCache {
+        val table = AtomicIntegerArray(maxCachedStates * classCount)
+        val acceptAny = IntArray(maxCachedStates)
+        val acceptEnd = IntArray(maxCachedStates)
+
+        private val subsets = arrayOfNulls<IntArray>(maxCachedStates)
+        private val ids = HashMap<SubsetKey, Int>()
+        private var count = 0
+
+        private val visited = IntArray(kind.limit())
+        private var stamp = 0
+        private val stack = PatternCompiler.IntList()
+        private val targets = PatternCompiler.IntList()
+
+        init {
+            intern(IntArray(0))
+            intern(IntArray(startStates.limit()) { startStates.get(it) })
+        }
+
+        @Synchronized
+        fun intern(subset: IntArray): Int {
+            val key = SubsetKey(subset)
+            ids[key]?.let { return it }
+            if (count == maxCachedStates) return -1
+
+            val id = count++
+            subsets[id] = subset
+            var any = PatternCompiler.NO_RULE
+            var end = PatternCompiler.NO_RULE
+            subset.forEach { n ->
+                when (kind.get(n)) {
+                    PatternCompiler.KIND_MATCH -> any = minOf(any, out1.get(n))
+                    PatternCompiler.KIND_MATCH_END -> end = minOf(end, out1.get(n))
+                }
+            }
+            acceptAny[id] = any
+            acceptEnd[id] = end
+            ids[key] = id
+            return id
+        }
+
+        @Synchronized
+        fun subsetOf(state: Int): IntArray = subsets[state]!!
+
+        /**
+         * Returns the state reached from [state] on class [cls], building it if needed, or -1 when this
+         * generation has no room left.
+         */
+        @Synchronized
+        fun step(state: Int, cls: Int): Int {
+            val slot = state * classCount + cls
+            val known = table.get(slot)
+            if (known != 0) return known - 1
+
+            targets.clear()
+            subsets[state]!!.forEach { n ->
+                if (kind.get(n) != PatternCompiler.KIND_CHARS) return@forEach
+                var r = classRangeStart.get(n)
+                val rangeEnd = classRangeStart.get(n + 1)
+                while (r < rangeEnd) {
+                    if (cls >= classRanges.get(r) && cls <= classRanges.get(r + 1)) {
+                        targets += out1.get(n)
+                        break
+                    }
+                    r += 2
+                }
+            }
+
+            val next = intern(closure())
+            if (next >= 0) table.set(slot, next + 1)
+            return next
+        }
+
+        private fun closure(): IntArray {
+            stamp++
+            val result = PatternCompiler.IntList()
+            for (i in 0 until targets.size) stack += targets[i]
+            while (stack.size > 0) {
+                val n = stack.removeLast()
+                if (n < 0 || visited[n] == stamp) continue
+                visited[n] = stamp
+                if (kind.get(n) == PatternCompiler.KIND_SPLIT) {
+                    stack += out1.get(n)
+                    stack += out2.get(n)
+                } else {
+                    result += n
+                }
+            }
+            return result.toIntArray().also { it.sort() }
+        }
+    }
+
+    private class SubsetKey(private val states: IntArray) {
+        private val hash = Arrays.hashCode(states)
+        override fun hashCode(): Int = hash
+        override fun equals(other: Any?): Boolean = other is SubsetKey && Arrays.equals(states, other.states)
+    }
+
+    companion object {
+        private const val TAG = "PatternMatcher"
+        private const val TYPE_WILDCARD = 0
+        private const val TYPE_REGEX = 1
+        private const val DEAD_STATE = 0
+        private const val START_STATE = 1
+        private const val ASCII_LIMIT = 128
+
+        // Transition table budget per process; the state cap follows from the number of character classes.
+        private const val MAX_CACHE_ENTRIES = 256 * 1024
+        private const val MIN_CACHED_STATES = 16
+        private const val MAX_CACHED_STATES = 4096
+
+        val EMPTY = PatternMatcher(
+            patterns = StringTable.EMPTY,
+            types = IntBuffer.allocate(0),
+            classStarts = IntBuffer.wrap(intArrayOf(0)),
+            kind = IntBuffer.allocate(0),
+            out1 = IntBuffer.allocate(0),
+            out2 = IntBuffer.allocate(0),
+            classRangeStart = IntBuffer.wrap(intArrayOf(0)),
+            classRanges = IntBuffer.allocate(0),
+            startStates = IntBuffer.allocate(0)
+        )
+
+        fun isPatternType(type: String): Boolean = when (type.trim().lowercase(Locale.ROOT)) {
+            "regex", "wildcard" -> true
+            else -> false
+        }
+
+        /**
+         * Returns why [pattern] cannot be used as a rule of [type], or null when it compiles. Used when rules
+         * are saved, so anything that reaches a snapshot is known to build.
+         */
+        fun validate(type: String, pattern: String): String? = try {
+            PatternCompiler.check(parse(type.trim(), pattern.trim()))
+            null
+        } catch (e: PatternCompiler.PatternException) {
+            e.message
+        }
+
+        fun build(rules: List<Url>): PatternMatcher {
+            val patterns = ArrayList<String>(rules.size)
+            val types = ArrayList<Int>(rules.size)
+            val parsed = ArrayList<PatternCompiler.Parsed>(rules.size)
+
+            rules.forEach { rule ->
+                val type = rule.type.trim()
+                val value = rule.url.trim()
+                try {
+                    parsed += parse(type, value).also { PatternCompiler.check(it) }
+                    patterns += value
+                    types += if (type.equals("regex", ignoreCase = true)) TYPE_REGEX else TYPE_WILDCARD
+                } catch (e: PatternCompiler.PatternException) {
+                    Log.w(TAG, "Skipping pattern $value: ${e.message}")
+                }
+            }
+            if (parsed.isEmpty()) return EMPTY
+
+            val program = try {
+                PatternCompiler.compile(parsed)
+            } catch (e: PatternCompiler.PatternException) {
+                Log.w(TAG, "Skipping pattern rules: ${e.message}")
+                return EMPTY
+            }
+
+            return PatternMatcher(
+                patterns = StringTable.of(patterns),
+                types = IntBuffer.wrap(types.toIntArray()),
+                classStarts = IntBuffer.wrap(program.classStarts),
+                kind = IntBuffer.wrap(program.kind),
+                out1 = IntBuffer.wrap(program.out1),
+                out2 = IntBuffer.wrap(program.out2),
+                classRangeStart = IntBuffer.wrap(program.classRangeStart),
+                classRanges = IntBuffer.wrap(program.classRanges),
+                startStates = IntBuffer.wrap(program.startStates)
+            )
+        }
+
+        internal fun readFrom(reader: RuleBlob.Reader): PatternMatcher =
+            PatternMatcher(
+                patterns = StringTable.readFrom(reader),
+                types = reader.ints(),
+                classStarts = reader.ints(),
+                kind = reader.ints(),
+                out1 = reader.ints(),
+                out2 = reader.ints(),
+                classRangeStart = reader.ints(),
+                classRanges = reader.ints(),
+                startStates = reader.ints()
+            )
+
+        private fun parse(type: String, pattern: String): PatternCompiler.Parsed =
+            if (type.equals("regex", ignoreCase = true)) {
+                PatternCompiler.parseRegex(pattern)
+            } else {
+                PatternCompiler.parseWildcard(pattern)
+            }
+    }
+}
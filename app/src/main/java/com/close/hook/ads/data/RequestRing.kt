@@ -0,0 +1,212 @@
+package com.close.hook.ads.data
+
+import com.close.hook.ads.data.model.RequestInfo
+import java.nio.BufferOverflowException
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.CharBuffer
+import java.nio.charset.CodingErrorAction
+import java.nio.charset.StandardCharsets
+
+/**
+ * Binary layout of the request records a hooked process hands to the module app through shared memory. The
+ * region is cut into [SEGMENT_COUNT] segments that circulate between the two: the hooked process fills a free
+ * one and names it in a oneway binder call, and gets it back once the app has read it. Both handoffs are
+ * binder transactions, so neither side looks at bytes the other is still writing.
+ *
+ * Segment layout (little endian): magic, record count, package name, then the records. A record is its
+ * timestamp, response code and flags, its string fields as UTF-8 behind an int length (-1 for null), and any
+ * body of up to [MAX_INLINE_BODY] bytes; larger bodies travel as TemporaryFileProvider URIs instead.
+ */
+object RequestRing {
+
+    private const val MAGIC = 0x52524441 // "ADRR"
+    private const val FLAG_BLOCKED = 1
+    private const val FLAG_BLOCKED_KNOWN = 2
+
+    // Timestamp, response code and flags, then a length for each of the 17 strings and 2 bodies.
+    private const val MIN_RECORD_SIZE = 8 + 4 + 1 + 19 * 4
+
+    const val SEGMENT_COUNT = 8
+    const val SEGMENT_SIZE = 64 * 1024
+    const val SIZE = SEGMENT_COUNT * SEGMENT_SIZE
+    const val MAX_INLINE_BODY = 8 * 1024
+
+    fun segment(region: ByteBuffer, index: Int): ByteBuffer {
+        val view = region.duplicate()
+        view.limit(index * SEGMENT_SIZE + SEGMENT_SIZE)
+        view.position(index * SEGMENT_SIZE)
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    class Writer(private val segment: ByteBuffer, packageName: String) {
+
+        private val encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+
+        var count = 0
+            private set
+
+        init {
+            segment.clear()
+            segment.putInt(MAGIC)
+            segment.putInt(0)
+            putString(packageName)
+        }
+
+        /** Appends [info], or leaves the segment as it was and returns false when the record does not fit. */
+        fun put(info: RequestInfo): Boolean {
+            val start = segment.position()
+            val fits = try {
+                segment.putLong(info.timestamp)
+                segment.putInt(info.responseCode)
+                segment.put(flags(info.isBlocked).toByte())
+                putString(info.appName) &&
+                    putString(info.request) &&
+                    putString(info.requestType) &&
+                    putString(info.url) &&
+                    putString(info.blockType) &&
+                    putString(info.method) &&
+                    putString(info.urlString) &&
+                    putString(info.requestHeaders) &&
+                    putString(info.requestBodyUriString) &&
+                    putString(info.responseMessage) &&
+                    putString(info.responseHeaders) &&
+                    putString(info.responseBodyUriString) &&
+                    putString(info.responseBodyContentType) &&
+                    putString(info.stack) &&
+                    putString(info.dnsHost) &&
+                    putString(info.fullAddress) &&
+                    putString(info.requestId) &&
+                    putBytes(info.requestBody) &&
+                    putBytes(info.responseBody)
+            } catch (e: BufferOverflowException) {
+                false
+            }
+            if (!fits) {
+                segment.position(start)
+                return false
+            }
+            count++
+            return true
+        }
+
+        /** Writes the record count and returns the segment's length in bytes. */
+        fun finish(): Int {
+            segment.putInt(4, count)
+            return segment.position()
+        }
+
+        private fun putString(value: String?): Boolean {
+            if (value == null) {
+                segment.putInt(-1)
+                return true
+            }
+            val lengthAt = segment.position()
+            segment.putInt(0)
+            encoder.reset()
+            if (encoder.encode(CharBuffer.wrap(value), segment, true).isOverflow) return false
+            if (encoder.flush(segment).isOverflow) return false
+            segment.putInt(lengthAt, segment.position() - lengthAt - 4)
+            return true
+        }
+
+        private fun putBytes(value: ByteArray?): Boolean {
+            if (value == null) {
+                segment.putInt(-1)
+                return true
+            }
+            segment.putInt(value.size)
+            segment.put(value)
+            return true
+        }
+    }
+
+    /**
+     * Reads the records of a segment the hooked process has handed over. Returns null when the first [length]
+     * bytes are not a well-formed segment. Inline bodies come back in [RequestInfo.requestBody] and
+     * [RequestInfo.responseBody].
+     */
+    fun read(segment: ByteBuffer, length: Int): List<RequestInfo>? {
+        if (length < 8 || length > segment.capacity()) return null
+        val source = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        source.position(0)
+        source.limit(length)
+        if (source.getInt() != MAGIC) return null
+        val count = source.getInt()
+        if (count < 0) return null
+
+        return try {
+            val reader = Reader(source)
+            val packageName = reader.string() ?: return null
+            // The segment is written by the hooked app; check sizes before allocating for them.
+            if (count > source.remaining() / MIN_RECORD_SIZE) return null
+            List(count) { reader.record(packageName) }
+        } catch (e: RuntimeException) {
+            null
+        }
+    }
+
+    private class Reader(private val source: ByteBuffer) {
+
+        private val decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+
+        fun record(packageName: String): RequestInfo {
+            val timestamp = source.getLong()
+            val responseCode = source.getInt()
+            val flags = source.get().toInt()
+            return RequestInfo(
+                appName = string().orEmpty(),
+                packageName = packageName,
+                request = string().orEmpty(),
+                timestamp = timestamp,
+                requestType = string(),
+                isBlocked = if ((flags and FLAG_BLOCKED_KNOWN) != 0) (flags and FLAG_BLOCKED) != 0 else null,
+                url = string(),
+                blockType = string(),
+                method = string(),
+                urlString = string(),
+                requestHeaders = string(),
+                requestBodyUriString = string(),
+                responseCode = responseCode,
+                responseMessage = string(),
+                responseHeaders = string(),
+                responseBodyUriString = string(),
+                responseBodyContentType = string(),
+                stack = string(),
+                dnsHost = string(),
+                fullAddress = string(),
+                requestId = string().orEmpty()
+            ).apply {
+                requestBody = bytes()
+                responseBody = bytes()
+            }
+        }
+
+        fun string(): String? {
+            val length = source.getInt()
+            if (length < 0) return null
+            val bytes = source.duplicate()
+            bytes.limit(source.position() + length)
+            source.position(source.position() + length)
+            return decoder.decode(bytes).toString()
+        }
+
+        fun bytes(): ByteArray? {
+            val length = source.getInt()
+            if (length < 0) return null
+            if (length > source.remaining()) throw BufferUnderflowException()
+            return ByteArray(length).also { source.get(it) }
+        }
+    }
+
+    private fun flags(isBlocked: Boolean?): Int = when (isBlocked) {
+        null -> 0
+        true -> FLAG_BLOCKED_KNOWN or FLAG_BLOCKED
+        false -> FLAG_BLOCKED_KNOWN
+    }
+}
@@ -0,0 +1,146 @@
+package com.close.hook.ads.data
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.CharBuffer
+import java.nio.IntBuffer
+
+/**
+ * Binary form of a [RuleSnapshot]. The module app compiles it once per rule version; hooked processes map
+ * the file read-only and match straight out of the mapped pages, which the kernel shares between them.
+ *
+ * Layout (little endian): magic, format, rule version, total length, then the URL trie, the domain table,
+ * the domain-suffix trie, the keyword automaton, the pattern NFA and the host filter. Every array is an int
+ * count followed by its data, padded to four bytes so int views stay aligned.
+ *
+ * The native hooks read the same layout (native_rules.cpp), so a change here bumps [FORMAT_VERSION] there too.
+ */
+object RuleBlob {
+
+    private const val MAGIC = 0x42524441 // "ADRB"
+    internal const val FORMAT_VERSION = 3
+    private const val HEADER_SIZE = 24
+
+    /** [buffer] is the blob [snapshot] reads from. */
+    class Loaded(val version: Long, val snapshot: RuleSnapshot, val buffer: ByteBuffer)
+
+    fun encode(version: Long, snapshot: RuleSnapshot): ByteBuffer {
+        val writer = Writer()
+        writer.putInt(MAGIC)
+        writer.putInt(FORMAT_VERSION)
+        writer.putLong(version)
+        writer.putInt(0)
+        writer.putInt(0)
+
+        snapshot.urlPrefixes.writeTo(writer)
+        snapshot.domains.writeTo(writer)
+        snapshot.domainSuffixes.writeTo(writer)
+        snapshot.keywords.writeTo(writer)
+        snapshot.patterns.writeTo(writer)
+        snapshot.hostFilter.writeTo(writer)
+
+        return writer.finish()
+    }
+
+    /**
+     * Returns null when [buffer] is not a complete blob of this format, e.g. a file cut short by a crash.
+     */
+    fun decode(buffer: ByteBuffer): Loaded? {
+        val source = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        if (source.remaining() < HEADER_SIZE) return null
+        if (source.getInt() != MAGIC || source.getInt() != FORMAT_VERSION) return null
+
+        val version = source.getLong()
+        val length = source.getInt()
+        source.getInt()
+        if (length != source.limit()) return null
+
+        return try {
+            val reader = Reader(source)
+            val snapshot = RuleSnapshot(
+                urlPrefixes = CharTrie.readFrom(reader),
+                domains = DomainTable.readFrom(reader),
+                domainSuffixes = CharTrie.readFrom(reader),
+                keywords = KeywordMatcher.readFrom(reader),
+                patterns = PatternMatcher.readFrom(reader),
+                hostFilter = HostFilter.readFrom(reader)
+            )
+            Loaded(version, snapshot, buffer)
+        } catch (e: RuntimeException) {
+            null
+        }
+    }
+
+    internal class Writer {
+        private var buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN)
+
+        fun putInt(value: Int) {
+            ensure(4)
+            buffer.putInt(value)
+        }
+
+        fun putLong(value: Long) {
+            ensure(8)
+            buffer.putLong(value)
+        }
+
+        fun putInts(values: IntBuffer) {
+            val count = values.limit()
+            ensure(4 + count * 4)
+            buffer.putInt(count)
+            for (i in 0 until count) {
+                buffer.putInt(values.get(i))
+            }
+        }
+
+        fun putChars(values: CharBuffer) {
+            val count = values.limit()
+            ensure(4 + count * 2 + 2)
+            buffer.putInt(count)
+            for (i in 0 until count) {
+                buffer.putChar(values.get(i))
+            }
+            if (count % 2 != 0) buffer.putChar('\u0000')
+        }
+
+        fun finish(): ByteBuffer {
+            buffer.putInt(16, buffer.position())
+            buffer.flip()
+            return buffer
+        }
+
+        private fun ensure(bytes: Int) {
+            if (buffer.remaining() >= bytes) return
+            val grown = ByteBuffer.allocate(maxOf(buffer.capacity() * 2, buffer.position() + bytes))
+                .order(ByteOrder.LITTLE_ENDIAN)
+            buffer.flip()
+            grown.put(buffer)
+            buffer = grown
+        }
+    }
+
+    internal class Reader(private val source: ByteBuffer) {
+
+        fun int(): Int = source.getInt()
+
+        fun ints(): IntBuffer {
+            val count = source.getInt()
+            return section(count * 4).asIntBuffer()
+        }
+
+        fun chars(): CharBuffer {
+            val count = source.getInt()
+            val chars = section(count * 2).asCharBuffer()
+            if (count % 2 != 0) source.position(source.position() + 2)
+            return chars
+        }
+
+        private fun section(bytes: Int): ByteBuffer {
+            require(bytes >= 0 && bytes <= source.remaining())
+            val slice = source.slice().order(ByteOrder.LITTLE_ENDIAN)
+            slice.limit(bytes)
+            source.position(source.position() + bytes)
+            return slice
+        }
+    }
+}
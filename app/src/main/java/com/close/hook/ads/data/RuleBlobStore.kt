@@ -0,0 +1,111 @@
+package com.close.hook.ads.data
+
+import android.content.Context
+import android.os.ParcelFileDescriptor
+import android.util.Log
+import com.close.hook.ads.data.database.UrlDatabase
+import com.close.hook.ads.hook.HookLogic
+import com.close.hook.ads.manager.ServiceManager
+import com.close.hook.ads.provider.UrlContentProvider
+import java.io.FileOutputStream
+import java.nio.channels.FileChannel
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Keeps the compiled [RuleBlob] in the framework's remote files. Each rule version gets its own file and
+ * older ones are deleted rather than rewritten, so a process still mapping an old blob never sees it change.
+ */
+object RuleBlobStore {
+
+    private const val TAG = "RuleBlobStore"
+    private const val FILE_PREFIX = "rules_"
+    private const val FILE_SUFFIX = ".bin"
+
+    // The format is part of the name so a module update never maps, or keeps, a blob it cannot decode.
+    private const val CURRENT_PREFIX = "${FILE_PREFIX}f${RuleBlob.FORMAT_VERSION}_v"
+
+    private val publishPending = AtomicBoolean(false)
+    private val publishExecutor: ExecutorService by lazy {
+        Executors.newSingleThreadExecutor { r ->
+            Thread(r, "AdClose-RuleBlob").apply { isDaemon = true }
+        }
+    }
+
+    /**
+     * Module app side: recompiles the blob for the current rule version, then notifies observers of
+     * url_info. Bursts of calls collapse into one compile.
+     */
+    fun publish(context: Context) {
+        val appContext = context.applicationContext ?: context
+        if (!publishPending.compareAndSet(false, true)) return
+
+        publishExecutor.execute {
+            publishPending.set(false)
+            try {
+                writeBlob(appContext)
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to publish rule blob", e)
+            }
+            appContext.contentResolver.notifyChange(UrlContentProvider.CONTENT_URI, null)
+        }
+    }
+
+    /**
+     * Hooked process side: maps the newest blob whose version is above [afterVersion], or returns null when
+     * there is none or it cannot be read.
+     */
+    fun openLatest(afterVersion: Long): RuleBlob.Loaded? {
+        val xposedInterface = HookLogic.xposedInterface ?: return null
+        val (version, fileName) = latestBlob(xposedInterface.listRemoteFiles()) ?: return null
+        if (version <= afterVersion) return null
+
+        return try {
+            val pfd = xposedInterface.openRemoteFile(fileName)
+            ParcelFileDescriptor.AutoCloseInputStream(pfd).channel.use { channel ->
+                RuleBlob.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+            }
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to map rule blob $fileName: ${e.message}")
+            null
+        }
+    }
+
+    private fun writeBlob(context: Context) {
+        val service = ServiceManager.service ?: return
+        val urlDao = UrlDatabase.getDatabase(context).urlDao
+
+        // Read the version before the rules: a write landing in between only makes readers replay deltas
+        // that are already in the blob, which is harmless.
+        val version = urlDao.currentRuleVersion()
+        val fileName = "$CURRENT_PREFIX$version$FILE_SUFFIX"
+        val existing = service.listRemoteFiles().orEmpty()
+
+        if (fileName !in existing) {
+            val blob = RuleBlob.encode(version, RuleSnapshot.fromUrls(urlDao.findAllList()))
+            service.openRemoteFile(fileName).use { pfd ->
+                FileOutputStream(pfd.fileDescriptor).use { fos ->
+                    fos.channel.truncate(0)
+                    fos.channel.position(0)
+                    while (blob.hasRemaining()) {
+                        fos.channel.write(blob)
+                    }
+                }
+            }
+        }
+
+        existing.filter { it != fileName && it.startsWith(FILE_PREFIX) && it.endsWith(FILE_SUFFIX) }
+            .forEach { service.deleteRemoteFile(it) }
+    }
+
+    private fun latestBlob(fileNames: Array<String>?): Pair<Long, String>? =
+        fileNames.orEmpty()
+            .mapNotNull { name -> parseVersion(name)?.let { it to name } }
+            .maxByOrNull { it.first }
+
+    private fun parseVersion(fileName: String): Long? {
+        if (!fileName.startsWith(CURRENT_PREFIX) || !fileName.endsWith(FILE_SUFFIX)) return null
+        return fileName.substring(CURRENT_PREFIX.length, fileName.length - FILE_SUFFIX.length).toLongOrNull()
+    }
+}
@@ -1,53 +1,79 @@
 package com.close.hook.ads.data
 
+import com.close.hook.ads.data.model.RequestKey
 import com.close.hook.ads.data.model.RuleMatch
 import com.close.hook.ads.data.model.Url
 import java.util.Locale
 
 data class RuleSnapshot(
-    val exactUrls: Set<String>,
-    val domains: Set<String>,
-    val keywords: List<String>
+    val urlPrefixes: CharTrie,
+    val domains: DomainTable,
+    val domainSuffixes: CharTrie,
+    val keywords: KeywordMatcher,
+    val patterns: PatternMatcher,
+    val hostFilter: HostFilter
 ) {
-    fun match(requestValue: String, host: String?): RuleMatch {
-        val normalizedRequest = requestValue.trim()
-        val normalizedHost = host?.trim().orEmpty()
+    fun match(request: RequestKey): RuleMatch {
+        if (request.isEmpty) return RuleMatch.NOT_MATCHED
 
-        if (normalizedRequest.isEmpty()) return RuleMatch.NOT_MATCHED
+        val lowerRequest = request.lower
 
-        val lowerRequest = normalizedRequest.lowercase(Locale.ROOT)
-        val lowerHost = normalizedHost.lowercase(Locale.ROOT)
-
-        if (lowerRequest in exactUrls) {
-            return RuleMatch(matched = true, ruleType = "URL", ruleUrl = normalizedRequest)
+        urlPrefixes.longestPrefix(lowerRequest)?.let {
+            return RuleMatch(matched = true, ruleType = "URL", ruleUrl = it)
         }
 
-        if (lowerHost.isNotEmpty() && lowerHost in domains) {
-            return RuleMatch(matched = true, ruleType = "Domain", ruleUrl = normalizedHost)
+        if (request.hasHost) {
+            if (domains.contains(lowerRequest, request.hostStart, request.hostEnd)) {
+                return RuleMatch(matched = true, ruleType = "Domain", ruleUrl = request.host)
+            }
+
+            domainSuffixes.matchSuffix(lowerRequest, '.', request.hostStart, request.hostEnd)?.let {
+                return RuleMatch(matched = true, ruleType = "DomainSuffix", ruleUrl = it)
+            }
         }
 
-        keywords.firstOrNull { keyword ->
-            keyword.isNotBlank() && lowerRequest.contains(keyword, ignoreCase = true)
-        }?.let {
+        keywords.firstMatch(lowerRequest)?.let {
             return RuleMatch(matched = true, ruleType = "KeyWord", ruleUrl = it)
         }
 
+        patterns.firstMatch(lowerRequest)?.let { return it }
+
         return RuleMatch.NOT_MATCHED
     }
 
+    /**
+     * False only when [match] is certain to miss [request], a bare host such as a DNS lookup. Domain rules are
+     * answered by the [hostFilter]; the other kinds are already one allocation-free pass over the host.
+     */
+    fun mayMatchHost(request: RequestKey): Boolean {
+        if (request.isEmpty) return false
+
+        val lowerHost = request.lower
+        return hostFilter.mightMatch(lowerHost, request.hostStart, request.hostEnd) ||
+            urlPrefixes.longestPrefix(lowerHost) != null ||
+            keywords.firstMatch(lowerHost) != null ||
+            patterns.firstMatch(lowerHost) != null
+    }
+
     companion object {
         val EMPTY = RuleSnapshot(
-            exactUrls = emptySet(),
-            domains = emptySet(),
-            keywords = emptyList()
+            urlPrefixes = CharTrie.EMPTY,
+            domains = DomainTable.EMPTY,
+            domainSuffixes = CharTrie.EMPTY,
+            keywords = KeywordMatcher.EMPTY,
+            patterns = PatternMatcher.EMPTY,
+            hostFilter = HostFilter.EMPTY
         )
 
         fun fromUrls(urls: List<Url>): RuleSnapshot {
             if (urls.isEmpty()) return EMPTY
 
-            val exactUrls = LinkedHashSet<String>()
+            val urlPrefixes = CharTrie.Builder()
             val domains = LinkedHashSet<String>()
+            val domainSuffixes = CharTrie.Builder(reversed = true)
+            val filteredHosts = ArrayList<String>()
             val keywords = ArrayList<String>()
+            val patterns = ArrayList<Url>()
 
             urls.forEach { rule ->
                 val type = rule.type.trim()
@@ -55,17 +81,31 @@ data class RuleSnapshot(
                 if (value.isEmpty()) return@forEach
 
                 when (type.lowercase(Locale.ROOT)) {
-                    "url"     -> exactUrls += value.lowercase(Locale.ROOT)
+                    "url"     -> urlPrefixes.add(value.lowercase(Locale.ROOT), value)
                     "domain"  -> domains   += value.lowercase(Locale.ROOT)
+                    "domainsuffix" -> normalizeDomainSuffix(value)?.let {
+                        domainSuffixes.add(it, value)
+                        filteredHosts += it
+                    }
                     "keyword" -> keywords  += value
+                    "regex", "wildcard" -> patterns += rule
                 }
             }
 
             return RuleSnapshot(
-                exactUrls = exactUrls,
-                domains = domains,
-                keywords = keywords
+                urlPrefixes = urlPrefixes.build(),
+                domains = DomainTable.build(domains),
+                domainSuffixes = domainSuffixes.build(),
+                keywords = KeywordMatcher.build(keywords),
+                patterns = PatternMatcher.build(patterns),
+                hostFilter = HostFilter.build(filteredHosts + domains)
             )
         }
+
+        private fun normalizeDomainSuffix(value: String): String? =
+            value.lowercase(Locale.ROOT)
+                .removePrefix("*.")
+                .trim('.')
+                .ifEmpty { null }
     }
 }
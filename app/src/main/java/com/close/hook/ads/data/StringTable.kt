@@ -0,0 +1,61 @@
+package com.close.hook.ads.data
+
+import java.nio.CharBuffer
+import java.nio.IntBuffer
+
+/**
+ * Strings packed into one char region with an offset table, so a rule blob can expose its values without
+ * materialising every string up front.
+ */
+class StringTable private constructor(
+    private val offsets: IntBuffer,
+    private val chars: CharBuffer
+) {
+
+    val size: Int get() = offsets.limit() - 1
+
+    operator fun get(index: Int): String {
+        val start = offsets.get(index)
+        val end = offsets.get(index + 1)
+        val out = CharArray(end - start)
+        for (i in out.indices) {
+            out[i] = chars.get(start + i)
+        }
+        return String(out)
+    }
+
+    fun contentEquals(index: Int, text: String, start: Int = 0, end: Int = text.length): Boolean {
+        val offset = offsets.get(index)
+        if (offsets.get(index + 1) - offset != end - start) return false
+        for (i in 0 until end - start) {
+            if (chars.get(offset + i) != text[start + i]) return false
+        }
+        return true
+    }
+
+    internal fun writeTo(writer: RuleBlob.Writer) {
+        writer.putInts(offsets)
+        writer.putChars(chars)
+    }
+
+    companion object {
+        val EMPTY = StringTable(IntBuffer.wrap(intArrayOf(0)), CharBuffer.allocate(0))
+
+        fun of(strings: List<String>): StringTable {
+            if (strings.isEmpty()) return EMPTY
+
+            val offsets = IntArray(strings.size + 1)
+            strings.forEachIndexed { index, value ->
+                offsets[index + 1] = offsets[index] + value.length
+            }
+            val chars = CharArray(offsets[strings.size])
+            strings.forEachIndexed { index, value ->
+                value.toCharArray(chars, offsets[index])
+            }
+            return StringTable(IntBuffer.wrap(offsets), CharBuffer.wrap(chars))
+        }
+
+        internal fun readFrom(reader: RuleBlob.Reader): StringTable =
+            StringTable(reader.ints(), reader.chars())
+    }
+}
@@ -7,6 +7,7 @@ import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import androidx.room.Update
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.data.model.UrlChange
 import kotlinx.coroutines.flow.Flow
 
 @Dao
@@ -42,6 +43,9 @@ interface UrlDao {
     @Query("SELECT * FROM url_info WHERE type = 'Domain' AND url = :host LIMIT 1")
     fun findDomainMatch(host: String): Url?
 
+    @Query("SELECT * FROM url_info WHERE type = 'DomainSuffix' AND (:host = url OR :host LIKE '%.' || url) LIMIT 1")
+    fun findDomainSuffixMatch(host: String): Url?
+
     @Query("SELECT * FROM url_info WHERE type = 'KeyWord' AND INSTR(:value, url) > 0 LIMIT 1")
     fun findKeywordMatch(value: String): Url?
 
@@ -71,4 +75,16 @@ interface UrlDao {
 
     @Query("DELETE FROM url_info")
     fun deleteAll(): Int
+
+    @Query("SELECT COALESCE(MAX(version), 0) FROM url_change_log")
+    fun currentRuleVersion(): Long
+
+    @Query("SELECT COALESCE(MIN(version), 0) FROM url_change_log")
+    fun oldestRuleVersion(): Long
+
+    @Query("SELECT COUNT(*) FROM url_change_log WHERE version > :sinceVersion")
+    fun countChangesSince(sinceVersion: Long): Int
+
+    @Query("SELECT * FROM url_change_log WHERE version > :sinceVersion ORDER BY version")
+    fun findChangesSince(sinceVersion: Long): List<UrlChange>
 }
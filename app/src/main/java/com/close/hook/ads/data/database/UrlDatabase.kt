@@ -8,8 +8,9 @@ import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
 import com.close.hook.ads.data.dao.UrlDao
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.data.model.UrlChange
 
-@Database(entities = [Url::class], version = 5, exportSchema = false)
+@Database(entities = [Url::class, UrlChange::class], version = 6, exportSchema = false)
 abstract class UrlDatabase : RoomDatabase() {
     abstract val urlDao: UrlDao
 
@@ -17,6 +18,8 @@ abstract class UrlDatabase : RoomDatabase() {
         @Volatile
         private var instance: UrlDatabase? = null
 
+        private const val CHANGE_LOG_RETENTION = 20_000
+
         private val MIGRATION_1_2: Migration = object : Migration(1, 2) {
             override fun migrate(db: SupportSQLiteDatabase) {
                 db.execSQL("CREATE TABLE url_info_new (id INTEGER NOT NULL, url TEXT NOT NULL, PRIMARY KEY(id))")
@@ -45,6 +48,28 @@ abstract class UrlDatabase : RoomDatabase() {
             }
         }
 
+        private val MIGRATION_5_6: Migration = object : Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TABLE IF NOT EXISTS url_change_log (version INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, rule_id INTEGER NOT NULL, op TEXT NOT NULL, type TEXT NOT NULL, url TEXT NOT NULL)")
+            }
+        }
+
+        // Every write to url_info is mirrored into url_change_log so hooked processes can pull deltas.
+        // Triggers are (re)created on open because Room does not manage them for fresh installs.
+        private val CHANGE_LOG_CALLBACK = object : RoomDatabase.Callback() {
+            override fun onOpen(db: SupportSQLiteDatabase) {
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS url_info_log_insert AFTER INSERT ON url_info BEGIN " +
+                        "INSERT INTO url_change_log (rule_id, op, type, url) VALUES (NEW.id, 'insert', NEW.type, NEW.url); END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS url_info_log_delete AFTER DELETE ON url_info BEGIN " +
+                        "INSERT INTO url_change_log (rule_id, op, type, url) VALUES (OLD.id, 'delete', OLD.type, OLD.url); END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS url_info_log_update AFTER UPDATE ON url_info BEGIN " +
+                        "INSERT INTO url_change_log (rule_id, op, type, url) VALUES (OLD.id, 'delete', OLD.type, OLD.url); " +
+                        "INSERT INTO url_change_log (rule_id, op, type, url) VALUES (NEW.id, 'insert', NEW.type, NEW.url); END")
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS url_change_log_prune AFTER INSERT ON url_change_log BEGIN " +
+                        "DELETE FROM url_change_log WHERE version <= NEW.version - $CHANGE_LOG_RETENTION; END")
+            }
+        }
+
         fun getDatabase(context: Context): UrlDatabase =
             instance ?: synchronized(this) {
                 instance ?: Room.databaseBuilder(
@@ -52,7 +77,8 @@ abstract class UrlDatabase : RoomDatabase() {
                     UrlDatabase::class.java,
                     "url_database"
                 )
-                .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5)
+                .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6)
+                .addCallback(CHANGE_LOG_CALLBACK)
                 .build().also {
                     instance = it
                 }
@@ -1,12 +1,8 @@
 package com.close.hook.ads.data.model
 
-import android.os.Parcelable
-import kotlinx.parcelize.Parcelize
-
-@Parcelize
 data class BlockedRequest(
     var requestType: String,
-    var requestValue: String,
+    var requestKey: RequestKey,
     var method: String?,
     var urlString: String?,
     var requestHeaders: String?,
@@ -16,8 +12,10 @@ data class BlockedRequest(
     var responseHeaders: String?,
     var responseBody: ByteArray?,
     var responseBodyContentType: String?,
-    var stack: String?,
+    var stack: CapturedStack?,
     var dnsHost: String?,
     var fullAddress: String?,
     var requestId: String = ""
-) : Parcelable
+) {
+    val requestValue: String get() = requestKey.value
+}
@@ -0,0 +1,65 @@
+package com.close.hook.ads.data.model
+
+import com.google.common.cache.CacheBuilder
+
+/**
+ * A Java call stack taken as a bare [Throwable] on the hooked thread and only turned into text by [format],
+ * which the broadcast thread calls. Identical stacks share one formatted string.
+ */
+class CapturedStack private constructor(
+    private val trace: Throwable,
+    private val skipFrames: Int,
+    private val nativeStack: String?
+) {
+
+    /** Returns this stack with a native one printed in front of it. */
+    fun withNative(nativeStack: String): CapturedStack =
+        CapturedStack(trace, skipFrames, nativeStack)
+
+    fun format(): String {
+        val frames = trace.stackTrace
+        val key = FramesKey(frames, skipFrames)
+        val java = formatted.get(key) { formatFrames(frames, skipFrames) }
+        return if (nativeStack == null) java else "$nativeStack\n$java"
+    }
+
+    private class FramesKey(private val frames: Array<StackTraceElement>, private val from: Int) {
+        private val hash = (from until frames.size).fold(1) { acc, i -> 31 * acc + frames[i].hashCode() }
+
+        override fun hashCode(): Int = hash
+
+        override fun equals(other: Any?): Boolean {
+            if (other !is FramesKey || hash != other.hash) return false
+            if (frames.size - from != other.frames.size - other.from) return false
+            for (i in from until frames.size) {
+                if (frames[i] != other.frames[i - from + other.from]) return false
+            }
+            return true
+        }
+    }
+
+    companion object {
+        private val formatted = CacheBuilder.newBuilder()
+            .maximumSize(256)
+            .build<FramesKey, String>()
+
+        /** Captures the caller's stack, leaving out the caller itself. */
+        fun capture(): CapturedStack = CapturedStack(Throwable(), 2, null)
+
+        private fun formatFrames(frames: Array<StackTraceElement>, from: Int): String {
+            val stackTrace = StringBuilder((frames.size - from).coerceAtLeast(0) * 100)
+            stackTrace.append("Stack Trace:\n")
+            for (i in from until frames.size) {
+                val element = frames[i]
+                stackTrace.append("  ")
+                    .append(element.className)
+                    .append(".")
+                    .append(element.methodName)
+                    .append("(line: ")
+                    .append(element.lineNumber)
+                    .append(")\n")
+            }
+            return stackTrace.toString()
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.close.hook.ads.data.model
+
+import android.os.Parcelable
+import kotlinx.parcelize.IgnoredOnParcel
+import kotlinx.parcelize.Parcelize
+import java.util.Locale
+
+/**
+ * An intercepted request's formatted value (scheme://authority/path, no query), parsed once. Spans index
+ * into both [value] and [lower], so rule matching reads the host in place instead of re-parsing.
+ */
+@Parcelize
+class RequestKey private constructor(
+    val value: String,
+    val schemeEnd: Int,
+    val hostStart: Int,
+    val hostEnd: Int,
+    val pathStart: Int
+) : Parcelable {
+
+    @IgnoredOnParcel
+    val lower: String = lowercaseKeepingLength(value)
+
+    val isEmpty: Boolean get() = value.isEmpty()
+
+    val hasHost: Boolean get() = hostEnd > hostStart
+
+    val scheme: String? get() = if (schemeEnd > 0) lower.substring(0, schemeEnd) else null
+
+    val host: String get() = lower.substring(hostStart, hostEnd)
+
+    val path: String get() = value.substring(pathStart)
+
+    override fun toString(): String = value
+
+    companion object {
+        val EMPTY = RequestKey("", -1, 0, 0, 0)
+
+        fun of(scheme: String, authority: String, path: String): RequestKey {
+            val value = "$scheme://$authority$path"
+            val authorityStart = scheme.length + 3
+            return withAuthority(value, scheme.length, authorityStart, authorityStart + authority.length)
+        }
+
+        // DNS lookups and other bare hosts: the whole value is the host, as AppUtils.extractHostOrSelf did.
+        fun ofHost(host: String): RequestKey {
+            val value = host.trim()
+            if (value.isEmpty()) return EMPTY
+            return RequestKey(value, -1, 0, value.length, value.length)
+        }
+
+        fun parse(raw: String): RequestKey {
+            val value = raw.trim()
+            if (value.isEmpty()) return EMPTY
+
+            val schemeEnd = value.indexOf("://")
+            if (schemeEnd <= 0) return ofHost(value)
+
+            val authorityStart = schemeEnd + 3
+            var authorityEnd = authorityStart
+            while (authorityEnd < value.length) {
+                val ch = value[authorityEnd]
+                if (ch == '/' || ch == '?' || ch == '#') break
+                authorityEnd++
+            }
+            return withAuthority(value, schemeEnd, authorityStart, authorityEnd)
+        }
+
+        private fun withAuthority(value: String, schemeEnd: Int, authorityStart: Int, authorityEnd: Int): RequestKey {
+            val at = value.lastIndexOf('@', authorityEnd - 1)
+            val hostStart = if (at >= authorityStart) at + 1 else authorityStart
+
+            var hostEnd = authorityEnd
+            if (hostStart < authorityEnd && value[hostStart] == '[') {
+                val close = value.indexOf(']', hostStart)
+                if (close in hostStart until authorityEnd) hostEnd = close + 1
+            } else {
+                val colon = value.indexOf(':', hostStart)
+                if (colon in hostStart until authorityEnd) hostEnd = colon
+            }
+            return RequestKey(value, schemeEnd, hostStart, hostEnd, authorityEnd)
+        }
+
+        // Spans must stay valid in the lowercased form; the few characters whose lowercase expands fall
+        // back to a per-char mapping.
+        private fun lowercaseKeepingLength(value: String): String {
+            val lower = value.lowercase(Locale.ROOT)
+            if (lower.length == value.length) return lower
+            return String(CharArray(value.length) { Character.toLowerCase(value[it]) })
+        }
+    }
+}
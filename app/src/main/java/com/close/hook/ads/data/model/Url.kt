@@ -17,7 +17,7 @@ import kotlinx.parcelize.Parcelize
     ]
 )
 data class Url(
-    @ColumnInfo(name = "type") // domain, url, keyword
+    @ColumnInfo(name = "type") // domain, domainsuffix, url, keyword, wildcard, regex
     var type: String,
 
     @ColumnInfo(name = "url")
@@ -29,5 +29,6 @@ data class Url(
     companion object {
         const val URL_TYPE = "type"
         const val URL_ADDRESS = "url"
+        const val URL_ID = "id"
     }
 }
@@ -0,0 +1,34 @@
+package com.close.hook.ads.data.model
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+@Entity(tableName = "url_change_log")
+data class UrlChange(
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = "version")
+    var version: Long = 0L,
+
+    @ColumnInfo(name = "rule_id")
+    var ruleId: Long,
+
+    @ColumnInfo(name = "op") // insert, delete
+    var op: String,
+
+    @ColumnInfo(name = "type")
+    var type: String,
+
+    @ColumnInfo(name = "url")
+    var url: String
+) {
+    companion object {
+        const val CHANGE_VERSION = "version"
+        const val CHANGE_RULE_ID = "rule_id"
+        const val CHANGE_OP = "op"
+
+        const val OP_INSERT = "insert"
+        const val OP_DELETE = "delete"
+        const val OP_RESET = "reset"
+    }
+}
@@ -0,0 +1,20 @@
+package com.close.hook.ads.data.repository
+
+import com.close.hook.ads.data.model.RequestInfo
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.asSharedFlow
+
+object RequestRepository {
+
+    private val _requestFlow = MutableSharedFlow<List<RequestInfo>>(
+        replay = 0,
+        extraBufferCapacity = 64,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+    val requestFlow = _requestFlow.asSharedFlow()
+
+    fun addRequests(requests: List<RequestInfo>) {
+        _requestFlow.tryEmit(requests)
+    }
+}
@@ -6,16 +6,32 @@ import android.net.Uri
 import android.os.Handler
 import android.os.Looper
 import android.util.Log
+import com.close.hook.ads.data.model.RequestKey
 import com.close.hook.ads.data.model.RuleMatch
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.data.model.UrlChange
+import com.close.hook.ads.data.RuleBlobStore
 import com.close.hook.ads.data.RuleSnapshot
 import com.close.hook.ads.provider.UrlContentProvider
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import java.nio.ByteBuffer
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.LongAdder
 
 object RuleRepository {
 
     private const val LOG_PREFIX = "[RuleRepository]"
-    private const val MIN_REFRESH_INTERVAL_MS = 5_000L
+    private const val VERSION_CHECK_INTERVAL_MS = 5_000L
+    private const val INITIAL_LOAD_WAIT_MS = 500L
+    private const val BLOB_WAIT_MS = 30_000L
+    private const val VERDICT_CACHE_SIZE = 2048L
 
     private val contentUri: Uri = Uri.Builder()
         .scheme("content")
@@ -23,14 +39,54 @@ object RuleRepository {
         .appendPath(UrlContentProvider.URL_TABLE_NAME)
         .build()
 
+    private val changesUri: Uri = contentUri.buildUpon()
+        .appendPath(UrlContentProvider.CHANGES_PATH)
+        .build()
+
     @Volatile private var appContext: Context? = null
-    @Volatile private var snapshot: RuleSnapshot = RuleSnapshot.EMPTY
-    @Volatile private var lastRefreshAt: Long = 0L
+    @Volatile private var activeRules = ActiveRules(RuleSnapshot.EMPTY)
+    @Volatile private var lastCheckAt: Long = 0L
 
-    private val initialized = AtomicBoolean(false)
+    private val observerRegistered = AtomicBoolean(false)
     private val dirty = AtomicBoolean(true)
-    private val refreshLock = Any()
+    private val refreshScheduled = AtomicBoolean(false)
+    private val initialLoad = AtomicReference<Future<*>?>(null)
+
+    private val snapshotListeners = CopyOnWriteArrayList<(RuleSnapshot, ByteBuffer?) -> Unit>()
+
+    private val verdictHits = LongAdder()
+    private val verdictMisses = LongAdder()
+
+    data class VerdictCacheStats(val hits: Long, val misses: Long, val size: Long)
+
+    // Verdicts live and die with the snapshot they were computed from, so a swap invalidates them for free.
+    private class ActiveRules(val snapshot: RuleSnapshot) {
+        val verdicts: Cache<String, RuleMatch> = CacheBuilder.newBuilder()
+            .maximumSize(VERDICT_CACHE_SIZE)
+            .build()
+    }
+
+    private val refreshExecutor: ExecutorService by lazy {
+        Executors.newSingleThreadExecutor { r ->
+            Thread(r, "AdClose-RuleRefresh").apply { isDaemon = true }
+        }
+    }
 
+    // Mirror of url_info keyed by rule id; only touched on the refresh thread. While the snapshot comes from
+    // a mapped rule blob the mirror stays empty and is loaded only if deltas have to be applied on top.
+    private val ruleIndex = LinkedHashMap<Long, Url>()
+    private var ruleIndexLoaded = false
+    private var ruleVersion: Long = -1L
+
+    // The mapped blob the active snapshot reads from, or null once deltas were applied on top of it. Like
+    // [published], only touched on the refresh thread.
+    private var activeBlob: ByteBuffer? = null
+    private var published = false
+
+    // When deltas beyond the active blob were first seen, or 0 while the blob covers everything.
+    private var deltasPendingSince = 0L
+
+    // Only a hint: the version check decides whether anything is reloaded.
     private val observer by lazy {
         object : ContentObserver(
             null
@@ -47,61 +103,256 @@ object RuleRepository {
 
     fun init(context: Context) {
         appContext = context
+        // Mapping the blob goes through LSPosed's remote files, so it runs on the refresh thread rather than
+        // holding up app startup.
+        initialLoad.set(refreshExecutor.submit(::loadLatestBlob))
+        scheduleRefresh()
+    }
+
+    fun shouldBlock(request: RequestKey): RuleMatch {
+        awaitInitialLoad()
+        checkForUpdates()
+
+        val rules = activeRules
+        rules.verdicts.getIfPresent(request.value)?.let {
+            verdictHits.increment()
+            return it
+        }
+        verdictMisses.increment()
+
+        return rules.snapshot.match(request).also {
+            rules.verdicts.put(request.value, it)
+        }
     }
 
-    fun shouldBlock(requestValue: String, host: String?): RuleMatch {
-        ensureFreshSnapshot(force = false)
-        return snapshot.match(requestValue = requestValue, host = host)
+    /**
+     * Cheap pre-check for bare hosts: false means [shouldBlock] would not match [request].
+     */
+    fun mayBlockHost(request: RequestKey): Boolean {
+        awaitInitialLoad()
+        checkForUpdates()
+        return activeRules.snapshot.mayMatchHost(request)
     }
 
-    private fun ensureFreshSnapshot(force: Boolean) {
+    /**
+     * Calls [listener] on the refresh thread with the active snapshot once the first refresh is done, and
+     * again after every swap. The buffer is the mapped rule blob when the snapshot is exactly that file.
+     */
+    fun addSnapshotListener(listener: (RuleSnapshot, ByteBuffer?) -> Unit) {
+        snapshotListeners += listener
+        refreshExecutor.execute {
+            if (published) listener(activeRules.snapshot, activeBlob)
+        }
+    }
+
+    fun verdictCacheStats(): VerdictCacheStats =
+        VerdictCacheStats(
+            hits = verdictHits.sum(),
+            misses = verdictMisses.sum(),
+            size = activeRules.verdicts.size()
+        )
+
+    // Cold start is when splash ads load, so the first lookup gives the blob mapped for init a moment to land
+    // instead of matching against an empty snapshot. Only that lookup waits, and only while it is pending.
+    private fun awaitInitialLoad() {
+        if (initialLoad.get() == null) return
+        val pending = initialLoad.getAndSet(null) ?: return
+        if (pending.isDone) return
+        runCatching { pending.get(INITIAL_LOAD_WAIT_MS, TimeUnit.MILLISECONDS) }
+            .onFailure { error -> Log.w(LOG_PREFIX, "Initial rule blob not loaded yet: ${error.message}") }
+    }
+
+    /** Schedules a refresh when rules may have changed; cheap enough to call on every lookup. */
+    fun checkForUpdates() {
+        if (dirty.get() || System.currentTimeMillis() - lastCheckAt >= VERSION_CHECK_INTERVAL_MS) {
+            scheduleRefresh()
+        }
+    }
+
+    private fun scheduleRefresh() {
+        if (appContext == null || !refreshScheduled.compareAndSet(false, true)) return
+        lastCheckAt = System.currentTimeMillis()
+        refreshExecutor.execute {
+            refreshScheduled.set(false)
+            refresh()
+        }
+    }
+
+    private fun refresh() {
         val rawContext = appContext ?: return
+        val safeContext = rawContext.applicationContext ?: rawContext
 
-        val now = System.currentTimeMillis()
-        val shouldRefresh = force || dirty.get() || (now - lastRefreshAt >= MIN_REFRESH_INTERVAL_MS)
-        if (!shouldRefresh) return
-
-        synchronized(refreshLock) {
-            val freshNow = System.currentTimeMillis()
-            val stillNeedRefresh = force || dirty.get() || (freshNow - lastRefreshAt >= MIN_REFRESH_INTERVAL_MS)
-            if (!stillNeedRefresh) return
-
-            if (initialized.compareAndSet(false, true)) {
-                try {
-                    val safeContext = rawContext.applicationContext ?: rawContext
-                    safeContext.contentResolver.registerContentObserver(contentUri, true, observer)
-                } catch (e: Throwable) {
-                    Log.w(LOG_PREFIX, "Failed to register observer: ${e.message}")
-                    initialized.set(false)
+        if (observerRegistered.compareAndSet(false, true)) {
+            try {
+                safeContext.contentResolver.registerContentObserver(contentUri, true, observer)
+            } catch (e: Throwable) {
+                Log.w(LOG_PREFIX, "Failed to register observer: ${e.message}")
+                observerRegistered.set(false)
+            }
+        }
+
+        dirty.set(false)
+        runCatching {
+            val remoteVersion = queryRuleVersion(safeContext)
+            if (remoteVersion == null || remoteVersion != ruleVersion) {
+                syncSnapshot(safeContext)?.let {
+                    activeRules = ActiveRules(it)
+                    published = false
                 }
             }
+            if (!published) {
+                published = true
+                snapshotListeners.forEach { it(activeRules.snapshot, activeBlob) }
+            }
+        }.onFailure { error ->
+            dirty.set(true)
+            Log.w(LOG_PREFIX, "Failed to refresh rule snapshot: ${error.message}")
+        }
+        lastCheckAt = System.currentTimeMillis()
+    }
 
-            runCatching {
-                val safeContext = rawContext.applicationContext ?: rawContext
-                val rules = loadAllRules(safeContext)
-                snapshot = RuleSnapshot.fromUrls(rules)
-                dirty.set(false)
-            }.onFailure { error ->
-                Log.w(LOG_PREFIX, "Failed to refresh rule snapshot: ${error.message}")
+    private fun loadLatestBlob() {
+        RuleBlobStore.openLatest(afterVersion = ruleVersion)?.let { blob ->
+            ruleVersion = blob.version
+            ruleIndex.clear()
+            ruleIndexLoaded = false
+            activeBlob = blob.buffer
+            activeRules = ActiveRules(blob.snapshot)
+            published = false
+        }
+    }
+
+    private fun queryRuleVersion(context: Context): Long? {
+        val result = context.contentResolver.call(
+            contentUri,
+            UrlContentProvider.METHOD_RULE_VERSION,
+            null,
+            null
+        ) ?: return null
+        return if (result.containsKey(UrlContentProvider.KEY_RULE_VERSION)) {
+            result.getLong(UrlContentProvider.KEY_RULE_VERSION)
+        } else {
+            null
+        }
+    }
+
+    private fun syncSnapshot(context: Context): RuleSnapshot? {
+        var next: RuleSnapshot? = null
+        var nextBlob: ByteBuffer? = null
+
+        RuleBlobStore.openLatest(afterVersion = ruleVersion)?.let { blob ->
+            next = blob.snapshot
+            nextBlob = blob.buffer
+            ruleVersion = blob.version
+            ruleIndex.clear()
+            ruleIndexLoaded = false
+        }
+
+        val changes = loadChanges(context, ruleVersion)
+        if (changes.isEmpty()) {
+            deltasPendingSince = 0L
+            if (next != null) activeBlob = nextBlob
+            return next
+        }
+
+        // Every rule edit is followed by a freshly compiled blob. Replaying the deltas on a blob would mean
+        // loading the whole table into the mirror, the scan the blob exists to avoid, so wait for it instead.
+        if (!ruleIndexLoaded && (nextBlob ?: activeBlob) != null) {
+            val now = System.currentTimeMillis()
+            if (deltasPendingSince == 0L) deltasPendingSince = now
+            if (now - deltasPendingSince < BLOB_WAIT_MS) {
+                if (next != null) activeBlob = nextBlob
+                return next
+            }
+        }
+        deltasPendingSince = 0L
+
+        // Still on a blob after the wait: the mirror has to be materialised before deltas can be applied to it.
+        val reloaded = !ruleIndexLoaded
+        if (reloaded && changes.first().op != UrlChange.OP_RESET) {
+            reloadRuleIndex(context)
+        }
+        return if (applyChanges(context, changes) || reloaded || next != null) {
+            activeBlob = null
+            RuleSnapshot.fromUrls(ArrayList(ruleIndex.values))
+        } else {
+            null
+        }
+    }
+
+    private fun reloadRuleIndex(context: Context) {
+        ruleIndex.clear()
+        loadAllRules(context).forEach { ruleIndex[it.id] = it }
+        ruleIndexLoaded = true
+    }
+
+    private fun applyChanges(context: Context, changes: List<UrlChange>): Boolean {
+        var changed = false
+
+        changes.forEach { change ->
+            when (change.op) {
+                UrlChange.OP_RESET -> {
+                    reloadRuleIndex(context)
+                    changed = true
+                }
+                UrlChange.OP_INSERT -> {
+                    ruleIndex[change.ruleId] = Url(type = change.type, url = change.url, id = change.ruleId)
+                    changed = true
+                }
+                UrlChange.OP_DELETE -> {
+                    if (ruleIndex.remove(change.ruleId) != null) changed = true
+                }
             }
-            lastRefreshAt = freshNow
+            ruleVersion = maxOf(ruleVersion, change.version)
         }
+        return changed
+    }
+
+    private fun loadChanges(context: Context, sinceVersion: Long): List<UrlChange> {
+        val result = ArrayList<UrlChange>()
+        context.contentResolver.query(
+            changesUri,
+            null,
+            null,
+            arrayOf(sinceVersion.toString()),
+            null
+        )?.use { cursor ->
+            val versionIndex = cursor.getColumnIndex(UrlChange.CHANGE_VERSION)
+            val opIndex = cursor.getColumnIndex(UrlChange.CHANGE_OP)
+            val ruleIdIndex = cursor.getColumnIndex(UrlChange.CHANGE_RULE_ID)
+            val typeIndex = cursor.getColumnIndex(Url.URL_TYPE)
+            val urlIndex = cursor.getColumnIndex(Url.URL_ADDRESS)
+            if (versionIndex == -1 || opIndex == -1 || ruleIdIndex == -1 || typeIndex == -1 || urlIndex == -1) {
+                return emptyList()
+            }
+            while (cursor.moveToNext()) {
+                result += UrlChange(
+                    version = cursor.getLong(versionIndex),
+                    ruleId = cursor.getLong(ruleIdIndex),
+                    op = cursor.getString(opIndex).orEmpty(),
+                    type = cursor.getString(typeIndex).orEmpty(),
+                    url = cursor.getString(urlIndex).orEmpty()
+                )
+            }
+        }
+        return result
     }
 
     private fun loadAllRules(context: Context): List<Url> {
         val result = ArrayList<Url>()
         context.contentResolver.query(
             contentUri,
-            arrayOf(Url.URL_TYPE, Url.URL_ADDRESS),
+            arrayOf(Url.URL_TYPE, Url.URL_ADDRESS, Url.URL_ID),
             null, null, null
         )?.use { cursor ->
             val typeIndex = cursor.getColumnIndex(Url.URL_TYPE)
             val urlIndex = cursor.getColumnIndex(Url.URL_ADDRESS)
-            if (typeIndex == -1 || urlIndex == -1) return emptyList()
+            val idIndex = cursor.getColumnIndex(Url.URL_ID)
+            if (typeIndex == -1 || urlIndex == -1 || idIndex == -1) return emptyList()
             while (cursor.moveToNext()) {
                 val type = cursor.getString(typeIndex).orEmpty()
                 val url = cursor.getString(urlIndex).orEmpty()
-                result += Url(type = type, url = url)
+                result += Url(type = type, url = url, id = cursor.getLong(idIndex))
             }
         }
         return result
@@ -16,6 +16,7 @@ import androidx.fragment.app.Fragment
 import androidx.lifecycle.lifecycleScope
 import androidx.room.Room
 import com.close.hook.ads.R
+import com.close.hook.ads.data.RuleSnapshot
 import com.close.hook.ads.data.database.UrlDatabase
 import com.close.hook.ads.data.model.Url
 import com.close.hook.ads.databinding.FragmentRoomPerformanceBinding
@@ -34,8 +35,9 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import java.util.Locale
 import kotlin.math.roundToInt
-import kotlin.system.measureTimeMillis
+import kotlin.system.measureNanoTime
 
 @RequiresApi(Build.VERSION_CODES.N)
 class RoomPerformanceFragment : Fragment() {
@@ -60,7 +62,10 @@ class RoomPerformanceFragment : Fragment() {
         EXISTS_DOMAIN("域名匹配", R.color.md_theme_light_secondaryContainer),
         
         NOT_FOUND_URL_PREFIX("未找到URL", R.color.md_theme_light_tertiaryContainer),
-        NOT_FOUND_KEYWORD("未找到关键词", R.color.md_theme_light_surfaceVariant)
+        NOT_FOUND_KEYWORD("未找到关键词", R.color.md_theme_light_surfaceVariant),
+
+        TRIE_URL_MATCH("Trie URL匹配", R.color.md_theme_light_inversePrimary),
+        TRIE_NOT_FOUND_URL("Trie未找到URL", R.color.md_theme_light_outline)
     }
 
     override fun onCreateView(inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?): View {
@@ -96,6 +101,9 @@ class RoomPerformanceFragment : Fragment() {
 
         bindLegendItem(binding.legendNotFoundUrl, ChartMetric.NOT_FOUND_URL_PREFIX)
         bindLegendItem(binding.legendNotFoundKeyword, ChartMetric.NOT_FOUND_KEYWORD)
+
+        bindLegendItem(binding.legendTrieMatchUrl, ChartMetric.TRIE_URL_MATCH)
+        bindLegendItem(binding.legendTrieNotFoundUrl, ChartMetric.TRIE_NOT_FOUND_URL)
     }
 
     private fun bindLegendItem(itemBinding: ItemLegendBinding, metric: ChartMetric) {
@@ -170,7 +178,7 @@ class RoomPerformanceFragment : Fragment() {
             binding.timeSummary.text = ""
         }
 
-        val totalTimes = ChartMetric.values().associateWith { 0L }.toMutableMap()
+        val totalTimes = ChartMetric.values().associateWith { 0.0 }.toMutableMap()
 
         repeat(TEST_REPEAT_TIMES) { index ->
             val testRunId = index + 1
@@ -188,42 +196,51 @@ class RoomPerformanceFragment : Fragment() {
             }
 
             val insertTime = measurePerformance { testDataSource.insertAll(urlList) }
-            postLog("📦 批量插入$TEST_DATA_SIZE 条: ${insertTime}ms")
+            postLog("📦 批量插入$TEST_DATA_SIZE 条: ${formatMs(insertTime)}ms")
             totalTimes[ChartMetric.INSERT] = totalTimes[ChartMetric.INSERT]!! + insertTime
             delay(400)
 
             val queryAllTime = measurePerformance { testDataSource.getUrlListOnce() }
-            postLog("🔍 查询所有: ${queryAllTime}ms")
+            postLog("🔍 查询所有: ${formatMs(queryAllTime)}ms")
             totalTimes[ChartMetric.QUERY_ALL] = totalTimes[ChartMetric.QUERY_ALL]!! + queryAllTime
             delay(400)
 
             val existsUrlToFind = urlList.firstOrNull { it.type == "URL" }?.url ?: "https://nonexistent.com/path/0"
             val existsUrlMatchTime = measurePerformance { testDataSource.existsUrlMatch(existsUrlToFind) }
-            postLog("🟢 精准URL前缀查找 (找到): ${existsUrlMatchTime}ms")
+            postLog("🟢 精准URL前缀查找 (找到): ${formatMs(existsUrlMatchTime)}ms")
             totalTimes[ChartMetric.EXISTS_URL_MATCH] = totalTimes[ChartMetric.EXISTS_URL_MATCH]!! + existsUrlMatchTime
 
             val existsKeywordToFind = urlList.firstOrNull { it.type == "KeyWord" }?.url ?: "nonexistent-keyword"
             val queryLikeTime = measurePerformance { testDataSource.existsKeywordMatch("text containing $existsKeywordToFind") }
-            postLog("🟡 任意包含 (关键词查找 - 找到): ${queryLikeTime}ms")
+            postLog("🟡 任意包含 (关键词查找 - 找到): ${formatMs(queryLikeTime)}ms")
             totalTimes[ChartMetric.EXISTS_KEYWORD_MATCH] = totalTimes[ChartMetric.EXISTS_KEYWORD_MATCH]!! + queryLikeTime
 
             val notFoundUrl = "https://nonexistent.com/path/999999"
             val notFoundUrlPrefixTime = measurePerformance { testDataSource.existsUrlMatch(notFoundUrl) }
-            postLog("🔷 URL前缀查找 (未找到): ${notFoundUrlPrefixTime}ms")
+            postLog("🔷 URL前缀查找 (未找到): ${formatMs(notFoundUrlPrefixTime)}ms")
             totalTimes[ChartMetric.NOT_FOUND_URL_PREFIX] = totalTimes[ChartMetric.NOT_FOUND_URL_PREFIX]!! + notFoundUrlPrefixTime
 
             val existsDomainToFind = urlList.firstOrNull { it.type == "Domain" }?.url ?: "nonexistent-domain.com"
             val existsDomainTime = measurePerformance { testDataSource.existsDomainMatch("http://$existsDomainToFind/some/path") }
-            postLog("🔶 Domain包含查找 (找到): ${existsDomainTime}ms")
+            postLog("🔶 Domain包含查找 (找到): ${formatMs(existsDomainTime)}ms")
             totalTimes[ChartMetric.EXISTS_DOMAIN] = totalTimes[ChartMetric.EXISTS_DOMAIN]!! + existsDomainTime
 
             val notFoundKeyword = "absolutely-nonexistent-keyword"
             val notFoundKeywordTime = measurePerformance { testDataSource.existsKeywordMatch("some text without $notFoundKeyword") }
-            postLog("🔸 Keyword查找 (未找到): ${notFoundKeywordTime}ms")
+            postLog("🔸 Keyword查找 (未找到): ${formatMs(notFoundKeywordTime)}ms")
             totalTimes[ChartMetric.NOT_FOUND_KEYWORD] = totalTimes[ChartMetric.NOT_FOUND_KEYWORD]!! + notFoundKeywordTime
 
+            val snapshot = RuleSnapshot.fromUrls(urlList)
+            val trieUrlMatchTime = measurePerformance { snapshot.urlPrefixes.longestPrefix(existsUrlToFind) }
+            postLog("🌲 Trie URL前缀查找 (找到): ${formatMs(trieUrlMatchTime)}ms")
+            totalTimes[ChartMetric.TRIE_URL_MATCH] = totalTimes[ChartMetric.TRIE_URL_MATCH]!! + trieUrlMatchTime
+
+            val trieNotFoundUrlTime = measurePerformance { snapshot.urlPrefixes.longestPrefix(notFoundUrl) }
+            postLog("🌳 Trie URL前缀查找 (未找到): ${formatMs(trieNotFoundUrlTime)}ms")
+            totalTimes[ChartMetric.TRIE_NOT_FOUND_URL] = totalTimes[ChartMetric.TRIE_NOT_FOUND_URL]!! + trieNotFoundUrlTime
+
             val deleteTime = measurePerformance { testDataSource.deleteAll() }
-            postLog("❌ 删除全部: ${deleteTime}ms")
+            postLog("❌ 删除全部: ${formatMs(deleteTime)}ms")
             totalTimes[ChartMetric.DELETE] = totalTimes[ChartMetric.DELETE]!! + deleteTime
 
             chartLabels.add("Run $testRunId")
@@ -235,6 +252,8 @@ class RoomPerformanceFragment : Fragment() {
                 ChartMetric.NOT_FOUND_URL_PREFIX to notFoundUrlPrefixTime,
                 ChartMetric.EXISTS_DOMAIN to existsDomainTime,
                 ChartMetric.NOT_FOUND_KEYWORD to notFoundKeywordTime,
+                ChartMetric.TRIE_URL_MATCH to trieUrlMatchTime,
+                ChartMetric.TRIE_NOT_FOUND_URL to trieNotFoundUrlTime,
                 ChartMetric.DELETE to deleteTime
             )
             updateChartDataEntries(index, currentRunResults)
@@ -247,21 +266,23 @@ class RoomPerformanceFragment : Fragment() {
         postLog("\n🚀 Room性能测试完成。")
     }
 
-    private suspend fun measurePerformance(block: suspend () -> Unit): Long {
-        return measureTimeMillis { block() }
+    private suspend fun measurePerformance(block: suspend () -> Unit): Double {
+        return measureNanoTime { block() } / 1_000_000.0
     }
 
-    private fun updateChartDataEntries(index: Int, results: Map<ChartMetric, Long>) {
+    private fun formatMs(time: Double): String = String.format(Locale.ROOT, "%.3f", time)
+
+    private fun updateChartDataEntries(index: Int, results: Map<ChartMetric, Double>) {
         results.forEach { (metric, time) ->
             chartDataEntries[metric]?.add(Entry(index.toFloat(), time.toFloat()))
         }
     }
 
-    private fun postSummary(totalTimes: Map<ChartMetric, Long>) {
+    private fun postSummary(totalTimes: Map<ChartMetric, Double>) {
         val summary = StringBuilder().apply {
             append("--- 🎯 Room性能测试总结 ---\n")
             ChartMetric.values().forEach { metric ->
-                append("平均${metric.label.replace(" (ms)", "")}: ${totalTimes[metric]?.div(TEST_REPEAT_TIMES)}ms\n")
+                append("平均${metric.label.replace(" (ms)", "")}: ${formatMs((totalTimes[metric] ?: 0.0) / TEST_REPEAT_TIMES)}ms\n")
             }
             append("-----------------------\n")
         }.toString()
@@ -291,7 +312,9 @@ class RoomPerformanceFragment : Fragment() {
             ChartMetric.EXISTS_KEYWORD_MATCH,
             ChartMetric.EXISTS_DOMAIN,
             ChartMetric.NOT_FOUND_URL_PREFIX,
-            ChartMetric.NOT_FOUND_KEYWORD
+            ChartMetric.NOT_FOUND_KEYWORD,
+            ChartMetric.TRIE_URL_MATCH,
+            ChartMetric.TRIE_NOT_FOUND_URL
         )
 
         metricsToDraw.forEach { metric ->
@@ -359,7 +382,7 @@ class RoomPerformanceFragment : Fragment() {
 
         override fun refreshContent(e: Entry?, highlight: Highlight?) {
             if (e != null) {
-                tvContent.text = "${e.y.toInt()} ms"
+                tvContent.text = "${formatMs(e.y.toDouble())} ms"
             }
             super.refreshContent(e, highlight)
         }
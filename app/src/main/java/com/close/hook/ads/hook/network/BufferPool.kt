@@ -0,0 +1,186 @@
+package com.close.hook.ads.hook.network
+
+import java.nio.ByteBuffer
+import java.nio.charset.Charset
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Per-process pool of byte arrays in power-of-four size classes (1 KB to 4 MB) for request capture. All
+ * arrays handed out count against one budget; when it is spent, capture buffers stop growing and the
+ * message is reported without the part that did not fit.
+ */
+internal object BufferPool {
+
+    private const val MIN_CLASS_SHIFT = 10
+    private const val CLASS_COUNT = 7
+    private const val MAX_POOLED_SIZE = 1 shl (MIN_CLASS_SHIFT + 2 * (CLASS_COUNT - 1))
+
+    // Scratch and capture arrays together; beyond this, captures are evicted rather than grown.
+    private const val MAX_BYTES_IN_USE = 32L * 1024 * 1024
+
+    // Idle arrays kept per size class; classes above 1 MB are never kept.
+    private const val RETAINED_BYTES_PER_CLASS = 2 * 1024 * 1024
+
+    const val MAX_CAPTURE_SIZE = MAX_POOLED_SIZE
+
+    private val freeLists = Array(CLASS_COUNT) { ArrayDeque<ByteArray>() }
+    private val bytesInUse = AtomicLong()
+    private val bytesPooled = AtomicLong()
+    private val evictions = LongAdder()
+
+    data class Stats(val bytesInUse: Long, val bytesPooled: Long, val evictions: Long)
+
+    fun stats(): Stats = Stats(bytesInUse.get(), bytesPooled.get(), evictions.sum())
+
+    /**
+     * Returns an array of at least [minSize] bytes, or null when it is above the largest class or would
+     * exceed the budget. Give it back with [release].
+     */
+    fun acquire(minSize: Int): ByteArray? {
+        val sizeClass = sizeClassOf(minSize)
+        if (sizeClass < 0) return null
+
+        val size = 1 shl (MIN_CLASS_SHIFT + 2 * sizeClass)
+        if (bytesInUse.addAndGet(size.toLong()) > MAX_BYTES_IN_USE) {
+            bytesInUse.addAndGet(-size.toLong())
+            return null
+        }
+
+        val freeList = freeLists[sizeClass]
+        synchronized(freeList) {
+            freeList.removeLastOrNull()?.let {
+                bytesPooled.addAndGet(-size.toLong())
+                return it
+            }
+        }
+        return ByteArray(size)
+    }
+
+    /**
+     * Runs [block] with short-lived copy space for hooks that have to lift bytes out of a ByteBuffer. Falls
+     * back to a plain array when the pool cannot serve it.
+     */
+    inline fun <T> withScratch(minSize: Int, block: (ByteArray) -> T): T {
+        val pooled = acquire(minSize)
+        try {
+            return block(pooled ?: ByteArray(minSize))
+        } finally {
+            pooled?.let { release(it) }
+        }
+    }
+
+    fun release(array: ByteArray) {
+        val sizeClass = sizeClassOf(array.size)
+        if (sizeClass < 0 || classSize(sizeClass) != array.size) return
+
+        bytesInUse.addAndGet(-array.size.toLong())
+        val freeList = freeLists[sizeClass]
+        synchronized(freeList) {
+            if ((freeList.size + 1).toLong() * array.size <= RETAINED_BYTES_PER_CLASS) {
+                freeList.addLast(array)
+                bytesPooled.addAndGet(array.size.toLong())
+            }
+        }
+    }
+
+    fun recordEviction() {
+        evictions.increment()
+    }
+
+    private fun classSize(sizeClass: Int): Int = 1 shl (MIN_CLASS_SHIFT + 2 * sizeClass)
+
+    private fun sizeClassOf(size: Int): Int {
+        if (size > MAX_POOLED_SIZE) return -1
+        var sizeClass = 0
+        while (classSize(sizeClass) < size) sizeClass++
+        return sizeClass
+    }
+}
+
+/**
+ * Growable capture buffer backed by [BufferPool], holding at most [maxSize] bytes. Once an append does not
+ * fit (cap or pool budget), the buffer is marked [overflowed], its array goes back to the pool and later
+ * appends are ignored until [reset]. A [required] buffer, one the parser cannot do without, gives way only to
+ * [maxSize] and falls back to plain arrays when the budget is spent.
+ */
+internal class CaptureBuffer(
+    private val maxSize: Int = BufferPool.MAX_CAPTURE_SIZE,
+    private val required: Boolean = false
+) {
+
+    private var array: ByteArray? = null
+    private var pooled = false
+
+    var size = 0
+        private set
+
+    var overflowed = false
+        private set
+
+    fun append(b: Byte): Boolean {
+        if (!ensure(1)) return false
+        array!![size++] = b
+        return true
+    }
+
+    fun append(bytes: ByteArray, offset: Int, length: Int): Boolean {
+        if (length == 0) return !overflowed
+        if (!ensure(length)) return false
+        System.arraycopy(bytes, offset, array!!, size, length)
+        size += length
+        return true
+    }
+
+    fun append(buffer: ByteBuffer): Boolean {
+        val length = buffer.remaining()
+        if (length == 0) return !overflowed
+        if (!ensure(length)) return false
+        buffer.get(array!!, size, length)
+        size += length
+        return true
+    }
+
+    fun toByteArray(): ByteArray? = if (overflowed || size == 0) null else array?.copyOf(size)
+
+    fun decode(length: Int, charset: Charset): String = array?.let { String(it, 0, length, charset) }.orEmpty()
+
+    /** Empties the buffer and returns its array to the pool. */
+    fun reset() {
+        array?.let(::releaseArray)
+        array = null
+        size = 0
+        overflowed = false
+    }
+
+    private fun ensure(extra: Int): Boolean {
+        if (overflowed) return false
+
+        val needed = size + extra
+        val current = array
+        if (current != null && needed <= current.size) return true
+
+        val wanted = maxOf(needed, (current?.size ?: 0) * 2)
+        val fromPool = if (needed <= maxSize) BufferPool.acquire(wanted) else null
+        val grown = fromPool ?: if (required && needed <= maxSize) ByteArray(minOf(wanted, maxSize)) else null
+        if (grown == null) {
+            BufferPool.recordEviction()
+            current?.let(::releaseArray)
+            array = null
+            overflowed = true
+            return false
+        }
+        current?.let {
+            System.arraycopy(it, 0, grown, 0, size)
+            releaseArray(it)
+        }
+        array = grown
+        pooled = fromPool != null
+        return true
+    }
+
+    private fun releaseArray(released: ByteArray) {
+        if (pooled) BufferPool.release(released)
+        pooled = false
+    }
+}
@@ -0,0 +1,115 @@
+package com.close.hook.ads.hook.network
+
+import com.close.hook.ads.data.model.BlockedRequest
+import com.google.common.cache.CacheBuilder
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Gives every intercepted connection a process-unique 64-bit id and a single [Connection] holding all of its
+ * capture state. Java sockets and SSL engines are tracked by identity through weak keys, so their state goes
+ * with the object. Native fds and SSL* pointers get reused, so their entries are dropped from the close and
+ * SSL_free hooks instead.
+ */
+internal object ConnectionRegistry {
+
+    // Set on ids handed to the native HTTP/2 parser for Java engines. User-space SSL* pointers stay below
+    // bit 48 (Android's pointer tags live in the top byte), so the two never meet in its connection map.
+    private const val JAVA_H2_TAG = 1L shl 48
+
+    private val nextId = AtomicLong()
+
+    private val javaConnections = CacheBuilder.newBuilder()
+        .weakKeys()
+        .removalListener<Any, Connection> { it.value?.release() }
+        .build<Any, Connection>()
+
+    private val connectionsById = CacheBuilder.newBuilder()
+        .weakValues()
+        .build<Long, Connection>()
+
+    // Expiry only covers closes the native hooks never saw.
+    private val nativeFds = CacheBuilder.newBuilder()
+        .expireAfterAccess(10, TimeUnit.MINUTES)
+        .removalListener<Long, Connection> { it.value?.release() }
+        .build<Long, Connection>()
+
+    private val nativeSsl = CacheBuilder.newBuilder()
+        .expireAfterAccess(10, TimeUnit.MINUTES)
+        .removalListener<Long, Connection> { it.value?.release() }
+        .build<Long, Connection>()
+
+    fun of(owner: Any): Connection = javaConnections.get(owner) { newConnection() }
+
+    fun find(owner: Any): Connection? = javaConnections.getIfPresent(owner)
+
+    fun ofNative(handle: Long, isSsl: Boolean): Connection =
+        (if (isSsl) nativeSsl else nativeFds).get(handle) { newConnection() }
+
+    fun close(owner: Any) {
+        javaConnections.invalidate(owner)
+    }
+
+    fun closeNative(handle: Long, isSsl: Boolean) {
+        (if (isSsl) nativeSsl else nativeFds).invalidate(handle)
+    }
+
+    /** The id a Java engine's traffic is fed to the native HTTP/2 parser under. */
+    fun h2Id(connection: Connection): Long = connection.id or JAVA_H2_TAG
+
+    /** Resolves an HTTP/2 connection id from the native parser: a tagged Java id or an SSL* pointer. */
+    fun ofH2(connId: Long): Connection? =
+        if ((connId and JAVA_H2_TAG) != 0L) {
+            connectionsById.getIfPresent(connId and JAVA_H2_TAG.inv())
+        } else {
+            ofNative(connId, isSsl = true)
+        }
+
+    private fun newConnection(): Connection =
+        Connection(nextId.incrementAndGet()).also { connectionsById.put(it.id, it) }
+}
+
+/**
+ * Everything captured for one connection: the HTTP/1.x streams in both directions and the requests still waiting
+ * for their responses. HTTP/2 bodies are collected by the native parser and arrive with the completed stream.
+ */
+internal class Connection(val id: Long) {
+
+    // HTTP/1.1 answers requests in the order they were sent, so keep-alive and pipelined requests queue here.
+    private val inFlight = ArrayDeque<BlockedRequest>()
+
+    val requests = RequestHook.RequestStream(this)
+    val responses = RequestHook.ResponseStream(this)
+
+    fun enqueueRequest(request: BlockedRequest) {
+        synchronized(inFlight) {
+            // Past this depth the oldest entries are for responses that are not coming.
+            if (inFlight.size == MAX_IN_FLIGHT) inFlight.removeFirst()
+            inFlight.addLast(request)
+        }
+    }
+
+    fun pollRequest(): BlockedRequest? = synchronized(inFlight) { inFlight.removeFirstOrNull() }
+
+    /** Swaps in [updated] if [sent] is still waiting for its response. */
+    fun replaceRequest(sent: BlockedRequest, updated: BlockedRequest) {
+        synchronized(inFlight) {
+            val index = inFlight.indexOfFirst { it === sent }
+            if (index >= 0) inFlight[index] = updated
+        }
+    }
+
+    fun clearRequests() {
+        synchronized(inFlight) { inFlight.clear() }
+    }
+
+    fun release() {
+        requests.release()
+        responses.release()
+        clearRequests()
+    }
+
+    private companion object {
+        const val MAX_IN_FLIGHT = 32
+    }
+}
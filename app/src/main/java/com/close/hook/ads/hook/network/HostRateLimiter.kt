@@ -0,0 +1,35 @@
+package com.close.hook.ads.hook.network
+
+import com.google.common.cache.CacheBuilder
+import java.util.concurrent.TimeUnit
+
+/**
+ * A token bucket per host: a host may spend [burst] tokens at once and earns [perSecond] back every second.
+ * Buckets of hosts that went quiet are dropped, which is the same as refilling them.
+ */
+internal class HostRateLimiter(private val perSecond: Double, private val burst: Double) {
+
+    private class Bucket(var tokens: Double, var updatedNanos: Long)
+
+    private val buckets = CacheBuilder.newBuilder()
+        .maximumSize(1024)
+        .expireAfterAccess(1, TimeUnit.MINUTES)
+        .build<String, Bucket>()
+
+    fun tryAcquire(host: String): Boolean {
+        val bucket = buckets.get(host) { Bucket(burst, System.nanoTime()) }
+        synchronized(bucket) {
+            val now = System.nanoTime()
+            val earned = (now - bucket.updatedNanos) / NANOS_PER_SECOND * perSecond
+            bucket.tokens = minOf(burst, bucket.tokens + earned)
+            bucket.updatedNanos = now
+            if (bucket.tokens < 1.0) return false
+            bucket.tokens -= 1.0
+            return true
+        }
+    }
+
+    private companion object {
+        const val NANOS_PER_SECOND = 1_000_000_000.0
+    }
+}
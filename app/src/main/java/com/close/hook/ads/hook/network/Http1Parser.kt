@@ -0,0 +1,291 @@
+package com.close.hook.ads.hook.network
+
+import java.nio.charset.Charset
+
+/**
+ * Streaming HTTP/1.x parser for one direction of a connection. Every byte handed to [feed] is looked at
+ * once: the head is collected until its blank line, then the body is walked by Content-Length or chunk
+ * framing. Head and body bytes go into [CaptureBuffer]s that hand their arrays back to the pool as soon as a
+ * message is done, so an idle connection holds no buffer at all; body bytes are only copied when the listener
+ * asks for them.
+ */
+internal class Http1Parser(
+    private val isResponse: Boolean,
+    private val headCharset: Charset
+) {
+
+    enum class Action {
+        /** Keep the body and hand it to [Listener.onMessage]. */
+        CAPTURE_BODY,
+        /** Walk over the body without copying it. */
+        SKIP_BODY,
+        /** The message has no body whatever its headers say (responses to HEAD). */
+        NO_BODY,
+        /** Stop parsing this stream for good (tunnels, upgrades, blocked connections). */
+        STOP
+    }
+
+    interface Listener {
+        fun onHead(head: String): Action
+
+        /** Returns true when the message is blocked. */
+        fun onMessage(body: ByteArray?): Boolean
+    }
+
+    private var state = HEAD
+    private var stopped = false
+
+    // Rule checks need the head, so it does not give way to the body-capture budget.
+    private val head = CaptureBuffer(MAX_HEAD_SIZE, required = true)
+    private var headMatch = 0
+
+    private val body = CaptureBuffer()
+    private var capturing = false
+
+    private var remaining = 0L
+    private var sawDigit = false
+    private var lineLength = 0
+
+    val isStopped: Boolean get() = stopped
+
+    /**
+     * Parses `bytes[offset, offset + length)`. Returns true if any message completed in it was blocked.
+     */
+    fun feed(bytes: ByteArray, offset: Int, length: Int, listener: Listener): Boolean {
+        var index = offset
+        val end = offset + length
+        var blocked = false
+
+        while (index < end && !stopped) {
+            when (state) {
+                HEAD -> {
+                    while (index < end) {
+                        val b = bytes[index++]
+                        if (head.size == 0 && (b == CR || b == LF)) continue
+                        if (!head.append(b)) {
+                            stopped = true
+                            break
+                        }
+                        headMatch = when {
+                            b == LF && (headMatch == 1 || headMatch == 3) -> headMatch + 1
+                            b == CR && (headMatch == 0 || headMatch == 2) -> headMatch + 1
+                            b == CR -> 1
+                            else -> 0
+                        }
+                        if (headMatch == 4) {
+                            if (onHeadComplete(listener)) blocked = true
+                            break
+                        }
+                    }
+                }
+
+                BODY -> {
+                    val count = minOf(remaining, (end - index).toLong()).toInt()
+                    captureBody(bytes, index, count)
+                    index += count
+                    remaining -= count
+                    if (remaining == 0L && finishMessage(listener)) blocked = true
+                }
+
+                CHUNK_SIZE -> {
+                    val b = bytes[index++]
+                    val digit = Character.digit(b.toInt(), 16)
+                    when {
+                        digit >= 0 && remaining < MAX_CHUNK_SIZE -> {
+                            remaining = remaining * 16 + digit
+                            sawDigit = true
+                        }
+                        b == LF && sawDigit -> state = if (remaining == 0L) TRAILERS else CHUNK_DATA
+                        b == SEMICOLON || b == CR || b == SPACE || b == TAB -> if (sawDigit) state = CHUNK_EXTENSION
+                        else -> stopped = true
+                    }
+                }
+
+                CHUNK_EXTENSION -> {
+                    if (bytes[index++] == LF) state = if (remaining == 0L) TRAILERS else CHUNK_DATA
+                }
+
+                CHUNK_DATA -> {
+                    val count = minOf(remaining, (end - index).toLong()).toInt()
+                    captureBody(bytes, index, count)
+                    index += count
+                    remaining -= count
+                    if (remaining == 0L) state = CHUNK_DATA_END
+                }
+
+                CHUNK_DATA_END -> {
+                    if (bytes[index++] == LF) startChunk()
+                }
+
+                TRAILERS -> {
+                    val b = bytes[index++]
+                    if (b == LF) {
+                        if (lineLength == 0) {
+                            if (finishMessage(listener)) blocked = true
+                        } else {
+                            lineLength = 0
+                        }
+                    } else if (b != CR) {
+                        lineLength++
+                    }
+                }
+            }
+        }
+        if (stopped) release()
+        return blocked
+    }
+
+    private fun onHeadComplete(listener: Listener): Boolean {
+        val text = head.decode(head.size - HEAD_END_LENGTH, headCharset)
+        head.reset()
+        headMatch = 0
+
+        val framing = Framing.of(text, isResponse)
+        if (framing == Framing.INTERIM) return false
+        if (framing == Framing.TUNNEL) {
+            stopped = true
+            return false
+        }
+
+        val action = listener.onHead(text)
+        if (action == Action.STOP) {
+            stopped = true
+            return false
+        }
+        if (action == Action.NO_BODY) return finishMessage(listener)
+
+        capturing = action == Action.CAPTURE_BODY && framing != Framing.UNTIL_CLOSE
+        return when (framing) {
+            Framing.CHUNKED -> {
+                startChunk()
+                false
+            }
+            Framing.LENGTH -> {
+                remaining = Framing.contentLength(text)
+                if (remaining > 0L) {
+                    state = BODY
+                    false
+                } else {
+                    finishMessage(listener)
+                }
+            }
+            Framing.UNTIL_CLOSE -> {
+                // Nothing after this can be framed, so report the head alone and stop.
+                stopped = true
+                finishMessage(listener)
+            }
+            else -> finishMessage(listener)
+        }
+    }
+
+    private fun startChunk() {
+        state = CHUNK_SIZE
+        remaining = 0L
+        sawDigit = false
+        lineLength = 0
+    }
+
+    private fun finishMessage(listener: Listener): Boolean {
+        // A body that outgrew its cap or the pool budget is reported as missing rather than cut short.
+        val captured = if (capturing) body.toByteArray() else null
+        body.reset()
+        state = HEAD
+        capturing = false
+        return listener.onMessage(captured)
+    }
+
+    /**
+     * Accounts for the bytes the parser already knows it will not look at: the rest of a body it is not
+     * capturing, or everything once stopped. Returns how many bytes the caller must drop instead of feeding
+     * ([Long.MAX_VALUE] for all of them).
+     */
+    fun skipAhead(listener: Listener): Long {
+        if (stopped) return Long.MAX_VALUE
+        if (capturing) return 0L
+
+        val skipped = remaining
+        when (state) {
+            BODY -> {
+                remaining = 0L
+                finishMessage(listener)
+            }
+            CHUNK_DATA -> {
+                remaining = 0L
+                state = CHUNK_DATA_END
+            }
+            else -> return 0L
+        }
+        return skipped
+    }
+
+    /** Returns any buffers to the pool; the parser must not be fed afterwards. */
+    fun release() {
+        stopped = true
+        head.reset()
+        body.reset()
+    }
+
+    private fun captureBody(bytes: ByteArray, offset: Int, count: Int) {
+        if (capturing) body.append(bytes, offset, count)
+    }
+
+    private enum class Framing {
+        NONE, LENGTH, CHUNKED, UNTIL_CLOSE, INTERIM, TUNNEL;
+
+        companion object {
+            fun of(head: String, isResponse: Boolean): Framing {
+                if (!isResponse && head.startsWith("CONNECT ", ignoreCase = true)) return TUNNEL
+
+                if (isResponse) {
+                    val status = head.substringAfter(' ', "").take(3).toIntOrNull() ?: return UNTIL_CLOSE
+                    if (status == 101) return UNTIL_CLOSE
+                    if (status in 100..199) return INTERIM
+                    if (status == 204 || status == 304) return NONE
+                }
+
+                var length = false
+                head.lineSequence().drop(1).forEach { line ->
+                    when {
+                        line.startsWith("Transfer-Encoding:", ignoreCase = true) &&
+                            line.contains("chunked", ignoreCase = true) -> return CHUNKED
+                        line.startsWith("Content-Length:", ignoreCase = true) -> length = true
+                    }
+                }
+                return when {
+                    length -> LENGTH
+                    isResponse -> UNTIL_CLOSE
+                    else -> NONE
+                }
+            }
+
+            fun contentLength(head: String): Long =
+                head.lineSequence()
+                    .find { it.startsWith("Content-Length:", ignoreCase = true) }
+                    ?.substring(15)
+                    ?.trim()
+                    ?.toLongOrNull()
+                    ?.coerceAtLeast(0L)
+                    ?: 0L
+        }
+    }
+
+    private companion object {
+        const val HEAD = 0
+        const val BODY = 1
+        const val CHUNK_SIZE = 2
+        const val CHUNK_EXTENSION = 3
+        const val CHUNK_DATA = 4
+        const val CHUNK_DATA_END = 5
+        const val TRAILERS = 6
+
+        const val CR = '\r'.code.toByte()
+        const val LF = '\n'.code.toByte()
+        const val SEMICOLON = ';'.code.toByte()
+        const val SPACE = ' '.code.toByte()
+        const val TAB = '\t'.code.toByte()
+
+        const val HEAD_END_LENGTH = 4
+        const val MAX_HEAD_SIZE = 64 * 1024
+        const val MAX_CHUNK_SIZE = 1L shl 40
+    }
+}
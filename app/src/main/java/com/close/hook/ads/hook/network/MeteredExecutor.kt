@@ -0,0 +1,72 @@
+package com.close.hook.ads.hook.network
+
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * A fixed pool of daemon threads behind a bounded queue. Work that does not fit is dropped and counted, never
+ * run on the submitting thread, since that is an app thread inside a hook.
+ */
+internal class MeteredExecutor(name: String, threads: Int, queueCapacity: Int) {
+
+    data class Stats(
+        val queued: Int,
+        val active: Int,
+        val completed: Long,
+        val rejected: Long,
+        val meanWaitMillis: Long,
+        val meanRunMillis: Long
+    )
+
+    private val threadIndex = AtomicInteger()
+    private val rejected = LongAdder()
+    private val waitNanos = LongAdder()
+    private val runNanos = LongAdder()
+    private val completed = LongAdder()
+
+    private val executor = ThreadPoolExecutor(
+        threads, threads,
+        30L, TimeUnit.SECONDS,
+        LinkedBlockingQueue(queueCapacity),
+        { runnable ->
+            Thread(runnable, "$name-${threadIndex.incrementAndGet()}").apply { isDaemon = true }
+        }
+    ).apply { allowCoreThreadTimeOut(true) }
+
+    /** Returns false if the queue was full and [task] was dropped. */
+    fun execute(task: () -> Unit): Boolean {
+        val submitted = System.nanoTime()
+        try {
+            executor.execute {
+                val started = System.nanoTime()
+                waitNanos.add(started - submitted)
+                try {
+                    task()
+                } finally {
+                    runNanos.add(System.nanoTime() - started)
+                    completed.increment()
+                }
+            }
+        } catch (e: RejectedExecutionException) {
+            rejected.increment()
+            return false
+        }
+        return true
+    }
+
+    fun stats(): Stats {
+        val done = completed.sum()
+        return Stats(
+            queued = executor.queue.size,
+            active = executor.activeCount,
+            completed = done,
+            rejected = rejected.sum(),
+            meanWaitMillis = if (done == 0L) 0L else TimeUnit.NANOSECONDS.toMillis(waitNanos.sum() / done),
+            meanRunMillis = if (done == 0L) 0L else TimeUnit.NANOSECONDS.toMillis(runNanos.sum() / done)
+        )
+    }
+}
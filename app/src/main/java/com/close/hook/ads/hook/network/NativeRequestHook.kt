@@ -1,18 +1,19 @@
 package com.close.hook.ads.hook.network
 
+import com.close.hook.ads.data.RuleBlob
+import com.close.hook.ads.data.RuleSnapshot
 import com.close.hook.ads.data.model.BlockedRequest
-import com.close.hook.ads.hook.util.HookUtil
+import com.close.hook.ads.data.model.RequestKey
+import com.close.hook.ads.data.repository.RuleRepository
 import com.close.hook.ads.preference.HookPrefs
-import com.google.common.cache.CacheBuilder
 import de.robv.android.xposed.XposedBridge
-import java.io.ByteArrayOutputStream
 import java.nio.ByteBuffer
-import java.util.concurrent.ConcurrentMap
-import java.util.concurrent.TimeUnit
 
 object NativeRequestHook {
 
     private const val LOG_PREFIX = "[NativeRequestHook] "
+    private const val BLOCK = -1L
+    private const val SNIFF_SLICE_SIZE = 16 * 1024
     private var isInitialized = false
 
     private val JAVA_NET_KEYWORDS = setOf(
@@ -20,22 +21,13 @@ object NativeRequestHook {
         "SocketOutputStream_socketWrite0", "NET_Send", "NET_Read"
     )
 
-    private const val MAX_BUFFER_SIZE = 5 * 1024 * 1024
-
-    private val h2RequestBuffers = CacheBuilder.newBuilder()
-        .expireAfterAccess(3, TimeUnit.MINUTES)
-        .build<String, ByteArrayOutputStream>()
-    
-    private val h2ResponseBuffers = CacheBuilder.newBuilder()
-        .expireAfterAccess(3, TimeUnit.MINUTES)
-        .build<String, ByteArrayOutputStream>()
-
     fun init(enableNativeHook: Boolean) {
         if (isInitialized) return
         try {
             System.loadLibrary("native_hook")
             initNativeHook(enableNativeHook)
             isInitialized = true
+            if (enableNativeHook) RuleRepository.addSnapshotListener(::pushRules)
             XposedBridge.log("$LOG_PREFIX Native library loaded. Interception: $enableNativeHook")
         } catch (e: Throwable) {
             XposedBridge.log("$LOG_PREFIX Failed to load native library: ${e.message}")
@@ -43,9 +35,39 @@ object NativeRequestHook {
     }
 
     private external fun initNativeHook(enableNativeHook: Boolean)
+    private external fun loadRules(blob: ByteBuffer?): Boolean
     external fun feedH2Data(connId: Long, isLocal: Boolean, data: ByteArray, offset: Int, length: Int, collectRespBody: Boolean): Int
     external fun freeH2Conn(connId: Long)
 
+    // While passed requests are not recorded the native hooks match plain requests themselves and only call
+    // in for the ones they cannot settle, so they need the rules too, as a blob in direct memory. The mapped
+    // rule file is handed over as is; a snapshot with deltas on top is encoded afresh.
+    private fun pushRules(snapshot: RuleSnapshot, blob: ByteBuffer?) {
+        val direct = if (blob != null && blob.isDirect && blob.position() == 0 && blob.limit() == blob.capacity()) {
+            blob
+        } else {
+            val encoded = blob?.duplicate() ?: RuleBlob.encode(0L, snapshot)
+            ByteBuffer.allocateDirect(encoded.remaining()).put(encoded).apply { flip() }
+        }
+        if (!loadRules(direct)) {
+            XposedBridge.log("$LOG_PREFIX Native side rejected the rule blob; every request goes through Kotlin")
+        }
+    }
+
+    /**
+     * Polled by the native hooks every few seconds, since they may go a long time without any other call in.
+     * Returns whether passed requests are recorded, which is what keeps them from matching on their own.
+     */
+    @JvmStatic
+    fun onRulesCheck(): Boolean {
+        RuleRepository.checkForUpdates()
+        return RequestHook.isRecordingPassedRequests()
+    }
+
+    /**
+     * Returns [BLOCK] to fail the write, otherwise how many of the bytes that follow in this direction the
+     * native hook may pass through without calling in ([Long.MAX_VALUE] for the rest of the connection).
+     */
     @JvmStatic
     fun onNativeData(
         id: Long,
@@ -54,130 +76,69 @@ object NativeRequestHook {
         address: String?,
         stack: String?,
         isSSL: Boolean
-    ): Boolean {
-        if (buffer == null || !buffer.hasRemaining()) return false
-
-        val dup = buffer.duplicate()
-        val data = ByteArray(dup.remaining())
-        dup.get(data)
-
-        return if (isSSL) {
-            processSSLData(id, isWrite, data, address, stack)
-        } else {
-            processTcpData(id.toInt(), isWrite, data, address, stack)
-        }
-    }
-
-    private fun processSSLData(sslId: Long, isWrite: Boolean, data: ByteArray, address: String?, stack: String?): Boolean {
-        val key = sslId.toInt() or Int.MIN_VALUE
-        var shouldBlock = false
-
-        val buffers = if (isWrite) RequestHook.requestBuffers else RequestHook.responseBuffers
-        val buffer = (buffers as ConcurrentMap<Int, ByteArrayOutputStream>).computeIfAbsent(key) { ByteArrayOutputStream() }
+    ): Long {
+        if (buffer == null || !buffer.hasRemaining()) return 0L
 
-        try {
-            synchronized(buffer) {
-                if (buffer.size() + data.size <= MAX_BUFFER_SIZE) {
-                    buffer.write(data)
-                    
-                    if (isWrite) {
-                        RequestHook.processRequestBuffer(key, isHttps = true)
-                        val requestInfo = RequestHook.pendingRequests[key]
-                        if (requestInfo != null) {
-                            val javaStack = HookUtil.getFormattedStackTrace()
-                            val isFromJavaNetworking = stack?.let { nativeStack ->
-                                JAVA_NET_KEYWORDS.any { keyword -> nativeStack.contains(keyword) }
-                            } ?: false
-
-                            val finalStack = if (isFromJavaNetworking || stack == null) javaStack else "$stack\n$javaStack"
-                            val enrichedInfo = requestInfo.copy(
-                                requestType = " NATIVE-SSL",
-                                fullAddress = address ?: requestInfo.fullAddress,
-                                stack = finalStack
-                            )
-                            RequestHook.pendingRequests[key] = enrichedInfo
-                            shouldBlock = RequestHook.checkShouldBlockRequest(enrichedInfo)
-                            if (shouldBlock) RequestHook.pendingRequests.remove(key)
-                        }
-                    } else {
-                        if (RequestHook.processResponseBuffer(key, null)) shouldBlock = true
-                    }
-                } else {
-                    buffer.reset()
-                }
-            }
+        val connection = ConnectionRegistry.ofNative(id, isSSL)
+        return try {
+            sniff(connection, isWrite, buffer.duplicate(), address, stack, isSSL)
         } catch (e: Exception) {
-            XposedBridge.log("$LOG_PREFIX SSL processing error: ${e.message}")
+            XposedBridge.log("$LOG_PREFIX ${if (isSSL) "SSL" else "TCP"} processing error: ${e.message}")
+            0L
         }
-        return shouldBlock
     }
 
-    private fun processTcpData(fd: Int, isWrite: Boolean, data: ByteArray, address: String?, stack: String?): Boolean {
-        var shouldBlock = false
-        val buffers = if (isWrite) RequestHook.requestBuffers else RequestHook.responseBuffers
-        val buffer = (buffers as ConcurrentMap<Int, ByteArrayOutputStream>).computeIfAbsent(fd) { ByteArrayOutputStream() }
-
-        try {
-            synchronized(buffer) {
-                if (buffer.size() + data.size <= MAX_BUFFER_SIZE) {
-                    buffer.write(data)
-                    
-                    if (isWrite) {
-                        RequestHook.processRequestBuffer(fd, isHttps = false)
-                        val requestInfo = RequestHook.pendingRequests[fd]
-                        if (requestInfo != null) {
-                            val javaStack = HookUtil.getFormattedStackTrace()
-                            val isFromJavaNetworking = stack?.let { nativeStack ->
-                                JAVA_NET_KEYWORDS.any { keyword -> nativeStack.contains(keyword) }
-                            } ?: false
-
-                            val finalStack = if (isFromJavaNetworking || stack == null) javaStack else "$stack\n$javaStack"
-                            val enrichedInfo = requestInfo.copy(
-                                requestType = " NATIVE-TCP",
-                                fullAddress = address ?: requestInfo.fullAddress,
-                                stack = finalStack
-                            )
-                            RequestHook.pendingRequests[fd] = enrichedInfo
-                            shouldBlock = RequestHook.checkShouldBlockRequest(enrichedInfo)
-                            if (shouldBlock) RequestHook.pendingRequests.remove(fd)
-                        }
-                    } else {
-                        if (RequestHook.processResponseBuffer(fd, null)) shouldBlock = true
-                    }
-                } else {
-                    buffer.reset()
+    // Copies the buffer out a slice at a time and stops as soon as the parser has no use for the rest, so
+    // bodies nobody collects are never copied; what it still has no use for past the end goes back to native.
+    private fun sniff(
+        connection: Connection,
+        isWrite: Boolean,
+        source: ByteBuffer,
+        address: String?,
+        stack: String?,
+        isSSL: Boolean
+    ): Long = BufferPool.withScratch(SNIFF_SLICE_SIZE) { scratch ->
+        while (source.hasRemaining()) {
+            val ahead = RequestHook.skipAhead(connection, isWrite)
+            if (ahead >= source.remaining()) {
+                return if (ahead == Long.MAX_VALUE) ahead else ahead - source.remaining()
+            }
+            source.position(source.position() + ahead.toInt())
+
+            val length = minOf(SNIFF_SLICE_SIZE, source.remaining())
+            source.get(scratch, 0, length)
+            if (isWrite) {
+                val requestType = if (isSSL) " NATIVE-SSL" else " NATIVE-TCP"
+                val blocked = RequestHook.processRequestBytes(connection, isHttps = isSSL, scratch, 0, length) {
+                    enrich(it, requestType, address, stack)
                 }
+                if (blocked) return BLOCK
+            } else {
+                RequestHook.processResponseBytes(connection, scratch, 0, length)
             }
-        } catch (e: Exception) {
-            XposedBridge.log("$LOG_PREFIX TCP processing error: ${e.message}")
         }
-        return shouldBlock
+        RequestHook.skipAhead(connection, isWrite)
     }
 
-    @JvmStatic
-    fun onH2DataChunk(connId: Long, streamId: Int, isWrite: Boolean, buffer: ByteBuffer?) {
-        if (buffer == null || !buffer.hasRemaining()) return
-        if (!isWrite && !getCollectResponseBody()) return
-
-        val key = "${connId}_$streamId"
-        val dup = buffer.duplicate()
-        val data = ByteArray(dup.remaining())
-        dup.get(data)
-
-        val buffers = if (isWrite) h2RequestBuffers else h2ResponseBuffers
-        val stream = buffers.get(key) { ByteArrayOutputStream() }
-        
-        synchronized(stream) {
-            if (stream.size() + data.size <= MAX_BUFFER_SIZE) {
-                stream.write(data)
-            }
-        }
+    // The request's own stack was taken on this thread; the native one is only worth adding when it does
+    // not just point back into Java networking.
+    private fun enrich(info: BlockedRequest, requestType: String, address: String?, stack: String?): BlockedRequest {
+        val isFromJavaNetworking = stack?.let { nativeStack ->
+            JAVA_NET_KEYWORDS.any { keyword -> nativeStack.contains(keyword) }
+        } ?: false
+
+        return info.copy(
+            requestType = requestType,
+            fullAddress = address ?: info.fullAddress,
+            stack = if (isFromJavaNetworking || stack == null) info.stack else info.stack?.withNative(stack)
+        )
     }
 
     @JvmStatic
     fun onH2Request(
         connId: Long, streamId: Int, method: String?, path: String?, authority: String?, scheme: String?, 
-        reqHeaders: String?, respHeaders: String?, statusCode: Int, isComplete: Boolean
+        reqHeaders: String?, respHeaders: String?, statusCode: Int, isComplete: Boolean,
+        reqBody: ByteBuffer?, respBody: ByteBuffer?
     ): Boolean {
         val url = buildUrl(scheme, authority, path)
         if (url.isEmpty()) return false
@@ -202,41 +163,39 @@ object NativeRequestHook {
         val parsedRespHeaders = parseHeaders(respHeaders)
         val mimeType = if (!contentEncoding.isNullOrEmpty()) "$contentType; encoding=$contentEncoding" else contentType
 
-        val key = "${connId}_$streamId"
-        val reqBody = if (isComplete) h2RequestBuffers.asMap().remove(key)?.toByteArray() else null
-        val respBody = if (isComplete) h2ResponseBuffers.asMap().remove(key)?.toByteArray() else null
+        val connection = ConnectionRegistry.ofH2(connId)
 
         val info = BlockedRequest(
             requestType     = " H2",
-            requestValue    = buildUrlWithoutQuery(scheme, authority, path),
+            requestKey      = buildRequestKey(scheme, authority, path),
             method          = method,
             urlString       = url,
             requestHeaders  = parsedReqHeaders,
-            requestBody     = reqBody,
+            requestBody     = reqBody?.toByteArray(),
             responseCode    = statusCode,
             responseMessage = null,
             responseHeaders = parsedRespHeaders,
-            responseBody    = respBody,
+            responseBody    = respBody?.toByteArray(),
             responseBodyContentType = mimeType,
-            stack           = HookUtil.getFormattedStackTrace(),
+            stack           = StackCapture.capture(),
             dnsHost         = null,
             fullAddress     = null,
-            requestId       = "${connId}_$streamId"
+            requestId       = "${connection?.id ?: connId}_$streamId"
         )
         return RequestHook.checkShouldBlockRequest(info)
     }
 
     @JvmStatic
     fun onConnectionClosed(id: Long, isSSL: Boolean) {
-        val key = if (isSSL) id.toInt() or Int.MIN_VALUE else id.toInt()
-        RequestHook.requestBuffers.remove(key)
-        RequestHook.responseBuffers.remove(key)
-        RequestHook.pendingRequests.remove(key)
+        ConnectionRegistry.closeNative(id, isSSL)
     }
 
     @JvmStatic
     fun getCollectResponseBody(): Boolean = HookPrefs.getBoolean(HookPrefs.KEY_COLLECT_RESPONSE_BODY, false)
 
+    // The buffer points into native memory that is freed once onH2Request returns.
+    private fun ByteBuffer.toByteArray(): ByteArray = ByteArray(remaining()).also { get(it) }
+
     private fun buildUrl(scheme: String?, authority: String?, path: String?): String {
         val s = scheme?.ifEmpty { "https" } ?: "https"
         val a = authority ?: return ""
@@ -244,10 +203,10 @@ object NativeRequestHook {
         return "$s://$a$p"
     }
 
-    private fun buildUrlWithoutQuery(scheme: String?, authority: String?, path: String?): String {
+    private fun buildRequestKey(scheme: String?, authority: String?, path: String?): RequestKey {
         val s = scheme?.ifEmpty { "https" } ?: "https"
-        val a = authority ?: return ""
+        val a = authority ?: return RequestKey.EMPTY
         val p = (path ?: "/").substringBefore('?')
-        return "$s://$a$p"
+        return RequestKey.of(s, a, p)
     }
 }
@@ -1,22 +1,18 @@
 package com.close.hook.ads.hook.network
 
 import android.content.Context
-import android.content.Intent
 import android.net.Uri
 import android.util.Log
 import androidx.core.content.contentValuesOf
 import com.close.hook.ads.data.model.BlockedRequest
+import com.close.hook.ads.data.model.RequestKey
 import com.close.hook.ads.data.model.RequestInfo
-import com.close.hook.ads.hook.util.HookUtil
 import com.close.hook.ads.preference.HookPrefs
 import com.close.hook.ads.provider.TemporaryFileProvider
 import com.close.hook.ads.data.repository.RuleRepository
-import com.close.hook.ads.util.AppUtils
-import com.google.common.cache.Cache
 import com.google.common.cache.CacheBuilder
 import de.robv.android.xposed.XC_MethodHook
 import de.robv.android.xposed.XposedBridge
-import java.io.ByteArrayOutputStream
 import java.io.IOException
 import java.net.InetAddress
 import java.net.URL
@@ -24,9 +20,6 @@ import java.net.URLDecoder
 import java.nio.charset.Charset
 import java.nio.charset.StandardCharsets
 import java.util.UUID
-import java.util.concurrent.ExecutorService
-import java.util.concurrent.LinkedBlockingQueue
-import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
 
 object RequestHook {
@@ -36,13 +29,9 @@ object RequestHook {
 
     internal lateinit var applicationContext: Context
 
-    internal val asyncBroadcastExecutor: ExecutorService = ThreadPoolExecutor(
-        1, 1,
-        0L, TimeUnit.MILLISECONDS,
-        LinkedBlockingQueue(500),
-        { runnable -> Thread(runnable, "AdClose-AsyncBroadcast").apply { isDaemon = true } },
-        ThreadPoolExecutor.CallerRunsPolicy()
-    )
+    // WebView re-fetches block for up to 15 s each, so they get their own small pool; request reports go
+    // through RequestReporter's flush thread.
+    internal val webRefetchExecutor = MeteredExecutor("AdClose-WebRefetch", threads = 2, queueCapacity = 16)
 
     private val cachedAppLabel: String by lazy {
         applicationContext.applicationInfo.loadLabel(applicationContext.packageManager).toString()
@@ -54,54 +43,86 @@ object RequestHook {
         .build<String, Boolean>()
         .asMap()
 
-    internal val requestBuffers = CacheBuilder.newBuilder()
-        .expireAfterAccess(3, TimeUnit.MINUTES)
-        .build<Int, ByteArrayOutputStream>()
-        .asMap()
+    internal class RequestStream(private val connection: Connection) : Http1Parser.Listener {
+        val parser = Http1Parser(isResponse = false, headCharset = Charsets.UTF_8)
+        var isHttps = false
+        var decorate: ((BlockedRequest) -> BlockedRequest)? = null
+        var blocked = false
+        private var current: BlockedRequest? = null
 
-    internal val responseBuffers = CacheBuilder.newBuilder()
-        .expireAfterAccess(3, TimeUnit.MINUTES)
-        .build<Int, ByteArrayOutputStream>()
-        .asMap()
+        fun release() = synchronized(this) { parser.release() }
 
-    internal val pendingRequests = CacheBuilder.newBuilder()
-        .expireAfterAccess(3, TimeUnit.MINUTES)
-        .build<Int, BlockedRequest>()
-        .asMap()
+        override fun onHead(head: String): Http1Parser.Action {
+            val built = buildHttpRequestWithoutBody(head, isHttps) ?: return Http1Parser.Action.SKIP_BODY
+            val reqInfo = decorate?.invoke(built) ?: built
 
-    private val requestParsingStates = CacheBuilder.newBuilder()
-        .expireAfterAccess(3, TimeUnit.MINUTES)
-        .build<Int, ParsingState>()
-        .asMap()
+            if (checkShouldBlockRequest(reqInfo)) {
+                blocked = true
+                return Http1Parser.Action.STOP
+            }
+            connection.enqueueRequest(reqInfo)
+            current = reqInfo
+            return if (HookPrefs.getBoolean(HookPrefs.KEY_COLLECT_RESPONSE_BODY, false)) {
+                Http1Parser.Action.CAPTURE_BODY
+            } else {
+                Http1Parser.Action.SKIP_BODY
+            }
+        }
 
-    private val responseParsingStates = CacheBuilder.newBuilder()
-        .expireAfterAccess(3, TimeUnit.MINUTES)
-        .build<Int, ParsingState>()
-        .asMap()
+        override fun onMessage(body: ByteArray?): Boolean {
+            val sent = current ?: return false
+            current = null
+            if (body != null) connection.replaceRequest(sent, sent.copy(requestBody = body))
+            return false
+        }
+    }
 
-    private data class ParsingState(
-        var isHeaderParsed: Boolean = false,
-        var contentLength: Int = -1,
-        var isChunked: Boolean = false,
-        var headerSize: Int = 0,
-        var isIgnored: Boolean = false
-    )
+    internal class ResponseStream(private val connection: Connection) : Http1Parser.Listener {
+        val parser = Http1Parser(isResponse = true, headCharset = Charsets.ISO_8859_1)
+        var param: XC_MethodHook.MethodHookParam? = null
+        private var requestInfo: BlockedRequest? = null
+        private var head: String = ""
 
-    private val headerEndMarker = "\r\n\r\n".toByteArray()
+        fun release() = synchronized(this) { parser.release() }
+
+        override fun onHead(head: String): Http1Parser.Action {
+            val pending = connection.pollRequest() ?: return Http1Parser.Action.SKIP_BODY
+
+            // Whatever its headers say, a response to HEAD carries no body.
+            if (pending.method.equals("HEAD", ignoreCase = true)) {
+                completeAndDispatchRequest(pending, head, null, param)
+                return Http1Parser.Action.NO_BODY
+            }
+            if (!HookPrefs.getBoolean(HookPrefs.KEY_COLLECT_RESPONSE_BODY, false)) {
+                completeAndDispatchRequest(pending, head, null, param)
+                return Http1Parser.Action.SKIP_BODY
+            }
+            requestInfo = pending
+            this.head = head
+            return Http1Parser.Action.CAPTURE_BODY
+        }
+
+        override fun onMessage(body: ByteArray?): Boolean {
+            val pending = requestInfo ?: return false
+            requestInfo = null
+            return completeAndDispatchRequest(pending, head, body, param)
+        }
+    }
 
     fun init(context: Context) {
         applicationContext = context
         RuleRepository.init(context)
+        RequestReporter.init(context)
     }
 
-    internal fun formatUrlWithoutQuery(urlObject: Any?): String {
+    internal fun formatRequestKey(urlObject: Any?): RequestKey {
         return try {
             when (urlObject) {
                 is URL -> {
                     val decodedPath = URLDecoder.decode(urlObject.path, UTF8.name())
                     val portStr =
                         if (urlObject.port != -1 && urlObject.port != urlObject.defaultPort) ":${urlObject.port}" else ""
-                    "${urlObject.protocol}://${urlObject.host}$portStr$decodedPath"
+                    RequestKey.of(urlObject.protocol, "${urlObject.host}$portStr", decodedPath)
                 }
 
                 is Uri -> {
@@ -110,40 +131,51 @@ object RequestHook {
                     val host = urlObject.host ?: ""
                     val scheme = urlObject.scheme ?: "http"
                     val portStr = if (port != -1) ":$port" else ""
-                    "$scheme://$host$portStr$decodedPath"
+                    RequestKey.of(scheme, "$host$portStr", decodedPath)
                 }
 
-                else -> urlObject?.toString() ?: ""
+                else -> RequestKey.parse(urlObject?.toString() ?: "")
             }
         } catch (error: Exception) {
             XposedBridge.log("$LOG_PREFIX URL format error: ${error.message}")
-            urlObject?.toString() ?: ""
+            RequestKey.parse(urlObject?.toString() ?: "")
         }
     }
 
     internal fun checkShouldBlockRequest(info: BlockedRequest?): Boolean {
         info ?: return false
 
-        val requestValue = info.requestValue
-        if (requestValue.isBlank()) {
-            sendBroadcast(info, false, null, null)
+        val requestKey = info.requestKey
+        if (requestKey.isEmpty) {
+            if (isRecordingPassedRequests()) {
+                sendBroadcast(info, false, null, null)
+            }
             return false
         }
 
-        val host = AppUtils.extractHostOrSelf(requestValue)
-        val match = RuleRepository.shouldBlock(requestValue = requestValue, host = host)
+        val match = RuleRepository.shouldBlock(requestKey)
 
         if (match.matched) {
-            sendBroadcast(info, true, match.ruleType, match.ruleUrl)
+            sendBroadcast(StackCapture.forBlocked(info), true, match.ruleType, match.ruleUrl)
             return true
         }
 
-        sendBroadcast(info, false, null, null)
+        if (isRecordingPassedRequests()) {
+            sendBroadcast(info, false, null, null)
+        }
         return false
     }
 
+    internal fun isRecordingPassedRequests(): Boolean =
+        HookPrefs.getBoolean(HookPrefs.KEY_RECORD_PASSED_REQUESTS, true)
+
     internal fun processDnsRequest(hostObject: Any?, result: Any?): Boolean {
         val host = hostObject as? String ?: return false
+        val requestKey = RequestKey.ofHost(host)
+
+        // Most lookups are for hosts no rule mentions; when they would not be recorded either, stop here.
+        if (!isRecordingPassedRequests() && !RuleRepository.mayBlockHost(requestKey)) return false
+
         val fullAddress = when (result) {
             is InetAddress -> result.hostAddress
             is Array<*> -> result.filterIsInstance<InetAddress>()
@@ -156,7 +188,7 @@ object RequestHook {
 
         val info = BlockedRequest(
             requestType = " DNS",
-            requestValue = host,
+            requestKey = requestKey,
             method = null,
             urlString = null,
             requestHeaders = null,
@@ -166,7 +198,7 @@ object RequestHook {
             responseHeaders = null,
             responseBody = null,
             responseBodyContentType = null,
-            stack = HookUtil.getFormattedStackTrace(),
+            stack = StackCapture.capture(),
             dnsHost = host,
             fullAddress = fullAddress,
             requestId = UUID.randomUUID().toString()
@@ -175,188 +207,72 @@ object RequestHook {
         return checkShouldBlockRequest(info)
     }
 
-    internal fun processRequestBuffer(key: Int, isHttps: Boolean): Boolean {
+    /**
+     * Feeds bytes written to [connection] into its HTTP/1.x parser. Returns true when a request in them is
+     * blocked; [decorate] lets the native hooks fill in their own type, address and stack first.
+     */
+    internal fun processRequestBytes(
+        connection: Connection,
+        isHttps: Boolean,
+        bytes: ByteArray,
+        offset: Int = 0,
+        length: Int = bytes.size,
+        decorate: ((BlockedRequest) -> BlockedRequest)? = null
+    ): Boolean {
+        val stream = connection.requests
         try {
-            val state = requestParsingStates.computeIfAbsent(key) { ParsingState() }
-
-            if (state.isIgnored) {
-                requestBuffers[key]?.reset()
-                return false
-            }
-
-            val bufferStream = requestBuffers[key] ?: return false
-            val currentSize = bufferStream.size()
-
-            if (!state.isHeaderParsed) {
-                if (currentSize < headerEndMarker.size) return false
-            } else if (state.contentLength > 0 && currentSize < state.headerSize + state.contentLength) {
-                return false
-            }
-
-            val buffer = bufferStream.toByteArray()
-
-            if (!state.isHeaderParsed) {
-                val headerEndIndex = findBytes(buffer, headerEndMarker, 0)
-                if (headerEndIndex != -1) {
-                    state.isHeaderParsed = true
-                    state.headerSize = headerEndIndex + headerEndMarker.size
-                    val headerString = String(buffer, 0, headerEndIndex, Charsets.UTF_8)
-
-                    if (headerString.startsWith("CONNECT ", ignoreCase = true)) {
-                        cleanBuffer(bufferStream, buffer, state.headerSize)
-                        state.isHeaderParsed = false
-                        return false
-                    }
-
-                    state.contentLength = parseContentLength(headerString)
-
-                    val reqInfo = buildHttpRequestWithoutBody(headerString, isHttps)
-                    if (reqInfo != null) {
-                        pendingRequests[key] = reqInfo
-                        val shouldBlock = checkShouldBlockRequest(reqInfo)
-
-                        if (shouldBlock) {
-                            state.isIgnored = true
-                            requestBuffers.remove(key)
-                            return true
-                        } else {
-                            if (!HookPrefs.getBoolean(HookPrefs.KEY_COLLECT_RESPONSE_BODY, false) && state.contentLength > 0) {
-                                state.isIgnored = true
-                                requestBuffers[key]?.reset()
-                                return false
-                            }
-                        }
-                    }
-                }
-            }
-
-            if (state.isHeaderParsed && !state.isIgnored) {
-                if (buffer.size >= state.headerSize + state.contentLength) {
-                    val bodyBytes = if (state.contentLength > 0) {
-                        buffer.copyOfRange(state.headerSize, state.headerSize + state.contentLength)
-                    } else {
-                        null
-                    }
-
-                    pendingRequests[key]?.let { pending ->
-                        pendingRequests[key] = pending.copy(requestBody = bodyBytes)
-                    }
-
-                    cleanBuffer(bufferStream, buffer, state.headerSize + state.contentLength)
-                    state.isHeaderParsed = false
-                }
+            synchronized(stream) {
+                if (stream.parser.isStopped) return false
+                stream.isHttps = isHttps
+                stream.decorate = decorate
+                stream.blocked = false
+                stream.parser.feed(bytes, offset, length, stream)
+                return stream.blocked
             }
         } catch (_: Exception) {
-            requestBuffers.remove(key)
-            requestParsingStates.remove(key)
+            stream.release()
+            return false
         }
-        return false
     }
 
-    internal fun processResponseBuffer(key: Int, param: XC_MethodHook.MethodHookParam?): Boolean {
+    /**
+     * Feeds bytes read from [connection]. Responses are paired with the connection's in-flight requests in the
+     * order those were sent; returns true when one of them is blocked, in which case [param] carries the
+     * exception.
+     */
+    internal fun processResponseBytes(
+        connection: Connection,
+        bytes: ByteArray,
+        offset: Int = 0,
+        length: Int = bytes.size,
+        param: XC_MethodHook.MethodHookParam? = null
+    ): Boolean {
+        val stream = connection.responses
         try {
-            val state = responseParsingStates.computeIfAbsent(key) { ParsingState() }
-
-            if (state.isIgnored) {
-                responseBuffers[key]?.reset()
-                return false
-            }
-
-            val requestInfo = pendingRequests[key] ?: return false
-            val bufferStream = responseBuffers[key] ?: return false
-            val currentSize = bufferStream.size()
-
-            if (!state.isHeaderParsed) {
-                if (currentSize < headerEndMarker.size) return false
-            } else if (!state.isChunked && state.contentLength > 0
-                && currentSize < state.headerSize + state.contentLength) {
-                return false
-            }
-
-            val buffer = bufferStream.toByteArray()
-
-            if (!state.isHeaderParsed) {
-                val headerEndIndex = findBytes(buffer, headerEndMarker, 0)
-                if (headerEndIndex != -1) {
-                    val headerString = String(buffer, 0, headerEndIndex, Charsets.ISO_8859_1)
-                    state.isHeaderParsed = true
-                    state.headerSize = headerEndIndex + headerEndMarker.size
-                    state.contentLength = parseContentLength(headerString)
-                    state.isChunked = headerString.contains("Transfer-Encoding: chunked", ignoreCase = true)
-
-                    val collectResponseBody = HookPrefs.getBoolean(HookPrefs.KEY_COLLECT_RESPONSE_BODY, false)
-                    if (!collectResponseBody) {
-                        completeAndDispatchRequest(key, requestInfo, headerString, null, param)
-                        state.isIgnored = true
-                        responseBuffers[key]?.reset()
-                        return false
-                    }
-                }
-            }
-
-            if (state.isHeaderParsed && !state.isIgnored) {
-                val bodyStartIndex = state.headerSize
-                var totalResponseSize = 0
-                var bodyBytes: ByteArray? = null
-                var complete = false
-
-                if (state.isChunked) {
-                    parseChunkedBody(buffer, bodyStartIndex)?.let { parsed ->
-                        totalResponseSize = parsed.second
-                        bodyBytes = parsed.first
-                        complete = true
-                    }
-                } else {
-                    totalResponseSize = bodyStartIndex + state.contentLength
-                    if (buffer.size >= totalResponseSize) {
-                        bodyBytes = if (state.contentLength > 0) {
-                            buffer.copyOfRange(bodyStartIndex, totalResponseSize)
-                        } else {
-                            null
-                        }
-                        complete = true
-                    }
-                }
-
-                if (complete) {
-                    val headerString = String(
-                        buffer,
-                        0,
-                        state.headerSize - headerEndMarker.size,
-                        Charsets.ISO_8859_1
-                    )
-
-                    val isBlocked = completeAndDispatchRequest(
-                        key = key,
-                        requestInfo = requestInfo,
-                        headers = headerString,
-                        body = bodyBytes,
-                        param = param
-                    )
-
-                    cleanBuffer(bufferStream, buffer, totalResponseSize)
-                    responseParsingStates.remove(key)
-                    requestParsingStates.remove(key)
-                    pendingRequests.remove(key)
-
-                    return isBlocked
-                }
+            synchronized(stream) {
+                if (stream.parser.isStopped) return false
+                stream.param = param
+                return stream.parser.feed(bytes, offset, length, stream).also { stream.param = null }
             }
         } catch (_: Exception) {
-            responseBuffers.remove(key)
-            responseParsingStates.remove(key)
-            pendingRequests.remove(key)
+            stream.release()
+            connection.clearRequests()
+            return false
         }
-
-        return false
     }
 
-    private fun cleanBuffer(stream: ByteArrayOutputStream, buffer: ByteArray, processedSize: Int) {
-        stream.reset()
-        if (buffer.size > processedSize) {
-            stream.write(buffer, processedSize, buffer.size - processedSize)
+    /**
+     * Takes the bytes [connection]'s parser for one direction has no use for (see [Http1Parser.skipAhead]).
+     * The caller drops that many bytes instead of feeding them.
+     */
+    internal fun skipAhead(connection: Connection, isWrite: Boolean): Long =
+        if (isWrite) {
+            val stream = connection.requests
+            synchronized(stream) { stream.parser.skipAhead(stream) }
+        } else {
+            val stream = connection.responses
+            synchronized(stream) { stream.parser.skipAhead(stream) }
         }
-    }
 
     private fun buildHttpRequestWithoutBody(headers: String, isHttps: Boolean): BlockedRequest? {
         val lines = headers.lines()
@@ -378,7 +294,7 @@ object RequestHook {
 
         return BlockedRequest(
             requestType = if (isHttps) " HTTPS" else " HTTP",
-            requestValue = formatUrlWithoutQuery(Uri.parse(url)),
+            requestKey = formatRequestKey(Uri.parse(url)),
             method = method,
             urlString = url,
             requestHeaders = cleanedHeaders,
@@ -388,7 +304,7 @@ object RequestHook {
             responseHeaders = null,
             responseBody = null,
             responseBodyContentType = null,
-            stack = HookUtil.getFormattedStackTrace(),
+            stack = StackCapture.capture(),
             dnsHost = null,
             fullAddress = null,
             requestId = UUID.randomUUID().toString()
@@ -396,7 +312,6 @@ object RequestHook {
     }
 
     private fun completeAndDispatchRequest(
-        key: Int,
         requestInfo: BlockedRequest,
         headers: String,
         body: ByteArray?,
@@ -437,80 +352,9 @@ object RequestHook {
             param?.throwable = IOException("Request blocked by AdClose")
         }
 
-        pendingRequests.remove(key)
         return shouldBlock
     }
 
-    private fun findBytes(data: ByteArray, pattern: ByteArray, startIndex: Int = 0): Int {
-        if (pattern.isEmpty()) return startIndex
-        if (startIndex >= data.size || pattern.size > data.size - startIndex) return -1
-
-        val badCharShift = IntArray(256) { pattern.size }
-        for (index in 0 until pattern.size - 1) {
-            badCharShift[pattern[index].toInt() and 0xFF] = pattern.size - 1 - index
-        }
-
-        var offset = startIndex
-        while (offset <= data.size - pattern.size) {
-            var patternIndex = pattern.size - 1
-            while (patternIndex >= 0 && pattern[patternIndex] == data[offset + patternIndex]) {
-                patternIndex--
-            }
-
-            if (patternIndex < 0) return offset
-
-            val badCharIndex = data[offset + pattern.size - 1].toInt() and 0xFF
-            offset += badCharShift[badCharIndex]
-        }
-
-        return -1
-    }
-
-    private fun parseContentLength(headers: String): Int {
-        return headers.lines()
-            .find { it.startsWith("Content-Length:", ignoreCase = true) }
-            ?.substring(15)
-            ?.trim()
-            ?.toIntOrNull()
-            ?: 0
-    }
-
-    private fun parseChunkedBody(buffer: ByteArray, bodyStartIndex: Int): Pair<ByteArray, Int>? {
-        val bodyStream = ByteArrayOutputStream()
-        var currentIndex = bodyStartIndex
-        val crlf = "\r\n".toByteArray()
-
-        while (true) {
-            val crlfIndex = findBytes(buffer, crlf, currentIndex)
-            if (crlfIndex == -1) return null
-
-            val chunkSizeStr = String(
-                buffer,
-                currentIndex,
-                crlfIndex - currentIndex,
-                Charsets.US_ASCII
-            ).trim()
-
-            val hexPart = chunkSizeStr.substringBefore(';').trim()
-            val chunkSize = hexPart.toIntOrNull(16) ?: return null
-
-            if (chunkSize == 0) {
-                currentIndex = crlfIndex + 2
-                val finalCrlfIndex = findBytes(buffer, crlf, currentIndex)
-                if (finalCrlfIndex == -1) return null
-                return bodyStream.toByteArray() to (finalCrlfIndex + 2)
-            }
-
-            val chunkDataStart = crlfIndex + 2
-            val chunkDataEnd = chunkDataStart + chunkSize
-
-            if (buffer.size < chunkDataEnd + 2) return null
-
-            bodyStream.write(buffer, chunkDataStart, chunkSize)
-            currentIndex = chunkDataEnd + 2
-        }
-    }
-
     private fun sendBroadcast(info: BlockedRequest, shouldBlock: Boolean, blockRuleType: String?, ruleUrl: String?) {
         sendBlockedRequestBroadcast(info, shouldBlock, ruleUrl, blockRuleType)
     }
@@ -537,60 +381,59 @@ object RequestHook {
             if (previous != null) return
         }
 
-        asyncBroadcastExecutor.execute {
-            try {
-                fun storeBody(body: ByteArray?, contentType: String?): String? {
-                    body ?: return null
-                    return runCatching {
-                        val values = contentValuesOf(
-                            "body_content" to body,
-                            "mime_type" to contentType
-                        )
-                        applicationContext.contentResolver
-                            .insert(TemporaryFileProvider.CONTENT_URI, values)
-                            ?.toString()
-                    }.getOrElse { error ->
-                        Log.e(LOG_PREFIX, "Error inserting body into provider: ${error.message}", error)
-                        null
-                    }
-                }
+        RequestReporter.report(info, isBlocked, ruleUrl, blockRuleType)
+    }
 
-                val requestBodyUriString = storeBody(info.requestBody, "text/plain")
-                val responseBodyUriString = storeBody(info.responseBody, info.responseBodyContentType)
-
-                val requestInfoForBroadcast = RequestInfo(
-                    appName = "$cachedAppLabel${info.requestType}",
-                    packageName = applicationContext.packageName,
-                    request = info.requestValue,
-                    timestamp = System.currentTimeMillis(),
-                    requestType = if (isBlocked) "block" else "pass",
-                    isBlocked = isBlocked,
-                    url = ruleUrl,
-                    blockType = blockRuleType,
-                    method = info.method,
-                    urlString = info.urlString,
-                    requestHeaders = info.requestHeaders,
-                    requestBodyUriString = requestBodyUriString,
-                    responseCode = info.responseCode,
-                    responseMessage = info.responseMessage,
-                    responseHeaders = info.responseHeaders,
-                    responseBodyUriString = responseBodyUriString,
-                    responseBodyContentType = info.responseBodyContentType,
-                    stack = info.stack,
-                    dnsHost = info.dnsHost,
-                    fullAddress = info.fullAddress,
-                    requestId = info.requestId
+    /**
+     * Runs on the reporter's flush thread: formats the stack and uploads the bodies, except those of up to
+     * [maxInlineBody] bytes, which are left in [RequestInfo.requestBody] and [RequestInfo.responseBody].
+     */
+    internal fun toRequestInfo(record: RequestReporter.Record, maxInlineBody: Int = -1): RequestInfo {
+        val info = record.info
+        val inlineRequestBody = info.requestBody?.takeIf { it.size <= maxInlineBody }
+        val inlineResponseBody = info.responseBody?.takeIf { it.size <= maxInlineBody }
+
+        fun storeBody(body: ByteArray?, contentType: String?): String? {
+            if (body == null || body.size <= maxInlineBody) return null
+            return runCatching {
+                val values = contentValuesOf(
+                    "body_content" to body,
+                    "mime_type" to contentType
                 )
-
-                Intent("com.rikkati.REQUEST").apply {
-                    putExtra("request", requestInfoForBroadcast)
-                    setPackage("com.close.hook.ads")
-                }.also { intent ->
-                    applicationContext.sendBroadcast(intent)
-                }
-            } catch (error: Exception) {
-                Log.w(LOG_PREFIX, "Broadcast send error.", error)
+                applicationContext.contentResolver
+                    .insert(TemporaryFileProvider.CONTENT_URI, values)
+                    ?.toString()
+            }.getOrElse { error ->
+                Log.e(LOG_PREFIX, "Error inserting body into provider: ${error.message}", error)
+                null
             }
         }
+
+        return RequestInfo(
+            appName = "$cachedAppLabel${info.requestType}",
+            packageName = applicationContext.packageName,
+            request = info.requestValue,
+            timestamp = record.timestamp,
+            requestType = if (record.isBlocked) "block" else "pass",
+            isBlocked = record.isBlocked,
+            url = record.ruleUrl,
+            blockType = record.blockType,
+            method = info.method,
+            urlString = info.urlString,
+            requestHeaders = info.requestHeaders,
+            requestBodyUriString = storeBody(info.requestBody, "text/plain"),
+            responseCode = info.responseCode,
+            responseMessage = info.responseMessage,
+            responseHeaders = info.responseHeaders,
+            responseBodyUriString = storeBody(info.responseBody, info.responseBodyContentType),
+            responseBodyContentType = info.responseBodyContentType,
+            stack = info.stack?.format(),
+            dnsHost = info.dnsHost,
+            fullAddress = info.fullAddress,
+            requestId = info.requestId
+        ).apply {
+            requestBody = inlineRequestBody
+            responseBody = inlineResponseBody
+        }
     }
 }
@@ -7,6 +7,7 @@ import android.webkit.WebResourceResponse
 import android.webkit.WebView
 import android.webkit.WebViewClient
 import com.close.hook.ads.data.model.BlockedRequest
+import com.close.hook.ads.data.model.RequestKey
 import com.close.hook.ads.hook.util.HookUtil
 import com.close.hook.ads.hook.util.TeeInputStream
 import com.close.hook.ads.preference.HookPrefs
@@ -17,6 +18,7 @@ import java.io.ByteArrayOutputStream
 import java.io.IOException
 import java.net.ProtocolException
 import java.io.InputStream
+import java.io.OutputStream
 import java.lang.reflect.Field
 import java.net.HttpURLConnection
 import java.net.InetAddress
@@ -24,6 +26,7 @@ import java.net.URL
 import java.nio.ByteBuffer
 import java.util.UUID
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.net.ssl.SSLEngineResult
 import javax.net.ssl.SSLSocket
 import javax.net.ssl.SSLParameters
@@ -31,6 +34,7 @@ import javax.net.ssl.SSLParameters
 internal object RequestHookHandler {
 
     private const val LOG_PREFIX = "[RequestHookHandler] "
+    private const val WEB_REQUEST_EXTRA = "adclose_web_request"
     private lateinit var applicationContext: Context
 
     private val emptyWebResponse: WebResourceResponse? by lazy { createEmptyWebResourceResponse() }
@@ -58,6 +62,9 @@ internal object RequestHookHandler {
 
     private val hookedWebViewClientClasses: MutableSet<String> = ConcurrentHashMap.newKeySet()
 
+    // Each re-fetch is a second download of what the WebView is already loading.
+    private val refetchLimiter = HostRateLimiter(perSecond = 1.0, burst = 4.0)
+
     private val switchNineKey by lazy { "switch_nine_${applicationContext.packageName}" }
     private val switchTwoKey by lazy { "switch_two_${applicationContext.packageName}" }
 
@@ -112,10 +119,8 @@ internal object RequestHookHandler {
                 val len = param.args[3] as Int
                 if (len <= 0) return@hookAllMethods
 
-                val key = System.identityHashCode(socket)
-                val buffer = RequestHook.requestBuffers.computeIfAbsent(key) { ByteArrayOutputStream() }
-                buffer.write(bytes, offset, len)
-                if (RequestHook.processRequestBuffer(key, isHttps = false)) {
+                val connection = ConnectionRegistry.of(socket)
+                if (RequestHook.processRequestBytes(connection, isHttps = false, bytes, offset, len)) {
                     param.throwable = IOException("Request blocked by AdClose")
                     return@hookAllMethods
                 }
@@ -137,10 +142,7 @@ internal object RequestHookHandler {
                 val len = param.result as? Int ?: -1
                 if (len <= 0) return@hookAllMethods
 
-                val key = System.identityHashCode(socket)
-                val buffer = RequestHook.responseBuffers.computeIfAbsent(key) { ByteArrayOutputStream() }
-                buffer.write(bytes, 0, len)
-                RequestHook.processResponseBuffer(key, param)
+                RequestHook.processResponseBytes(ConnectionRegistry.of(socket), bytes, 0, len, param)
             }
         } catch (e: Throwable) {
             XposedBridge.log("$LOG_PREFIX Error setting up plain socket hook: ${e.message}")
@@ -165,29 +167,27 @@ internal object RequestHookHandler {
                 try {
                     val srcBuffer = param.args[0] as ByteBuffer
                     if (srcBuffer.hasRemaining()) {
-                        val connId = System.identityHashCode(param.thisObject).toLong() or (1L shl 48)
-
-                        val position = srcBuffer.position()
-                        val bytes = ByteArray(srcBuffer.remaining())
-                        srcBuffer.get(bytes)
-                        srcBuffer.position(position)
-
-                        val collectRespBody = NativeRequestHook.getCollectResponseBody()
-                        val status = NativeRequestHook.feedH2Data(connId, true, bytes, 0, bytes.size, collectRespBody)
-                        
-                        if (status == 2) {
-                            param.throwable = ProtocolException("Request blocked by AdClose (HTTP/2)")
-                            return@findAndHookMethod
-                        } else if (status == 1) {
-                            return@findAndHookMethod
-                        }
+                        val connection = ConnectionRegistry.of(param.thisObject)
+                        val connId = ConnectionRegistry.h2Id(connection)
+
+                        val length = srcBuffer.remaining()
+                        BufferPool.withScratch(length) { bytes ->
+                            srcBuffer.duplicate().get(bytes, 0, length)
 
-                        val key = connId.toInt() or Int.MIN_VALUE
-                        val buffer = RequestHook.requestBuffers.computeIfAbsent(key) { ByteArrayOutputStream() }
-                        buffer.write(bytes)
-                        if (RequestHook.processRequestBuffer(key, isHttps = true)) {
-                            param.throwable = ProtocolException("Request blocked by AdClose")
-                            return@findAndHookMethod
+                            val collectRespBody = NativeRequestHook.getCollectResponseBody()
+                            val status = NativeRequestHook.feedH2Data(connId, true, bytes, 0, length, collectRespBody)
+
+                            if (status == 2) {
+                                param.throwable = ProtocolException("Request blocked by AdClose (HTTP/2)")
+                                return@findAndHookMethod
+                            } else if (status == 1) {
+                                return@findAndHookMethod
+                            }
+
+                            if (RequestHook.processRequestBytes(connection, isHttps = true, bytes, 0, length)) {
+                                param.throwable = ProtocolException("Request blocked by AdClose")
+                                return@findAndHookMethod
+                            }
                         }
                     }
                 } catch (e: Throwable) {
@@ -212,29 +212,26 @@ internal object RequestHookHandler {
                     val bytesProduced = result.bytesProduced()
 
                     if (bytesProduced > 0) {
-                        val connId = System.identityHashCode(param.thisObject).toLong() or (1L shl 48)
-
-                        val position = dstBuffer.position()
-                        val start = position - bytesProduced
-                        val bytes = ByteArray(bytesProduced)
-                        val dup = dstBuffer.duplicate()
-                        dup.position(start)
-                        dup.get(bytes, 0, bytesProduced)
-
-                        val collectRespBody = NativeRequestHook.getCollectResponseBody()
-                        val status = NativeRequestHook.feedH2Data(connId, false, bytes, 0, bytes.size, collectRespBody)
-                        
-                        if (status == 2) {
-                            param.throwable = ProtocolException("Request blocked by AdClose (HTTP/2)")
-                            return@findAndHookMethod
-                        } else if (status == 1) {
-                            return@findAndHookMethod
-                        }
+                        val connection = ConnectionRegistry.of(param.thisObject)
+                        val connId = ConnectionRegistry.h2Id(connection)
+
+                        BufferPool.withScratch(bytesProduced) { bytes ->
+                            val dup = dstBuffer.duplicate()
+                            dup.position(dstBuffer.position() - bytesProduced)
+                            dup.get(bytes, 0, bytesProduced)
+
+                            val collectRespBody = NativeRequestHook.getCollectResponseBody()
+                            val status = NativeRequestHook.feedH2Data(connId, false, bytes, 0, bytesProduced, collectRespBody)
+
+                            if (status == 2) {
+                                param.throwable = ProtocolException("Request blocked by AdClose (HTTP/2)")
+                                return@findAndHookMethod
+                            } else if (status == 1) {
+                                return@findAndHookMethod
+                            }
 
-                        val key = connId.toInt() or Int.MIN_VALUE
-                        val buffer = RequestHook.responseBuffers.computeIfAbsent(key) { ByteArrayOutputStream() }
-                        buffer.write(bytes)
-                        RequestHook.processResponseBuffer(key, param)
+                            RequestHook.processResponseBytes(connection, bytes, 0, bytesProduced, param)
+                        }
                     }
                 } catch (e: Throwable) {
                     XposedBridge.log("$LOG_PREFIX ConscryptEngine.unwrap hook error: ${e.message}")
@@ -250,8 +247,9 @@ internal object RequestHookHandler {
                     return@hookAllMethods
                 }
                 try {
-                    val connId = System.identityHashCode(param.thisObject).toLong() or (1L shl 48)
-                    NativeRequestHook.freeH2Conn(connId)
+                    val connection = ConnectionRegistry.find(param.thisObject) ?: return@hookAllMethods
+                    NativeRequestHook.freeH2Conn(ConnectionRegistry.h2Id(connection))
+                    ConnectionRegistry.close(param.thisObject)
                 } catch (e: Throwable) {
                     XposedBridge.log("$LOG_PREFIX ConscryptEngine.closeInbound hook error: ${e.message}")
                 }
@@ -286,19 +284,36 @@ internal object RequestHookHandler {
             { param ->
                 if (param.args.size != 2) return@hookAllMethods
                 val request = param.args[1] as? WebResourceRequest ?: return@hookAllMethods
+                val info = buildWebRequest(request) ?: return@hookAllMethods
 
-                if (processWebRequest(request)) {
+                if (RequestHook.checkShouldBlockRequest(info)) {
                     param.result = emptyWebResponse
                     return@hookAllMethods
                 }
 
                 if (HookPrefs.getBoolean(HookPrefs.KEY_COLLECT_RESPONSE_BODY, false)) {
-                    sendParallelRequestForLogging(request)
+                    if (HookPrefs.getBoolean(HookPrefs.KEY_WEBVIEW_REFETCH, false)) {
+                        sendParallelRequestForLogging(request)
+                    } else {
+                        param.setObjectExtra(WEB_REQUEST_EXTRA, info)
+                    }
                 }
             },
             classLoader
         )
 
+        HookUtil.hookAllMethods(
+            clientClassName,
+            "shouldInterceptRequest",
+            "after",
+            { param ->
+                val info = param.getObjectExtra(WEB_REQUEST_EXTRA) as? BlockedRequest ?: return@hookAllMethods
+                val response = param.result as? WebResourceResponse ?: return@hookAllMethods
+                teeWebResponse(info, response)
+            },
+            classLoader
+        )
+
         HookUtil.hookAllMethods(
             clientClassName,
             "shouldOverrideUrlLoading",
@@ -316,8 +331,9 @@ internal object RequestHookHandler {
     private fun sendParallelRequestForLogging(request: WebResourceRequest) {
         val url = request.url
         if (url == null || (url.scheme != "http" && url.scheme != "https")) return
+        if (!refetchLimiter.tryAcquire(url.host.orEmpty())) return
 
-        RequestHook.asyncBroadcastExecutor.execute {
+        RequestHook.webRefetchExecutor.execute {
             try {
                 val urlConnection = URL(request.url.toString()).openConnection() as HttpURLConnection
                 urlConnection.connectTimeout = 5000
@@ -358,10 +374,9 @@ internal object RequestHookHandler {
                     contentType
                 }
 
-                val formattedUrl = RequestHook.formatUrlWithoutQuery(url)
                 val info = BlockedRequest(
                     requestType = " Web",
-                    requestValue = formattedUrl,
+                    requestKey = RequestHook.formatRequestKey(url),
                     method = request.method,
                     urlString = url.toString(),
                     requestHeaders = request.requestHeaders.toString(),
@@ -371,7 +386,7 @@ internal object RequestHookHandler {
                     responseHeaders = responseHeaders,
                     responseBody = responseBodyBytes,
                     responseBodyContentType = mimeTypeWithEncoding,
-                    stack = HookUtil.getFormattedStackTrace(),
+                    stack = StackCapture.capture(),
                     dnsHost = null,
                     fullAddress = null,
                     requestId = UUID.randomUUID().toString()
@@ -384,19 +399,22 @@ internal object RequestHookHandler {
     }
 
     private fun processWebRequest(request: Any?): Boolean {
+        val info = buildWebRequest(request) ?: return false
+        return RequestHook.checkShouldBlockRequest(info)
+    }
+
+    private fun buildWebRequest(request: Any?): BlockedRequest? {
         try {
-            val webResourceRequest = request as? WebResourceRequest ?: return false
+            val webResourceRequest = request as? WebResourceRequest ?: return null
 
             if (webResourceRequest.requestHeaders["X-AdClose-Proxy"] == "true") {
-                return false
+                return null
             }
 
-            val urlString = webResourceRequest.url?.toString() ?: return false
-            val formattedUrl = RequestHook.formatUrlWithoutQuery(Uri.parse(urlString))
-
-            val info = BlockedRequest(
+            val urlString = webResourceRequest.url?.toString() ?: return null
+            return BlockedRequest(
                 requestType = " Web",
-                requestValue = formattedUrl,
+                requestKey = RequestHook.formatRequestKey(Uri.parse(urlString)),
                 method = webResourceRequest.method,
                 urlString = urlString,
                 requestHeaders = webResourceRequest.requestHeaders.toString(),
@@ -406,16 +424,58 @@ internal object RequestHookHandler {
                 responseHeaders = null,
                 responseBody = null,
                 responseBodyContentType = null,
-                stack = HookUtil.getFormattedStackTrace(),
+                stack = StackCapture.capture(),
                 dnsHost = null,
                 fullAddress = null,
                 requestId = UUID.randomUUID().toString()
             )
-            return RequestHook.checkShouldBlockRequest(info)
         } catch (e: Exception) {
             XposedBridge.log("$LOG_PREFIX Web request error: ${e.message}")
         }
-        return false
+        return null
+    }
+
+    /**
+     * Copies the body of a response the app's client served itself as the WebView reads it, and reports it
+     * once the WebView reaches its end or closes the stream. Resources the WebView loads on its own never pass
+     * through here.
+     */
+    private fun teeWebResponse(info: BlockedRequest, response: WebResourceResponse) {
+        val data = response.data ?: return
+        val body = CaptureBuffer()
+        val reported = AtomicBoolean(false)
+        // Reads after a failure must not pull a fresh array that nothing would give back.
+        val sink = object : OutputStream() {
+            override fun write(b: Int) {
+                if (!reported.get()) body.append(b.toByte())
+            }
+
+            override fun write(b: ByteArray, off: Int, len: Int) {
+                if (!reported.get()) body.append(b, off, len)
+            }
+        }
+
+        // Reported at end of stream; close is the backstop for readers that stop early.
+        val finish = {
+            if (reported.compareAndSet(false, true)) {
+                val captured = body.toByteArray()
+                body.reset()
+                val contentType = response.mimeType?.let { mime ->
+                    response.encoding?.let { "$mime; charset=$it" } ?: mime
+                }
+                RequestHook.checkShouldBlockRequest(
+                    info.copy(
+                        responseCode = response.statusCode,
+                        responseMessage = response.reasonPhrase,
+                        responseHeaders = response.responseHeaders
+                            ?.entries?.joinToString("\n") { "${it.key}: ${it.value}" },
+                        responseBody = captured,
+                        responseBodyContentType = contentType
+                    )
+                )
+            }
+        }
+        response.data = TeeInputStream(data, sink, onClose = finish, onEnd = finish)
     }
 
     private fun createEmptyWebResourceResponse(): WebResourceResponse? {
@@ -486,11 +546,11 @@ internal object RequestHookHandler {
                         }
                     }
 
-                    val formattedUrl = finalUrl?.let { RequestHook.formatUrlWithoutQuery(Uri.parse(it)) }
+                    val requestKey = finalUrl?.let { RequestHook.formatRequestKey(Uri.parse(it)) } ?: RequestKey.EMPTY
 
                     val info = BlockedRequest(
                         requestType = " CRONET/$negotiatedProtocol",
-                        requestValue = formattedUrl ?: "",
+                        requestKey = requestKey,
                         method = method,
                         urlString = finalUrl,
                         requestHeaders = requestHeaders,
@@ -500,7 +560,7 @@ internal object RequestHookHandler {
                         responseHeaders = responseHeaders,
                         responseBody = responseBody,
                         responseBodyContentType = responseContentType,
-                        stack = HookUtil.getFormattedStackTrace(),
+                        stack = StackCapture.capture(),
                         dnsHost = null,
                         fullAddress = null,
                         requestId = UUID.randomUUID().toString()
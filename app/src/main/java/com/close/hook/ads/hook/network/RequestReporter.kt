@@ -0,0 +1,374 @@
+package com.close.hook.ads.hook.network
+
+import android.content.ComponentName
+import android.content.Context
+import android.content.Intent
+import android.content.ServiceConnection
+import android.os.Build
+import android.os.IBinder
+import android.os.RemoteException
+import android.os.SharedMemory
+import android.system.ErrnoException
+import androidx.annotation.RequiresApi
+import com.close.hook.ads.data.RequestRing
+import com.close.hook.ads.data.model.BlockedRequest
+import com.close.hook.ads.data.model.RequestInfo
+import com.close.hook.ads.service.IRequestRingClient
+import com.close.hook.ads.service.IRequestService
+import de.robv.android.xposed.XposedBridge
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Ships intercepted requests to the module app over [IRequestService] in batches. Records wait in a bounded
+ * ring and a flush thread sends them once a batch fills or [FLUSH_INTERVAL_MS] passes; turning a record into
+ * a [RequestInfo] (body upload, stack formatting) also happens there. When the ring is full the oldest record
+ * is dropped, so the app's network thread never waits on the module.
+ *
+ * From Android 8.1 batches are written into a [RequestRing] region shared with the app and only segment
+ * numbers cross binder. Before that, or when the region cannot be set up, they go as parcelled lists.
+ */
+internal object RequestReporter {
+
+    private const val LOG_PREFIX = "[RequestReporter] "
+    private const val CAPACITY = 1024
+    private const val BATCH_SIZE = 64
+    private const val FLUSH_INTERVAL_MS = 250L
+    private const val SEGMENT_WAIT_MS = 1_000L
+    private const val STATS_LOG_INTERVAL_MS = 10_000L
+
+    // Keeps one oneway transaction well inside the binder's async buffer.
+    private const val MAX_BATCH_CHARS = 96 * 1024
+
+    class Record(
+        var info: BlockedRequest,
+        var isBlocked: Boolean,
+        var ruleUrl: String?,
+        var blockType: String?,
+        val timestamp: Long
+    )
+
+    data class Stats(
+        val queued: Int,
+        val reported: Long,
+        val throttled: Long,
+        val sent: Long,
+        val dropped: Long,
+        val failed: Long,
+        val meanLatencyMillis: Long
+    )
+
+    private val lock = Object()
+    private val ring = ArrayDeque<Record>(CAPACITY)
+
+    // Records still in the ring without a response, so a response can be folded into its request.
+    private val awaitingResponse = HashMap<String, Record>()
+
+    // The region shared with the app and the segments of it the app has handed back.
+    private var region: ByteBuffer? = null
+    private val freeSegments = ArrayDeque<Int>(RequestRing.SEGMENT_COUNT)
+
+    private val started = AtomicBoolean(false)
+    private lateinit var packageName: String
+
+    @Volatile
+    private var service: IRequestService? = null
+
+    // Passed requests from one host may not crowd everything else out of the ring; blocked ones always go.
+    private val passedLimiter = HostRateLimiter(perSecond = 20.0, burst = 50.0)
+
+    private val reported = LongAdder()
+    private val throttled = LongAdder()
+    private val sent = LongAdder()
+    private val dropped = LongAdder()
+    private val failed = LongAdder()
+    private val flushed = LongAdder()
+    private val latencyMillis = LongAdder()
+    private var lastStatsLog = 0L
+    private var lossAtLastLog = 0L
+
+    private val connection = object : ServiceConnection {
+        override fun onServiceConnected(name: ComponentName?, binder: IBinder?) {
+            val target = IRequestService.Stub.asInterface(binder)
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) attachRing(target)
+            service = target
+            synchronized(lock) { lock.notifyAll() }
+        }
+
+        override fun onServiceDisconnected(name: ComponentName?) {
+            service = null
+            detachRing()
+        }
+    }
+
+    private val ringClient = object : IRequestRingClient.Stub() {
+        override fun segmentFree(segment: Int) {
+            freeSegment(segment)
+        }
+    }
+
+    fun stats(): Stats {
+        val count = flushed.sum()
+        return Stats(
+            queued = synchronized(lock) { ring.size },
+            reported = reported.sum(),
+            throttled = throttled.sum(),
+            sent = sent.sum(),
+            dropped = dropped.sum(),
+            failed = failed.sum(),
+            meanLatencyMillis = if (count == 0L) 0L else latencyMillis.sum() / count
+        )
+    }
+
+    fun init(context: Context) {
+        if (!started.compareAndSet(false, true)) return
+        packageName = context.packageName
+
+        val intent = Intent("com.close.hook.ads.IRequestService").apply {
+            setPackage("com.close.hook.ads")
+        }
+        try {
+            if (!context.bindService(intent, connection, Context.BIND_AUTO_CREATE)) {
+                XposedBridge.log("$LOG_PREFIX bindService returned false.")
+            }
+        } catch (e: Exception) {
+            XposedBridge.log("$LOG_PREFIX Failed to bind to RequestService: ${e.message}")
+        }
+
+        Thread(::flushLoop, "AdClose-RequestReporter").apply { isDaemon = true }.start()
+    }
+
+    fun report(info: BlockedRequest, isBlocked: Boolean, ruleUrl: String?, blockType: String?) {
+        reported.increment()
+        synchronized(lock) {
+            val id = info.requestId
+            if (info.responseCode != -1 && id.isNotEmpty()) {
+                awaitingResponse.remove(id)?.let { pending ->
+                    pending.info = info
+                    pending.isBlocked = isBlocked
+                    pending.ruleUrl = ruleUrl
+                    pending.blockType = blockType
+                    return
+                }
+            }
+            if (!isBlocked && !passedLimiter.tryAcquire(hostOf(info))) {
+                throttled.increment()
+                return
+            }
+
+            if (ring.size == CAPACITY) {
+                forget(ring.removeFirst())
+                dropped.increment()
+            }
+            val record = Record(info, isBlocked, ruleUrl, blockType, System.currentTimeMillis())
+            ring.addLast(record)
+            if (info.responseCode == -1 && id.isNotEmpty()) awaitingResponse[id] = record
+            if (ring.size == BATCH_SIZE) lock.notifyAll()
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O_MR1)
+    private fun attachRing(target: IRequestService) {
+        try {
+            SharedMemory.create("AdClose-requests", RequestRing.SIZE).use { memory ->
+                // The mapping stays valid after the descriptor is closed; binder sends its own duplicate.
+                val buffer = memory.mapReadWrite()
+                try {
+                    target.attachRing(memory, ringClient)
+                } catch (e: RemoteException) {
+                    SharedMemory.unmap(buffer)
+                    throw e
+                }
+                // A region replaced here is left to the GC: the flush thread may still be writing into it.
+                synchronized(lock) {
+                    region = buffer
+                    freeSegments.clear()
+                    repeat(RequestRing.SEGMENT_COUNT) { freeSegments.addLast(it) }
+                }
+            }
+        } catch (e: ErrnoException) {
+            XposedBridge.log("$LOG_PREFIX Shared memory unavailable, sending parcels: ${e.message}")
+        } catch (e: RemoteException) {
+            XposedBridge.log("$LOG_PREFIX Failed to attach request ring: ${e.message}")
+        }
+    }
+
+    private fun detachRing() {
+        synchronized(lock) {
+            // The flush thread may still be writing a segment; it checks the region before publishing.
+            region = null
+            freeSegments.clear()
+            lock.notifyAll()
+        }
+    }
+
+    private fun flushLoop() {
+        while (true) {
+            try {
+                val batch = takeBatch()
+                if (batch.isNotEmpty()) {
+                    send(batch)
+                    val now = System.currentTimeMillis()
+                    batch.forEach { latencyMillis.add(now - it.timestamp) }
+                    flushed.add(batch.size.toLong())
+                }
+                logStats()
+            } catch (e: InterruptedException) {
+                return
+            } catch (e: Exception) {
+                XposedBridge.log("$LOG_PREFIX Flush error: ${e.message}")
+            }
+        }
+    }
+
+    private fun takeBatch(): List<Record> = synchronized(lock) {
+        if (ring.size < BATCH_SIZE || !canSend()) lock.wait(FLUSH_INTERVAL_MS)
+        if (!canSend() || ring.isEmpty()) return emptyList()
+
+        val batch = ArrayList<Record>(minOf(ring.size, BATCH_SIZE))
+        while (batch.size < BATCH_SIZE) {
+            val record = ring.removeFirstOrNull() ?: break
+            forget(record)
+            batch += record
+        }
+        batch
+    }
+
+    // With a region attached, records stay in the ring until a segment is free, so a slow app drops the oldest.
+    private fun canSend(): Boolean = service != null && (region == null || freeSegments.isNotEmpty())
+
+    private fun send(batch: List<Record>) {
+        val target = service
+        val shared = synchronized(lock) { region }
+        if (target != null && shared != null) {
+            sendShared(target, shared, batch)
+        } else {
+            sendParcels(batch)
+        }
+    }
+
+    private fun sendShared(target: IRequestService, shared: ByteBuffer, batch: List<Record>) {
+        var segment = -1
+        var writer: RequestRing.Writer? = null
+        for ((index, record) in batch.withIndex()) {
+            val info = RequestHook.toRequestInfo(record, RequestRing.MAX_INLINE_BODY)
+            if (writer != null && !writer.put(info)) {
+                publish(target, shared, segment, writer)
+                writer = null
+            }
+            if (writer == null) {
+                segment = awaitSegment(shared)
+                if (segment < 0) {
+                    // The app is not returning segments; waiting again for each record would stall the flush
+                    // thread for the whole batch.
+                    failed.add((batch.size - index).toLong())
+                    break
+                }
+                writer = RequestRing.Writer(RequestRing.segment(shared, segment), packageName)
+                // Bigger than a whole segment, which takes huge headers or stacks.
+                if (!writer.put(info)) dropped.increment()
+            }
+        }
+        if (writer != null) {
+            if (writer.count > 0) publish(target, shared, segment, writer) else freeSegment(segment)
+        }
+    }
+
+    private fun publish(target: IRequestService, shared: ByteBuffer, segment: Int, writer: RequestRing.Writer) {
+        val length = writer.finish()
+        val current = synchronized(lock) { region === shared }
+        if (!current) {
+            failed.add(writer.count.toLong())
+            return
+        }
+        try {
+            target.segmentReady(ringClient, segment, length)
+            sent.add(writer.count.toLong())
+        } catch (e: RemoteException) {
+            failed.add(writer.count.toLong())
+            freeSegment(segment)
+            XposedBridge.log("$LOG_PREFIX Failed to publish request segment: ${e.message}")
+        }
+    }
+
+    /** Takes a free segment, waiting up to [SEGMENT_WAIT_MS] for the app to return one; -1 if none came. */
+    private fun awaitSegment(shared: ByteBuffer): Int = synchronized(lock) {
+        val deadline = System.currentTimeMillis() + SEGMENT_WAIT_MS
+        while (region === shared && freeSegments.isEmpty()) {
+            val left = deadline - System.currentTimeMillis()
+            if (left <= 0L) break
+            lock.wait(left)
+        }
+        if (region !== shared) -1 else freeSegments.removeFirstOrNull() ?: -1
+    }
+
+    private fun freeSegment(segment: Int) {
+        synchronized(lock) {
+            if (region == null || segment !in 0 until RequestRing.SEGMENT_COUNT) return
+            if (segment in freeSegments) return
+            freeSegments.addLast(segment)
+            lock.notifyAll()
+        }
+    }
+
+    private fun sendParcels(batch: List<Record>) {
+        val chunk = ArrayList<RequestInfo>(batch.size)
+        var chars = 0
+        batch.forEach { record ->
+            val info = RequestHook.toRequestInfo(record)
+            val size = estimateChars(info)
+            if (chunk.isNotEmpty() && chars + size > MAX_BATCH_CHARS) {
+                deliver(chunk)
+                chunk.clear()
+                chars = 0
+            }
+            chunk += info
+            chars += size
+        }
+        if (chunk.isNotEmpty()) deliver(chunk)
+    }
+
+    private fun deliver(requests: List<RequestInfo>) {
+        val target = service
+        if (target == null) {
+            failed.add(requests.size.toLong())
+            return
+        }
+        try {
+            target.reportBatch(requests)
+            sent.add(requests.size.toLong())
+        } catch (e: RemoteException) {
+            failed.add(requests.size.toLong())
+            XposedBridge.log("$LOG_PREFIX Failed to send request batch: ${e.message}")
+        }
+    }
+
+    private fun logStats() {
+        val now = System.currentTimeMillis()
+        if (now - lastStatsLog < STATS_LOG_INTERVAL_MS) return
+        val stats = stats()
+        val refetch = RequestHook.webRefetchExecutor.stats()
+        val loss = stats.dropped + stats.throttled + refetch.rejected
+        if (loss == lossAtLastLog) return
+        XposedBridge.log("$LOG_PREFIX $stats, web re-fetch $refetch")
+        lossAtLastLog = loss
+        lastStatsLog = now
+    }
+
+    private fun hostOf(info: BlockedRequest): String =
+        info.requestKey.takeIf { it.hasHost }?.host ?: info.requestValue
+
+    private fun forget(record: Record) {
+        val id = record.info.requestId
+        if (id.isNotEmpty() && awaitingResponse[id] === record) awaitingResponse.remove(id)
+    }
+
+    private fun estimateChars(info: RequestInfo): Int =
+        info.request.length +
+            (info.urlString?.length ?: 0) +
+            (info.requestHeaders?.length ?: 0) +
+            (info.responseHeaders?.length ?: 0) +
+            (info.stack?.length ?: 0) +
+            256
+}
@@ -0,0 +1,38 @@
+package com.close.hook.ads.hook.network
+
+import com.close.hook.ads.data.model.BlockedRequest
+import com.close.hook.ads.data.model.CapturedStack
+import com.close.hook.ads.preference.HookPrefs
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Decides which intercepted requests get a call stack, per [HookPrefs.KEY_STACK_CAPTURE_MODE]. Capturing
+ * costs a stack walk on the app's network thread; formatting it is left to the broadcast thread.
+ */
+internal object StackCapture {
+
+    const val MODE_ALWAYS = "always"
+    const val MODE_SAMPLED = "sampled"
+    const val MODE_BLOCKED = "blocked"
+    const val MODE_OFF = "off"
+
+    private const val DEFAULT_SAMPLE_RATE = 10L
+
+    private val sampleCounter = AtomicInteger()
+
+    /** Called where a request is first built; returns null when the mode leaves this one out. */
+    fun capture(): CapturedStack? = when (mode()) {
+        MODE_ALWAYS -> CapturedStack.capture()
+        MODE_SAMPLED -> {
+            val rate = HookPrefs.getLong(HookPrefs.KEY_STACK_SAMPLE_RATE, DEFAULT_SAMPLE_RATE).coerceAtLeast(1L)
+            if (sampleCounter.incrementAndGet() % rate == 0L) CapturedStack.capture() else null
+        }
+        else -> null
+    }
+
+    /** Called once [info] is known to be blocked, so blocked-only mode still records where it came from. */
+    fun forBlocked(info: BlockedRequest): BlockedRequest =
+        if (info.stack == null && mode() == MODE_BLOCKED) info.copy(stack = CapturedStack.capture()) else info
+
+    private fun mode(): String = HookPrefs.getString(HookPrefs.KEY_STACK_CAPTURE_MODE, MODE_ALWAYS) ?: MODE_ALWAYS
+}
@@ -1,6 +1,8 @@
 package com.close.hook.ads.manager
 
 import android.util.Log
+import com.close.hook.ads.closeApp
+import com.close.hook.ads.data.RuleBlobStore
 import com.close.hook.ads.preference.HookPrefs
 import io.github.libxposed.service.XposedService
 import io.github.libxposed.service.XposedServiceHelper
@@ -56,6 +58,7 @@ object ServiceManager {
                 }
                 if (isFirstConnection) {
                     HookPrefs.invalidateCaches()
+                    RuleBlobStore.publish(closeApp)
                     Log.i(TAG, "LSPosed service connected: ${boundService.frameworkName} v${boundService.frameworkVersion}")
                 } else {
                     Log.w(TAG, "Already connected to $alreadyConnectedFramework. Ignoring ${boundService.frameworkName}.")
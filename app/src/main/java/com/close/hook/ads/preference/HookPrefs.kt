@@ -38,6 +38,10 @@ object HookPrefs {
     private const val KEY_PREFIX_OVERALL_HOOK = "overall_hook_enabled_"
     private const val KEY_PREFIX_ENABLE_LOGGING = "enable_logging_"
     const val KEY_COLLECT_RESPONSE_BODY = "collect_response_body_enabled"
+    const val KEY_WEBVIEW_REFETCH = "webview_refetch_enabled"
+    const val KEY_RECORD_PASSED_REQUESTS = "record_passed_requests_enabled"
+    const val KEY_STACK_CAPTURE_MODE = "stack_capture_mode"
+    const val KEY_STACK_SAMPLE_RATE = "stack_sample_rate"
     const val KEY_ENABLE_DEX_DUMP = "enable_dex_dump"
     const val KEY_ENABLE_PACKAGE_VISIBILITY_BYPASS = "enable_package_visibility_bypass"
     const val KEY_REQUEST_CACHE_EXPIRATION = "request_cache_expiration"
@@ -7,9 +7,13 @@ import android.content.UriMatcher
 import android.database.Cursor
 import android.database.MatrixCursor
 import android.net.Uri
+import android.os.Bundle
+import com.close.hook.ads.data.PatternMatcher
+import com.close.hook.ads.data.RuleBlobStore
 import com.close.hook.ads.data.dao.UrlDao
 import com.close.hook.ads.data.database.UrlDatabase
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.data.model.UrlChange
 
 class UrlContentProvider : ContentProvider() {
 
@@ -30,6 +34,7 @@ class UrlContentProvider : ContentProvider() {
         return when (uriMatcher.match(uri)) {
             ID_URL_DATA -> handleQueryData(selectionArgs)
             ID_URL_DATA_ITEM -> null
+            ID_URL_CHANGES -> handleQueryChanges(selectionArgs)
             else -> null
         }
     }
@@ -44,6 +49,7 @@ class UrlContentProvider : ContentProvider() {
                 val result = when (queryType) {
                     "URL"     -> urlDao.findUrlMatch(queryValue)
                     "Domain"  -> urlDao.findDomainMatch(queryValue)
+                    "DomainSuffix" -> urlDao.findDomainSuffixMatch(queryValue)
                     "KeyWord" -> urlDao.findKeywordMatch(queryValue)
                     else      -> null
                 }
@@ -57,17 +63,49 @@ class UrlContentProvider : ContentProvider() {
     }
 
     private fun urlsToCursor(urls: List<Url>): MatrixCursor {
-        val cursor = MatrixCursor(arrayOf(Url.URL_TYPE, Url.URL_ADDRESS))
+        val cursor = MatrixCursor(arrayOf(Url.URL_TYPE, Url.URL_ADDRESS, Url.URL_ID))
         urls.forEach { url ->
-            cursor.addRow(arrayOf(url.type, url.url))
+            cursor.addRow(arrayOf(url.type, url.url, url.id))
         }
         return cursor
     }
 
+    // Rows are ordered by version. A single "reset" row tells the caller its version is too old (or
+    // the backlog too large) and it must reload the full table, then resume from the reported version.
+    private fun handleQueryChanges(selectionArgs: Array<String>?): Cursor {
+        val cursor = MatrixCursor(CHANGE_COLUMNS)
+        val sinceVersion = selectionArgs?.firstOrNull()?.toLongOrNull() ?: -1L
+
+        val reset = when {
+            sinceVersion < 0L -> true
+            sinceVersion > urlDao.currentRuleVersion() -> true
+            sinceVersion < urlDao.oldestRuleVersion() - 1 -> true
+            else -> urlDao.countChangesSince(sinceVersion) > MAX_DELTA_ROWS
+        }
+
+        if (reset) {
+            cursor.addRow(arrayOf(urlDao.currentRuleVersion(), UrlChange.OP_RESET, 0L, "", ""))
+            return cursor
+        }
+
+        urlDao.findChangesSince(sinceVersion).forEach { change ->
+            cursor.addRow(arrayOf(change.version, change.op, change.ruleId, change.type, change.url))
+        }
+        return cursor
+    }
+
+    override fun call(method: String, arg: String?, extras: Bundle?): Bundle? {
+        if (method != METHOD_RULE_VERSION) return null
+        return Bundle().apply {
+            putLong(KEY_RULE_VERSION, urlDao.currentRuleVersion())
+        }
+    }
+
     override fun getType(uri: Uri): String? {
         return when (uriMatcher.match(uri)) {
             ID_URL_DATA -> "vnd.android.cursor.dir/$AUTHORITY.$URL_TABLE_NAME"
             ID_URL_DATA_ITEM -> "vnd.android.cursor.item/$AUTHORITY.$URL_TABLE_NAME"
+            ID_URL_CHANGES -> "vnd.android.cursor.dir/$AUTHORITY.$CHANGES_PATH"
             else -> null
         }
     }
@@ -75,10 +113,13 @@ class UrlContentProvider : ContentProvider() {
     override fun insert(uri: Uri, values: ContentValues?): Uri? {
         if (uriMatcher.match(uri) != ID_URL_DATA || values == null) return null
 
-        val insertedId = urlDao.insert(values.toUrl())
+        val url = values.toUrl()
+        if (!url.isValidRule()) return null
+
+        val insertedId = urlDao.insert(url)
         if (insertedId <= 0L) return null
 
-        notifyChange(uri)
+        publishRules()
         return ContentUris.withAppendedId(uri, insertedId)
     }
 
@@ -87,7 +128,7 @@ class UrlContentProvider : ContentProvider() {
 
         val deleted = urlDao.deleteById(ContentUris.parseId(uri))
         if (deleted > 0) {
-            notifyChange(Uri.withAppendedPath(baseContentUri, URL_TABLE_NAME))
+            publishRules()
         }
         return deleted
     }
@@ -98,18 +139,24 @@ class UrlContentProvider : ContentProvider() {
         val url = values.toUrl().apply {
             id = ContentUris.parseId(uri)
         }
+        if (!url.isValidRule()) return 0
 
         val updated = urlDao.update(url)
         if (updated > 0) {
-            notifyChange(Uri.withAppendedPath(baseContentUri, URL_TABLE_NAME))
+            publishRules()
         }
         return updated
     }
 
-    private fun notifyChange(uri: Uri) {
-        context?.contentResolver?.notifyChange(uri, null)
+    // Observers are notified once the blob for the new version is written.
+    private fun publishRules() {
+        context?.let { RuleBlobStore.publish(it) }
     }
 
+    // Patterns that do not compile would only be skipped later in every hooked process.
+    private fun Url.isValidRule(): Boolean =
+        !PatternMatcher.isPatternType(type) || PatternMatcher.validate(type, url) == null
+
     private fun ContentValues.toUrl(): Url {
         return Url(
             type = getAsString(Url.URL_TYPE).orEmpty(),
@@ -120,18 +167,32 @@ class UrlContentProvider : ContentProvider() {
     companion object {
         const val AUTHORITY = "com.close.hook.ads.provider.url"
         const val URL_TABLE_NAME = "url_info"
+        const val CHANGES_PATH = "changes"
+
+        const val METHOD_RULE_VERSION = "ruleVersion"
+        const val KEY_RULE_VERSION = "rule_version"
 
         private const val ID_URL_DATA = 1
         private const val ID_URL_DATA_ITEM = 2
+        private const val ID_URL_CHANGES = 3
+
+        private const val MAX_DELTA_ROWS = 5_000
+
+        private val CHANGE_COLUMNS = arrayOf(
+            UrlChange.CHANGE_VERSION, UrlChange.CHANGE_OP, UrlChange.CHANGE_RULE_ID, Url.URL_TYPE, Url.URL_ADDRESS
+        )
 
         private val baseContentUri: Uri = Uri.Builder()
             .scheme("content")
             .authority(AUTHORITY)
             .build()
 
+        val CONTENT_URI: Uri = Uri.withAppendedPath(baseContentUri, URL_TABLE_NAME)
+
         private val uriMatcher = UriMatcher(UriMatcher.NO_MATCH).apply {
             addURI(AUTHORITY, URL_TABLE_NAME, ID_URL_DATA)
             addURI(AUTHORITY, "$URL_TABLE_NAME/#", ID_URL_DATA_ITEM)
+            addURI(AUTHORITY, "$URL_TABLE_NAME/$CHANGES_PATH", ID_URL_CHANGES)
         }
     }
 }
@@ -0,0 +1,113 @@
+package com.close.hook.ads.service
+
+import android.app.Service
+import android.content.Intent
+import android.os.Build
+import android.os.IBinder
+import android.os.RemoteException
+import android.os.SharedMemory
+import android.system.ErrnoException
+import android.util.Log
+import androidx.annotation.RequiresApi
+import androidx.core.content.contentValuesOf
+import com.close.hook.ads.data.RequestRing
+import com.close.hook.ads.data.model.RequestInfo
+import com.close.hook.ads.data.repository.RequestRepository
+import com.close.hook.ads.provider.TemporaryFileProvider
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+
+class RequestService : Service() {
+
+    companion object {
+        private const val TAG = "RequestService"
+    }
+
+    private class Ring(val region: ByteBuffer, val client: IRequestRingClient)
+
+    // Keyed by the client binder each hooked process attached with; binder hands back the same proxy object
+    // for it on every call.
+    private val rings = ConcurrentHashMap<IBinder, Ring>()
+
+    private val binder = object : IRequestService.Stub() {
+        override fun reportBatch(requests: List<RequestInfo>?) {
+            if (!requests.isNullOrEmpty()) {
+                RequestRepository.addRequests(requests)
+            }
+        }
+
+        override fun attachRing(ring: SharedMemory?, client: IRequestRingClient?) {
+            if (ring == null || client == null) return
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                attach(ring, client)
+            }
+        }
+
+        override fun segmentReady(client: IRequestRingClient?, segment: Int, length: Int) {
+            val ring = client?.let { rings[it.asBinder()] } ?: return
+            if (segment !in 0 until RequestRing.SEGMENT_COUNT) return
+            try {
+                RequestRing.read(RequestRing.segment(ring.region, segment), length)?.let { requests ->
+                    requests.forEach(::storeInlineBodies)
+                    RequestRepository.addRequests(requests)
+                }
+            } finally {
+                try {
+                    ring.client.segmentFree(segment)
+                } catch (e: RemoteException) {
+                    Log.w(TAG, "Failed to return segment $segment: ${e.message}")
+                }
+            }
+        }
+    }
+
+    override fun onBind(intent: Intent?): IBinder = binder
+
+    @RequiresApi(Build.VERSION_CODES.O_MR1)
+    private fun attach(memory: SharedMemory, client: IRequestRingClient) {
+        val region = try {
+            memory.use { it.mapReadOnly() }
+        } catch (e: ErrnoException) {
+            Log.e(TAG, "Failed to map request ring: ${e.message}")
+            return
+        }
+        if (region.capacity() < RequestRing.SIZE) {
+            SharedMemory.unmap(region)
+            return
+        }
+
+        val key = client.asBinder()
+        val ring = Ring(region, client)
+        try {
+            key.linkToDeath({ rings.remove(key, ring) }, 0)
+        } catch (e: RemoteException) {
+            SharedMemory.unmap(region)
+            return
+        }
+        // A replaced region may still be read by a segmentReady in flight, so it is left to the GC.
+        rings[key] = ring
+    }
+
+    private fun storeInlineBodies(info: RequestInfo) {
+        info.requestBody?.let { body ->
+            info.requestBodyUriString = storeBody(body, "text/plain")
+            info.requestBody = null
+        }
+        info.responseBody?.let { body ->
+            info.responseBodyUriString = storeBody(body, info.responseBodyContentType)
+            info.responseBody = null
+        }
+    }
+
+    private fun storeBody(body: ByteArray, contentType: String?): String? =
+        runCatching {
+            val values = contentValuesOf(
+                TemporaryFileProvider.KEY_BODY_CONTENT to body,
+                TemporaryFileProvider.KEY_MIME_TYPE to contentType
+            )
+            contentResolver.insert(TemporaryFileProvider.CONTENT_URI, values)?.toString()
+        }.getOrElse { error ->
+            Log.e(TAG, "Error inserting body into provider: ${error.message}", error)
+            null
+        }
+}
@@ -193,6 +193,13 @@ class RequestInfoPagerAdapter(
                     HookPrefs.setBoolean(HookPrefs.KEY_COLLECT_RESPONSE_BODY, isChecked)
                 }
             }
+            binding.webviewRefetchSwitch.apply {
+                setOnCheckedChangeListener(null)
+                isChecked = HookPrefs.getBoolean(HookPrefs.KEY_WEBVIEW_REFETCH, false)
+                setOnCheckedChangeListener { _, isChecked ->
+                    HookPrefs.setBoolean(HookPrefs.KEY_WEBVIEW_REFETCH, isChecked)
+                }
+            }
         }
     }
 }
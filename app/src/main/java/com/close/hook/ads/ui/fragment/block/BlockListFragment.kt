@@ -39,6 +39,7 @@ import androidx.recyclerview.selection.StorageStrategy
 import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import com.close.hook.ads.R
+import com.close.hook.ads.data.PatternMatcher
 import com.close.hook.ads.data.model.Url
 import com.close.hook.ads.util.AppUtils
 import com.close.hook.ads.databinding.FragmentBlockListBinding
@@ -312,8 +313,8 @@ class BlockListFragment : BaseSearchFragment<FragmentBlockListBinding>(), OnBack
 
     private fun showRuleDialog(url: Url? = null) {
         val dialogBinding = ItemBlockListAddBinding.inflate(LayoutInflater.from(requireContext()))
-        val ruleTypes = arrayOf("Domain", "URL", "KeyWord")
-        var selectedType = url?.type ?: ruleTypes[1]
+        val ruleTypes = arrayOf("Domain", "DomainSuffix", "URL", "KeyWord", "Wildcard", "Regex")
+        var selectedType = url?.type ?: ruleTypes[2]
 
         dialogBinding.editText.setText(url?.url ?: "")
         dialogBinding.type.setText(selectedType)
@@ -325,7 +326,7 @@ class BlockListFragment : BaseSearchFragment<FragmentBlockListBinding>(), OnBack
                 .setSingleChoiceItems(ruleTypes, currentTypeIndex) { dialog, which ->
                     val newType = ruleTypes[which]
                     if (selectedType != newType) {
-                        if (selectedType == "URL" && newType == "Domain") {
+                        if (selectedType == "URL" && (newType == "Domain" || newType == "DomainSuffix")) {
                             val currentUrl = dialogBinding.editText.text.toString()
                             if (currentUrl.isNotEmpty()) {
                                 dialogBinding.editText.setText(AppUtils.extractHostOrSelf(currentUrl))
@@ -352,6 +353,13 @@ class BlockListFragment : BaseSearchFragment<FragmentBlockListBinding>(), OnBack
                     return@setPositiveButton
                 }
 
+                if (PatternMatcher.isPatternType(selectedType)) {
+                    PatternMatcher.validate(selectedType, newUrl)?.let { error ->
+                        Toast.makeText(requireContext(), getString(R.string.invalid_pattern_error, error), Toast.LENGTH_SHORT).show()
+                        return@setPositiveButton
+                    }
+                }
+
                 val newItem = Url(type = selectedType, url = newUrl).also { it.id = url?.id ?: 0L }
 
                 lifecycleScope.launch {
@@ -431,7 +439,7 @@ class BlockListFragment : BaseSearchFragment<FragmentBlockListBinding>(), OnBack
                             throw IllegalArgumentException(getString(R.string.invalid_file_format))
                         }
 
-                        val validTypes = setOf("domain", "url", "keyword")
+                        val validTypes = setOf("domain", "domainsuffix", "url", "keyword", "wildcard", "regex")
 
                         val currentRules = viewModel.getAllUrls()
                             .map { "${it.type.lowercase()},${it.url}" }
@@ -443,6 +451,8 @@ class BlockListFragment : BaseSearchFragment<FragmentBlockListBinding>(), OnBack
                                 if (parts.size == 2 && parts[0].lowercase() in validTypes) {
                                     Url(parts[0], parts[1])
                                 } else null
+                            }.filter {
+                                !PatternMatcher.isPatternType(it.type) || PatternMatcher.validate(it.type, it.url) == null
                             }.toList()
                         }?.distinct() ?: emptyList()
 
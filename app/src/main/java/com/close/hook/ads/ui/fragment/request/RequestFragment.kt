@@ -1,10 +1,5 @@
 package com.close.hook.ads.ui.fragment.request
 
-import android.content.BroadcastReceiver
-import android.content.Context
-import android.content.Intent
-import android.content.IntentFilter
-import android.os.Build
 import android.os.Bundle
 import android.view.Gravity
 import android.view.LayoutInflater
@@ -17,8 +12,9 @@ import androidx.core.view.updateLayoutParams
 import androidx.fragment.app.Fragment
 import androidx.fragment.app.viewModels
 import com.close.hook.ads.R
-import com.close.hook.ads.data.model.RequestInfo
 import com.close.hook.ads.databinding.BaseTablayoutViewpagerBinding
+import com.close.hook.ads.hook.network.StackCapture
+import com.close.hook.ads.preference.HookPrefs
 import com.close.hook.ads.ui.fragment.base.BasePagerFragment
 import com.close.hook.ads.ui.viewmodel.RequestViewModel
 import com.close.hook.ads.util.IOnFabClickContainer
@@ -41,31 +37,6 @@ class RequestFragment : BasePagerFragment(), IOnFabClickContainer {
 
     private val backPressDelegates = mutableMapOf<Int, OnBackPressListener>()
 
-    private val receiver: BroadcastReceiver = object : BroadcastReceiver() {
-        override fun onReceive(context: Context, intent: Intent) {
-            val request = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                intent.getParcelableExtra("request", RequestInfo::class.java)
-            } else {
-                @Suppress("DEPRECATION")
-                intent.getParcelableExtra("request")
-            }
-            request?.let { item ->
-                viewModel.updateRequestList(item)
-            }
-        }
-    }
-
-    @android.annotation.SuppressLint("UnspecifiedRegisterReceiverFlag")
-    override fun onCreate(savedInstanceState: Bundle?) {
-        super.onCreate(savedInstanceState)
-        val filter = IntentFilter("com.rikkati.REQUEST")
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            requireContext().registerReceiver(receiver, filter, Context.RECEIVER_EXPORTED)
-        } else {
-            requireContext().registerReceiver(receiver, filter)
-        }
-    }
-
     override fun onCreateView(
         inflater: LayoutInflater,
         container: ViewGroup?,
@@ -109,12 +80,31 @@ class RequestFragment : BasePagerFragment(), IOnFabClickContainer {
         }
     }
 
+    private val stackCaptureModes = mapOf(
+        R.id.stack_capture_always to StackCapture.MODE_ALWAYS,
+        R.id.stack_capture_sampled to StackCapture.MODE_SAMPLED,
+        R.id.stack_capture_blocked to StackCapture.MODE_BLOCKED,
+        R.id.stack_capture_off to StackCapture.MODE_OFF
+    )
+
     private fun initBar() {
         binding.toolBar.apply {
             inflateMenu(R.menu.menu_clear)
+            menu.findItem(R.id.record_passed).isChecked =
+                HookPrefs.getBoolean(HookPrefs.KEY_RECORD_PASSED_REQUESTS, true)
+            val stackMode = HookPrefs.getString(HookPrefs.KEY_STACK_CAPTURE_MODE, StackCapture.MODE_ALWAYS)
+            stackCaptureModes.entries.find { it.value == stackMode }?.let { menu.findItem(it.key).isChecked = true }
             setOnMenuItemClickListener {
                 when (it.itemId) {
                     R.id.clear -> controller?.onClearAll()
+                    R.id.record_passed -> {
+                        it.isChecked = !it.isChecked
+                        HookPrefs.setBoolean(HookPrefs.KEY_RECORD_PASSED_REQUESTS, it.isChecked)
+                    }
+                    in stackCaptureModes -> {
+                        it.isChecked = true
+                        HookPrefs.setString(HookPrefs.KEY_STACK_CAPTURE_MODE, stackCaptureModes[it.itemId])
+                    }
                 }
                 true
             }
@@ -151,9 +141,4 @@ class RequestFragment : BasePagerFragment(), IOnFabClickContainer {
         }
         return super.onBackPressed()
     }
-
-    override fun onDestroy() {
-        super.onDestroy()
-        requireContext().unregisterReceiver(receiver)
-    }
 }
@@ -6,6 +6,7 @@ import androidx.lifecycle.viewModelScope
 import com.close.hook.ads.data.DataSource
 import com.close.hook.ads.data.model.RequestInfo
 import com.close.hook.ads.data.model.Url
+import com.close.hook.ads.data.repository.RequestRepository
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
@@ -70,19 +71,39 @@ class RequestViewModel(application: Application) : AndroidViewModel(application)
         _requestSearchQuery.value = query
     }
 
-    fun updateRequestList(item: RequestInfo) {
+    init {
+        viewModelScope.launch {
+            RequestRepository.requestFlow.collect { updateRequestList(it) }
+        }
+    }
+
+    fun updateRequestList(items: List<RequestInfo>) {
+        if (items.isEmpty()) return
         _requestList.update { currentList ->
-            if (item.responseCode != -1 && item.requestId.isNotEmpty()) {
-                val idx = currentList.indexOfFirst {
-                    it.requestId == item.requestId && it.responseCode == -1
-                }
-                if (idx >= 0) {
-                    return@update ArrayList(currentList).also { it[idx] = item }
+            val list = ArrayList(currentList)
+            val added = ArrayList<RequestInfo>(items.size)
+            items.forEach { item ->
+                if (item.responseCode != -1 && item.requestId.isNotEmpty()) {
+                    val idx = list.indexOfFirst {
+                        it.requestId == item.requestId && it.responseCode == -1
+                    }
+                    if (idx >= 0) {
+                        list[idx] = item
+                        return@forEach
+                    }
+                    val pending = added.indexOfFirst {
+                        it.requestId == item.requestId && it.responseCode == -1
+                    }
+                    if (pending >= 0) {
+                        added[pending] = item
+                        return@forEach
+                    }
                 }
+                added += item
             }
             buildList {
-                add(item)
-                addAll(currentList)
+                addAll(added.asReversed())
+                addAll(list)
             }.take(MAX_REQUEST_LIST_SIZE)
         }
     }
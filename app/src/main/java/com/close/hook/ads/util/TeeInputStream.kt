@@ -8,13 +8,16 @@ class TeeInputStream(
     private val input: InputStream,
     private val tee: OutputStream,
     private val closeTee: Boolean = false,
-    private val onClose: (() -> Unit)? = null
+    private val onClose: (() -> Unit)? = null,
+    private val onEnd: (() -> Unit)? = null
 ) : InputStream() {
 
     @Throws(IOException::class)
     override fun read(): Int {
-        val ch = input.read()
-        if (ch != -1) {
+        val ch = readInput { input.read() }
+        if (ch == -1) {
+            onEnd?.invoke()
+        } else {
             try {
                 tee.write(ch)
             } catch (e: IOException) {
@@ -25,7 +28,8 @@ class TeeInputStream(
 
     @Throws(IOException::class)
     override fun read(bts: ByteArray, off: Int, len: Int): Int {
-        val n = input.read(bts, off, len)
+        val n = readInput { input.read(bts, off, len) }
+        if (n == -1) onEnd?.invoke()
         if (n > 0) {
             try {
                 tee.write(bts, off, n)
@@ -35,6 +39,15 @@ class TeeInputStream(
         return n
     }
 
+    // onEnd also fires when the input fails, since the reader is not coming back for the rest.
+    private inline fun readInput(read: () -> Int): Int =
+        try {
+            read()
+        } catch (e: IOException) {
+            onEnd?.invoke()
+            throw e
+        }
+
     @Throws(IOException::class)
     override fun read(bts: ByteArray): Int {
         return read(bts, 0, bts.size)